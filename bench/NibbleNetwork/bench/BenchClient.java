@@ -0,0 +1,72 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.bench;
+
+import NibbleNetwork.NetworkClient;
+import NibbleNetwork.NetworkProcessor;
+import java.net.Socket;
+
+/**
+ * A client that is connected as soon as it is created, for driving a
+ * processor directly from a benchmark.
+ *
+ * @author dansb
+ */
+public class BenchClient extends NetworkClient {
+
+    private boolean keep_alive;
+
+    public BenchClient(NetworkProcessor processor) throws Exception {
+        this(processor, null);
+    }
+
+    public BenchClient(NetworkProcessor processor, Socket socket) throws Exception {
+        super(processor, socket);
+        if (socket != null) {
+            setConnected(true);
+        }
+        this.keep_alive = false;
+    }
+
+    /**
+     * Pretends a ping arrived on every process so clients that never send
+     * anything are not timed out during a long benchmark
+     *
+     * @param keep_alive
+     */
+    public void setKeepAlive(boolean keep_alive) {
+        this.keep_alive = keep_alive;
+    }
+
+    @Override
+    public void process() throws Exception {
+        if (keep_alive) {
+            setLastRecievedPing(System.currentTimeMillis());
+        }
+        super.process();
+    }
+
+    @Override
+    public void Init() throws Exception {
+
+    }
+
+    @Override
+    public void priorDisconnection() {
+
+    }
+}
@@ -0,0 +1,127 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.bench;
+
+import NibbleNetwork.InputNetworkProtocol;
+import NibbleNetwork.InputNetworkStream;
+import NibbleNetwork.NetworkClient;
+import NibbleNetwork.NetworkServer;
+import NibbleNetwork.SharedNetworkProcessor;
+
+/**
+ * A shared processor that accepts everyone, with an optional set of no-op
+ * protocols registered to measure dispatch against a full table.
+ *
+ * @author dansb
+ */
+public class BenchProcessor extends SharedNetworkProcessor {
+
+    public BenchProcessor() throws Exception {
+        this(null);
+    }
+
+    public BenchProcessor(NetworkServer server) throws Exception {
+        super(server);
+    }
+
+    /**
+     * Registers protocols with ids 1 through total
+     *
+     * @param total
+     * @throws Exception
+     */
+    public void addNoopProtocols(int total) throws Exception {
+        for (int i = 1; i <= total; i++) {
+            addInputProtocol(new NoopProtocol(i));
+        }
+    }
+
+    /**
+     * Waits for queued client commands to reach the processor
+     *
+     * @param total The number of clients expected
+     * @param timeout Milliseconds to wait for
+     * @throws Exception If the clients did not all arrive in time
+     */
+    public void awaitClients(int total, long timeout) throws Exception {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (getTotalClients() != total) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Expected " + total + " clients but the processor has " + getTotalClients());
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Stops the processor thread so a benchmark can call process() itself
+     *
+     * @throws InterruptedException
+     */
+    public void stopAndJoin() throws InterruptedException {
+        if (isRunning()) {
+            stopThread();
+        }
+        if (getThread() != null) {
+            getThread().join();
+        }
+    }
+
+    @Override
+    protected void InitProtocols() throws Exception {
+
+    }
+
+    @Override
+    protected void Init() throws Exception {
+
+    }
+
+    @Override
+    public void welcome(NetworkClient client) throws Exception {
+
+    }
+
+    @Override
+    public boolean shouldAllowClient(NetworkClient client) throws Exception {
+        return true;
+    }
+
+    @Override
+    public void clientRemoved(NetworkClient client) throws Exception {
+
+    }
+
+    public static class NoopProtocol extends InputNetworkProtocol {
+
+        private final int id;
+
+        public NoopProtocol(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public void process_input(NetworkClient networkClient, InputNetworkStream input_stream) throws Exception {
+
+        }
+
+        @Override
+        public int getId() {
+            return this.id;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.bench;
+
+import NibbleNetwork.InputNetworkStream;
+import NibbleNetwork.OutputNetworkStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding and decoding of primitives and strings through the network streams,
+ * backed by memory instead of a socket.
+ *
+ * @author dansb
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"8", "64", "512"})
+    public int string_length;
+
+    private MemorySocket.ReplayInputStream input;
+    private InputNetworkStream input_stream;
+    private OutputNetworkStream output_stream;
+    private String string;
+    private byte[] primitives_data;
+    private byte[] string_data;
+
+    @Setup
+    public void setup() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < string_length; i++) {
+            builder.append((char) ('a' + (i % 26)));
+        }
+        string = builder.toString();
+
+        // Encode the data once with the real encoder so the decoders replay exactly what is sent
+        BenchProcessor processor = new BenchProcessor();
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        BenchClient encoder = new BenchClient(processor, new MemorySocket(new MemorySocket.ReplayInputStream(new byte[0]), encoded));
+        OutputNetworkStream encoder_stream = encoder.getOutputStream();
+        encoder_stream.write8(0x7f);
+        encoder_stream.write16(0x1234);
+        encoder_stream.write32(0x12345678);
+        encoder_stream.createFrame(1);
+        encoder_stream.finishFrame();
+        primitives_data = encoded.toByteArray();
+        encoded.reset();
+        encoder_stream.writeString(string);
+        encoder_stream.createFrame(1);
+        encoder_stream.finishFrame();
+        // Drop the trailing frame id that was only written to force a flush
+        byte[] with_frame = encoded.toByteArray();
+        string_data = new byte[with_frame.length - 1];
+        System.arraycopy(with_frame, 0, string_data, 0, string_data.length);
+        byte[] primitives_with_frame = primitives_data;
+        primitives_data = new byte[primitives_with_frame.length - 1];
+        System.arraycopy(primitives_with_frame, 0, primitives_data, 0, primitives_data.length);
+
+        input = new MemorySocket.ReplayInputStream(primitives_data);
+        BenchClient client = new BenchClient(processor, new MemorySocket(input, new MemorySocket.CountingOutputStream()));
+        input_stream = client.getInputStream();
+        output_stream = client.getOutputStream();
+    }
+
+    @Benchmark
+    public void encodePrimitives() throws Exception {
+        output_stream.createFrame(1);
+        output_stream.write8(0x7f);
+        output_stream.write16(0x1234);
+        output_stream.write32(0x12345678);
+        output_stream.finishFrame();
+    }
+
+    @Benchmark
+    public void encodeString() throws Exception {
+        output_stream.createFrame(1);
+        output_stream.writeString(string);
+        output_stream.finishFrame();
+    }
+
+    @Benchmark
+    public void decodePrimitives(Blackhole blackhole) throws Exception {
+        input.setData(primitives_data);
+        blackhole.consume(input_stream.read8());
+        blackhole.consume(input_stream.read16());
+        blackhole.consume(input_stream.read32());
+    }
+
+    @Benchmark
+    public String decodeString() throws Exception {
+        input.setData(string_data);
+        return input_stream.readString();
+    }
+}
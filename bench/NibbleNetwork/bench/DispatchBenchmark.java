@@ -0,0 +1,117 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.bench;
+
+import NibbleNetwork.InputNetworkProtocol;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Looking up input protocols by id and dispatching whole frames with a varying
+ * number of protocols registered on the processor.
+ *
+ * @author dansb
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({"1", "16", "64", "255"})
+    public int protocols;
+
+    private BenchProcessor processor;
+    private BenchClient client;
+    private int[] ids;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        processor = new BenchProcessor();
+        processor.addNoopProtocols(protocols);
+
+        // Cycle through every registered id, including the ping protocol at zero
+        ids = new int[protocols + 1];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = i;
+        }
+        next = 0;
+
+        client = new BenchClient(processor, new MemorySocket(new CyclingInputStream(ids), new MemorySocket.CountingOutputStream()));
+        client.setKeepAlive(true);
+    }
+
+    @Benchmark
+    public InputNetworkProtocol lookup() throws Exception {
+        int id = ids[next];
+        next = next + 1 == ids.length ? 0 : next + 1;
+        return processor.getInputProtocolById(id);
+    }
+
+    @Benchmark
+    public void dispatchFrame() throws Exception {
+        processor.process_client(client);
+    }
+
+    /**
+     * Endless stream of single byte frames cycling through the given ids
+     */
+    public static class CyclingInputStream extends InputStream {
+
+        private final int[] ids;
+        private int position;
+
+        public CyclingInputStream(int[] ids) {
+            this.ids = ids;
+            this.position = 0;
+        }
+
+        @Override
+        public int read() {
+            int id = ids[position];
+            position = position + 1 == ids.length ? 0 : position + 1;
+            return id;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                b[i] = (byte) read();
+            }
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return Integer.MAX_VALUE;
+        }
+    }
+}
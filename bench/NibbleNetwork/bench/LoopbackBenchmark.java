@@ -0,0 +1,216 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.bench;
+
+import NibbleNetwork.ClientConnectionHandler;
+import NibbleNetwork.InputNetworkProtocol;
+import NibbleNetwork.InputNetworkStream;
+import NibbleNetwork.NetworkClient;
+import NibbleNetwork.NetworkProcessor;
+import NibbleNetwork.NetworkServer;
+import NibbleNetwork.OutputNetworkStream;
+import NibbleNetwork.ServerConnectionHandler;
+import NibbleNetwork.ServerNetworkClient;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end frames between a NetworkClient and a NetworkServer over
+ * 127.0.0.1. The server echoes every frame back, round trip latency is sampled
+ * one frame at a time and throughput is measured with bursts of frames.
+ *
+ * @author dansb
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    public static final int ECHO_PROTOCOL = 1;
+    public static final int BURST = 100;
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+    private NetworkServer server;
+    private BenchClient client;
+    private EchoProtocol client_protocol;
+    private int sent;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        server = new NetworkServer();
+        final BenchProcessor server_processor = new BenchProcessor(server);
+        server_processor.addInputProtocol(new EchoProtocol(true));
+        server.setConnectionHandler(new ServerConnectionHandler() {
+            @Override
+            public ServerNetworkClient connection(Socket socket) throws Exception {
+                return new EchoServerClient(server_processor, socket, server);
+            }
+
+            @Override
+            public void connection_problem(Exception ex) {
+                ex.printStackTrace();
+            }
+
+            @Override
+            public void disconnection(NetworkClient client) {
+
+            }
+        });
+        server.listen(port);
+
+        BenchProcessor client_processor = new BenchProcessor();
+        client_protocol = new EchoProtocol(false);
+        client_processor.addInputProtocol(client_protocol);
+        client = new BenchClient(client_processor);
+        client.setConnectionHandler(new ClientConnectionHandler() {
+            @Override
+            public void connection(NetworkClient client) throws Exception {
+
+            }
+
+            @Override
+            public void connection_problem(Exception ex) {
+                ex.printStackTrace();
+            }
+
+            @Override
+            public void disconnection(NetworkClient client) {
+
+            }
+        });
+        client.connect("127.0.0.1", port, 5000, false);
+        if (!client.isConnected()) {
+            throw new IllegalStateException("Could not connect to the loopback server");
+        }
+        sent = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.disconnect();
+        server.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public void roundTrip() throws Exception {
+        send();
+        await(sent);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OperationsPerInvocation(BURST)
+    public void burst() throws Exception {
+        for (int i = 0; i < BURST; i++) {
+            send();
+        }
+        await(sent);
+    }
+
+    private void send() throws Exception {
+        OutputNetworkStream output_stream = client.getOutputStream();
+        synchronized (output_stream) {
+            output_stream.createFrame(ECHO_PROTOCOL);
+            output_stream.write32(++sent);
+            output_stream.finishFrame();
+        }
+    }
+
+    private void await(int sequence) {
+        long deadline = System.nanoTime() + TIMEOUT;
+        while (client_protocol.getLastSequence() < sequence) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Timed out waiting for echo " + sequence);
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    public static class EchoProtocol extends InputNetworkProtocol {
+
+        private final boolean reply;
+        private volatile int last_sequence;
+
+        public EchoProtocol(boolean reply) {
+            this.reply = reply;
+            this.last_sequence = 0;
+        }
+
+        public int getLastSequence() {
+            return this.last_sequence;
+        }
+
+        @Override
+        public void process_input(NetworkClient networkClient, InputNetworkStream input_stream) throws Exception {
+            int sequence = input_stream.read32();
+            if (reply) {
+                OutputNetworkStream output_stream = networkClient.getOutputStream();
+                synchronized (output_stream) {
+                    output_stream.createFrame(ECHO_PROTOCOL);
+                    output_stream.write32(sequence);
+                    output_stream.finishFrame();
+                }
+            } else {
+                this.last_sequence = sequence;
+            }
+        }
+
+        @Override
+        public int getId() {
+            return ECHO_PROTOCOL;
+        }
+    }
+
+    public static class EchoServerClient extends ServerNetworkClient {
+
+        public EchoServerClient(NetworkProcessor processor, Socket socket, NetworkServer server) throws Exception {
+            super(processor, socket, server);
+        }
+
+        @Override
+        public void Init() throws Exception {
+
+        }
+
+        @Override
+        public void priorDisconnection() {
+
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * An unconnected socket that hands out in memory streams so the codec and
+ * processor can be measured without the kernel in the way.
+ *
+ * @author dansb
+ */
+public class MemorySocket extends Socket {
+
+    private final InputStream input;
+    private final OutputStream output;
+
+    public MemorySocket(InputStream input, OutputStream output) {
+        this.input = input;
+        this.output = output;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return this.input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return this.output;
+    }
+
+    /**
+     * An input stream over a fixed buffer that can be rewound to replay the
+     * same bytes for every benchmark invocation.
+     */
+    public static class ReplayInputStream extends InputStream {
+
+        private byte[] data;
+        private int position;
+
+        public ReplayInputStream(byte[] data) {
+            this.data = data;
+            this.position = 0;
+        }
+
+        public void setData(byte[] data) {
+            this.data = data;
+            this.position = 0;
+        }
+
+        public void rewind() {
+            this.position = 0;
+        }
+
+        @Override
+        public int read() {
+            if (position >= data.length) {
+                return -1;
+            }
+            return data[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= data.length) {
+                return -1;
+            }
+            int amount = Math.min(len, data.length - position);
+            System.arraycopy(data, position, b, off, amount);
+            position += amount;
+            return amount;
+        }
+
+        @Override
+        public int available() {
+            return data.length - position;
+        }
+    }
+
+    /**
+     * An input stream that always has another ping frame waiting, used to keep
+     * every client busy during processor ticks.
+     */
+    public static class EndlessPingInputStream extends InputStream {
+
+        @Override
+        public int read() {
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                b[i] = 0;
+            }
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * An output stream that throws everything away but counts it.
+     */
+    public static class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.bench;
+
+import NibbleNetwork.Protocols;
+import NibbleNetwork.QosClass;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One call to SharedNetworkProcessor.process over a large number of clients,
+ * either all busy with a frame waiting every tick or all idle.
+ *
+ * @author dansb
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorTickBenchmark {
+
+    @Param({"1000", "10000"})
+    public int clients;
+
+    @Param({"busy", "idle"})
+    public String traffic;
+
+    private BenchProcessor processor;
+
+    @Setup
+    public void setup() throws Exception {
+        processor = new BenchProcessor();
+        // Charge pings like any other frame so a busy client has exactly one frame processed per tick
+        processor.setQosClass(Protocols.PING_PROTOCOL, QosClass.INTERACTIVE);
+        boolean busy = traffic.equals("busy");
+        for (int i = 0; i < clients; i++) {
+            InputStream input = busy ? new MemorySocket.EndlessPingInputStream() : new MemorySocket.ReplayInputStream(new byte[0]);
+            BenchClient client = new BenchClient(processor, new MemorySocket(input, new MemorySocket.CountingOutputStream()));
+            client.setKeepAlive(!busy);
+            client.setProcessor(processor);
+        }
+
+        // Adding clients starts the processor thread, we want to drive it ourselves once it has them all
+        processor.awaitClients(clients, 60000);
+        processor.stopAndJoin();
+        if (processor.getTotalClients() != clients) {
+            throw new IllegalStateException("Expected " + clients + " clients but the processor has " + processor.getTotalClients());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        processor.stopAndJoin();
+    }
+
+    @Benchmark
+    public void tick() throws Exception {
+        processor.process();
+    }
+}
@@ -0,0 +1,336 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a network server should take on a newly accepted
+ * connection. Connections are refused when they arrive faster than the global
+ * or per address rate allows, when the server is at its connection limit, or
+ * when one of the watched processors is falling behind or has too much
+ * scheduled output waiting to be sent.
+ *
+ * Rates are token buckets, a rate of zero disables that check. Decisions are
+ * made on the acceptor thread before any handshake work is done so refusing a
+ * connection is cheap. Per address buckets are kept for a bounded number of
+ * addresses, a flood from more sources than that forgets the least recently
+ * seen ones first.
+ *
+ * @author dansb
+ */
+public class AdmissionController {
+
+    public enum Decision {
+        ADMIT,
+        GLOBAL_RATE,
+        ADDRESS_RATE,
+        MAX_CONNECTIONS,
+        OVERLOADED
+    }
+
+    // Idle address buckets are swept once this many addresses are tracked
+    private static final int ADDRESS_SWEEP_THRESHOLD = 4096;
+    // At most one sweep this often, nanoseconds
+    private static final long ADDRESS_SWEEP_INTERVAL = 1000000000L;
+    // Past this the least recently seen address is forgotten
+    private static final int MAX_TRACKED_ADDRESSES = 65536;
+
+    private TokenBucket global_bucket;
+    private double address_rate;
+    private double address_burst;
+    private int max_connections;
+    private long max_processor_latency;
+    private long max_outbound_queued;
+    // In order of last use, guarded by the controller
+    private final Map<InetAddress, TokenBucket> address_buckets;
+    private long last_sweep;
+    private final List<NetworkProcessor> processors;
+    private final AtomicLong[] decisions;
+
+    public AdmissionController() {
+        global_bucket = null;
+        address_rate = 0;
+        address_burst = 0;
+        max_connections = 0;
+        max_processor_latency = 0;
+        max_outbound_queued = 0;
+        address_buckets = new LinkedHashMap<InetAddress, TokenBucket>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InetAddress, TokenBucket> eldest) {
+                return size() > MAX_TRACKED_ADDRESSES;
+            }
+        };
+        last_sweep = System.nanoTime();
+        processors = new CopyOnWriteArrayList<NetworkProcessor>();
+        decisions = new AtomicLong[Decision.values().length];
+        for (int i = 0; i < decisions.length; i++) {
+            decisions[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Limits how fast the server accepts connections from everyone
+     *
+     * @param rate Connections per second, zero for no limit
+     * @param burst How many connections may arrive at once before the rate
+     * applies
+     */
+    public synchronized void setGlobalRate(double rate, double burst) {
+        checkRate(rate, burst);
+        this.global_bucket = rate == 0 ? null : new TokenBucket(rate, burst);
+    }
+
+    /**
+     * Limits how fast the server accepts connections from a single address
+     *
+     * @param rate Connections per second, zero for no limit
+     * @param burst How many connections may arrive at once before the rate
+     * applies
+     */
+    public synchronized void setAddressRate(double rate, double burst) {
+        checkRate(rate, burst);
+        this.address_rate = rate;
+        this.address_burst = burst;
+        this.address_buckets.clear();
+    }
+
+    /**
+     * @param max_connections The most clients the server may have at once,
+     * zero for no limit
+     */
+    public synchronized void setMaxConnections(int max_connections) {
+        if (max_connections < 0) {
+            throw new IllegalArgumentException("The connection limit can not be negative");
+        }
+        this.max_connections = max_connections;
+    }
+
+    public synchronized int getMaxConnections() {
+        return this.max_connections;
+    }
+
+    /**
+     * New connections are refused while any watched processor has an
+     * iteration that took, or is taking, longer than this
+     *
+     * @param max_processor_latency Time in milliseconds, zero to never shed on
+     * latency
+     */
+    public synchronized void setMaxProcessorLatency(long max_processor_latency) {
+        if (max_processor_latency < 0) {
+            throw new IllegalArgumentException("The processor latency can not be negative");
+        }
+        this.max_processor_latency = max_processor_latency;
+    }
+
+    public synchronized long getMaxProcessorLatency() {
+        return this.max_processor_latency;
+    }
+
+    /**
+     * New connections are refused while any watched processor ended its last
+     * iteration with more than this many bytes of scheduled output queued
+     *
+     * @param max_outbound_queued Bytes, zero to never shed on queued output
+     */
+    public synchronized void setMaxOutboundQueued(long max_outbound_queued) {
+        if (max_outbound_queued < 0) {
+            throw new IllegalArgumentException("The outbound queue limit can not be negative");
+        }
+        this.max_outbound_queued = max_outbound_queued;
+    }
+
+    public synchronized long getMaxOutboundQueued() {
+        return this.max_outbound_queued;
+    }
+
+    public void watch(NetworkProcessor processor) {
+        if (!this.processors.contains(processor)) {
+            this.processors.add(processor);
+        }
+    }
+
+    public void unwatch(NetworkProcessor processor) {
+        this.processors.remove(processor);
+    }
+
+    /**
+     * @param address The address the connection came from
+     * @param connections How many clients the server currently has
+     * @return ADMIT if the connection should be set up, otherwise why it was
+     * refused
+     */
+    public Decision admit(InetAddress address, int connections) {
+        Decision decision = decide(address, connections);
+        this.decisions[decision.ordinal()].incrementAndGet();
+        return decision;
+    }
+
+    private synchronized Decision decide(InetAddress address, int connections) {
+        long now = System.nanoTime();
+        // Cheapest and least forgiving checks first, tokens are only taken once we know we will admit
+        if (this.max_connections != 0 && connections >= this.max_connections) {
+            return Decision.MAX_CONNECTIONS;
+        }
+
+        if (isOverloaded(now)) {
+            return Decision.OVERLOADED;
+        }
+
+        TokenBucket address_bucket = null;
+        if (this.address_rate != 0 && address != null) {
+            address_bucket = this.address_buckets.get(address);
+            if (address_bucket == null) {
+                if (this.address_buckets.size() >= ADDRESS_SWEEP_THRESHOLD && now - this.last_sweep >= ADDRESS_SWEEP_INTERVAL) {
+                    sweep(now);
+                }
+                address_bucket = new TokenBucket(this.address_rate, this.address_burst);
+                this.address_buckets.put(address, address_bucket);
+            }
+            if (!address_bucket.available(now)) {
+                return Decision.ADDRESS_RATE;
+            }
+        }
+
+        if (this.global_bucket != null && !this.global_bucket.take(now)) {
+            return Decision.GLOBAL_RATE;
+        }
+
+        if (address_bucket != null) {
+            address_bucket.take(now);
+        }
+        return Decision.ADMIT;
+    }
+
+    /**
+     * @return True if any watched processor is slower than the allowed latency
+     * or has more output queued than allowed
+     */
+    public boolean isOverloaded() {
+        return isOverloaded(System.nanoTime());
+    }
+
+    private boolean isOverloaded(long now) {
+        if (this.max_processor_latency == 0 && this.max_outbound_queued == 0) {
+            return false;
+        }
+
+        long limit = this.max_processor_latency * 1000000;
+        for (NetworkProcessor processor : this.processors) {
+            if (this.max_outbound_queued != 0 && processor.getOutboundQueuedBytes() > this.max_outbound_queued) {
+                return true;
+            }
+            if (limit == 0) {
+                continue;
+            }
+            if (processor.getLastIterationDuration() > limit) {
+                return true;
+            }
+            long started = processor.getIterationStarted();
+            if (started != 0 && now - started > limit) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sweep(long now) {
+        this.last_sweep = now;
+        // A full bucket behaves the same as a new one so it is safe to forget
+        Iterator<TokenBucket> iterator = this.address_buckets.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isFull(now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public long getTotal(Decision decision) {
+        return this.decisions[decision.ordinal()].get();
+    }
+
+    public long getTotalRejected() {
+        long total = 0;
+        for (Decision decision : Decision.values()) {
+            if (decision != Decision.ADMIT) {
+                total += getTotal(decision);
+            }
+        }
+        return total;
+    }
+
+    public synchronized int getTrackedAddresses() {
+        return this.address_buckets.size();
+    }
+
+    private static void checkRate(double rate, double burst) {
+        if (rate < 0) {
+            throw new IllegalArgumentException("The rate can not be negative");
+        }
+        if (rate != 0 && burst < 1) {
+            throw new IllegalArgumentException("The burst must allow at least one connection");
+        }
+    }
+
+    /**
+     * Only used while holding the controller lock
+     */
+    private static class TokenBucket {
+
+        private final double rate;
+        private final double burst;
+        private double tokens;
+        private long last_refill;
+
+        public TokenBucket(double rate, double burst) {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+            this.last_refill = System.nanoTime();
+        }
+
+        private void refill(long now) {
+            this.tokens = Math.min(this.burst, this.tokens + (now - this.last_refill) * this.rate / 1e9);
+            this.last_refill = now;
+        }
+
+        public boolean available(long now) {
+            refill(now);
+            return this.tokens >= 1;
+        }
+
+        public boolean take(long now) {
+            if (!available(now)) {
+                return false;
+            }
+            this.tokens -= 1;
+            return true;
+        }
+
+        public boolean isFull(long now) {
+            refill(now);
+            return this.tokens >= this.burst;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork;
+
+/**
+ * Stream buffers are only needed while bytes are actually moving, so streams
+ * take one from a pool when they start reading or writing and hand it back
+ * as soon as it is empty. An idle connection then holds no buffer at all and
+ * a busy one reuses the same few buffers without allocating.
+ *
+ * Every thread keeps a few free buffers of its own in front of the pool, a
+ * thread that takes and gives back buffers on each frame does so without a
+ * lock. Only when its own run out or overflow does it go to the pool.
+ *
+ * @author dansb
+ */
+public class BufferPool {
+
+    public static final int BUFFER_SIZE = 4096;
+
+    // Free buffers each thread keeps for itself
+    private static final int LOCAL_CAPACITY = 8;
+
+    private static final BufferPool shared = new BufferPool(BUFFER_SIZE, 1024);
+
+    private final int buffer_size;
+    // Guarded by the pool
+    private final byte[][] buffers;
+    private int total;
+    private long created;
+    private final ThreadLocal<LocalBuffers> local;
+
+    /**
+     * @param buffer_size The size of every buffer in the pool
+     * @param capacity How many free buffers the pool keeps, buffers given
+     * back beyond this are left for the garbage collector
+     */
+    public BufferPool(int buffer_size, int capacity) {
+        this.buffer_size = buffer_size;
+        this.buffers = new byte[capacity][];
+        this.total = 0;
+        this.created = 0;
+        this.local = new ThreadLocal<LocalBuffers>() {
+            @Override
+            protected LocalBuffers initialValue() {
+                return new LocalBuffers();
+            }
+        };
+    }
+
+    public static BufferPool getShared() {
+        return BufferPool.shared;
+    }
+
+    public byte[] take() {
+        LocalBuffers local_buffers = this.local.get();
+        if (local_buffers.total != 0) {
+            byte[] buffer = local_buffers.buffers[--local_buffers.total];
+            local_buffers.buffers[local_buffers.total] = null;
+            return buffer;
+        }
+        return takeShared();
+    }
+
+    private synchronized byte[] takeShared() {
+        if (this.total == 0) {
+            this.created++;
+            return new byte[this.buffer_size];
+        }
+        byte[] buffer = this.buffers[--this.total];
+        this.buffers[this.total] = null;
+        return buffer;
+    }
+
+    public void give(byte[] buffer) {
+        if (buffer.length != this.buffer_size) {
+            return;
+        }
+        LocalBuffers local_buffers = this.local.get();
+        if (local_buffers.total < LOCAL_CAPACITY) {
+            local_buffers.buffers[local_buffers.total++] = buffer;
+            return;
+        }
+        giveShared(buffer);
+    }
+
+    private synchronized void giveShared(byte[] buffer) {
+        if (this.total < this.buffers.length) {
+            this.buffers[this.total++] = buffer;
+        }
+    }
+
+    public int getBufferSize() {
+        return this.buffer_size;
+    }
+
+    /**
+     * @return How many free buffers are waiting in the pool, not counting
+     * those threads keep for themselves
+     */
+    public synchronized int getFree() {
+        return this.total;
+    }
+
+    /**
+     * @return How many buffers the pool has had to create
+     */
+    public synchronized long getCreated() {
+        return this.created;
+    }
+
+    /**
+     * The free buffers of one thread, only touched by that thread
+     */
+    private static final class LocalBuffers {
+
+        private final byte[][] buffers;
+        private int total;
+
+        private LocalBuffers() {
+            this.buffers = new byte[LOCAL_CAPACITY][];
+            this.total = 0;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A set of clients indexed by their client id. Adding, removing and looking up
+ * a client is constant time and lookups can be made from any thread without
+ * locking.
+ *
+ * The clients are also kept packed in an array so a processor can walk them by
+ * index without allocating. Walking is weakly consistent: a client removed
+ * during the walk may still be visited, and as removal moves the last client
+ * into the hole, a walk running at the same time may miss or revisit that one
+ * client for a pass.
+ *
+ * @author dansb
+ */
+public class ClientRegistry<T extends NetworkClient> implements Iterable<T> {
+
+    private final Map<Long, Slot<T>> slots;
+    private volatile Object[] clients;
+    private volatile int size;
+
+    public ClientRegistry() {
+        this(16);
+    }
+
+    public ClientRegistry(int initial_capacity) {
+        this.slots = new ConcurrentHashMap<Long, Slot<T>>(initial_capacity);
+        this.clients = new Object[Math.max(1, initial_capacity)];
+        this.size = 0;
+    }
+
+    /**
+     * @param client
+     * @return False if the client was already in the registry
+     */
+    public synchronized boolean add(T client) {
+        Long id = client.getClientId();
+        if (this.slots.containsKey(id)) {
+            return false;
+        }
+
+        Object[] current = this.clients;
+        if (this.size == current.length) {
+            Object[] grown = new Object[current.length * 2];
+            System.arraycopy(current, 0, grown, 0, this.size);
+            current = grown;
+            this.clients = grown;
+        }
+        current[this.size] = client;
+        this.slots.put(id, new Slot<T>(client, this.size));
+        // Publishes the new element to anyone walking by index
+        this.size = this.size + 1;
+        return true;
+    }
+
+    /**
+     * @param client
+     * @return False if the client was not in the registry
+     */
+    public synchronized boolean remove(T client) {
+        Long id = client.getClientId();
+        Slot<T> slot = this.slots.get(id);
+        if (slot == null || slot.client != client) {
+            return false;
+        }
+
+        Object[] current = this.clients;
+        int last = this.size - 1;
+        if (slot.index != last) {
+            @SuppressWarnings("unchecked")
+            T moved = (T) current[last];
+            current[slot.index] = moved;
+            this.slots.get(moved.getClientId()).index = slot.index;
+        }
+        current[last] = null;
+        this.slots.remove(id);
+        this.size = last;
+        return true;
+    }
+
+    public boolean contains(T client) {
+        Slot<T> slot = this.slots.get(client.getClientId());
+        return slot != null && slot.client == client;
+    }
+
+    /**
+     * @param client_id
+     * @return The client with this id or null if it is not in the registry
+     */
+    public T get(long client_id) {
+        Slot<T> slot = this.slots.get(client_id);
+        return slot == null ? null : slot.client;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Walks the registry without allocating, use with {@link #size()}
+     *
+     * @param index
+     * @return The client at this position or null if the position is empty,
+     * which can happen while clients are being removed
+     */
+    @SuppressWarnings("unchecked")
+    public T getAt(int index) {
+        Object[] current = this.clients;
+        if (index < 0 || index >= current.length) {
+            return null;
+        }
+        return (T) current[index];
+    }
+
+    /**
+     * @return A copy of the clients in the registry right now
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<T> snapshot() {
+        List<T> copy = new ArrayList<T>(this.size);
+        for (int i = 0; i < this.size; i++) {
+            copy.add((T) this.clients[i]);
+        }
+        return copy;
+    }
+
+    /**
+     * @return A weakly consistent iterator over the clients, it does not
+     * support removal
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int index = 0;
+            private T next = advance();
+
+            private T advance() {
+                while (index < size) {
+                    T client = getAt(index++);
+                    if (client != null) {
+                        return client;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public T next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                T client = next;
+                next = advance();
+                return client;
+            }
+        };
+    }
+
+    private static class Slot<T> {
+
+        private final T client;
+        // Only changed while holding the registry lock
+        private int index;
+
+        public Slot(T client, int index) {
+            this.client = client;
+            this.index = index;
+        }
+    }
+}
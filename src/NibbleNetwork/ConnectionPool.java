@@ -0,0 +1,516 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork;
+
+import NibbleNetwork.exceptions.NetworkException;
+import java.io.Closeable;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a number of connections open to each endpoint and hands out the
+ * least loaded healthy one, so a client talking to a service does not pay
+ * for a connect on the request path or send into a connection that has gone
+ * quiet.
+ *
+ * A connection is healthy while it is ready and has had a ping within the
+ * health timeout, using the pings every client already exchanges. Of the
+ * healthy connections the one with the fewest bytes queued is picked, ties go
+ * round robin so in direct output mode, where nothing is queued, requests
+ * are spread evenly. Connections that are lost or fail to connect are opened
+ * again from the pool's own thread after an exponential backoff with jitter,
+ * so clients that lost a server together do not all come back at once.
+ *
+ * @author dansb
+ */
+public class ConnectionPool implements Runnable, Closeable {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT = 1000;
+    public static final long DEFAULT_HEALTH_TIMEOUT = 1500;
+    public static final long DEFAULT_MIN_BACKOFF = 100;
+    public static final long DEFAULT_MAX_BACKOFF = 30000;
+    // How often the pool looks for connections to open when nothing has been lost
+    private static final long CHECK_INTERVAL = 50;
+    // Past this many failures the backoff is at its maximum anyway, keeps the shift from overflowing
+    private static final int MAX_BACKOFF_SHIFT = 20;
+
+    private final ClientFactory factory;
+    private final int connections_per_endpoint;
+    private final ClientConnectionHandler connection_handler;
+    private final PoolHandler pool_handler;
+    // Copied on change so picking a client never takes a lock
+    private volatile Endpoint[] endpoints;
+    private final AtomicInteger next;
+    private final AtomicLong total_connects;
+    private final AtomicLong total_failures;
+    private volatile int connect_timeout;
+    private volatile long health_timeout;
+    private volatile long min_backoff;
+    private volatile long max_backoff;
+    private volatile Thread thread;
+    private volatile boolean is_running;
+    private volatile boolean is_closed;
+
+    public ConnectionPool(ClientFactory factory, int connections_per_endpoint) {
+        this(factory, connections_per_endpoint, null);
+    }
+
+    /**
+     * @param factory Makes each client before it is connected
+     * @param connections_per_endpoint Connections to keep open to every
+     * endpoint
+     * @param connection_handler Told of every connection, problem and
+     * disconnection of the pool's clients, if null problems are logged
+     * instead
+     */
+    public ConnectionPool(ClientFactory factory, int connections_per_endpoint, ClientConnectionHandler connection_handler) {
+        if (connections_per_endpoint <= 0) {
+            throw new IllegalArgumentException("The pool must keep at least one connection to each endpoint");
+        }
+        this.factory = factory;
+        this.connections_per_endpoint = connections_per_endpoint;
+        this.connection_handler = connection_handler;
+        this.pool_handler = new PoolHandler();
+        this.endpoints = new Endpoint[0];
+        this.next = new AtomicInteger();
+        this.total_connects = new AtomicLong();
+        this.total_failures = new AtomicLong();
+        this.connect_timeout = DEFAULT_CONNECT_TIMEOUT;
+        this.health_timeout = DEFAULT_HEALTH_TIMEOUT;
+        this.min_backoff = DEFAULT_MIN_BACKOFF;
+        this.max_backoff = DEFAULT_MAX_BACKOFF;
+        this.is_running = false;
+        this.is_closed = false;
+    }
+
+    /**
+     * Starts keeping connections open to the endpoint, they are opened in the
+     * background
+     *
+     * @param address
+     */
+    public synchronized void addEndpoint(SocketAddress address) {
+        if (this.is_closed) {
+            throw new IllegalStateException("The connection pool is closed");
+        }
+        if (find(address) != null) {
+            return;
+        }
+        Endpoint[] endpoints = Arrays.copyOf(this.endpoints, this.endpoints.length + 1);
+        endpoints[endpoints.length - 1] = new Endpoint(address, this.connections_per_endpoint);
+        this.endpoints = endpoints;
+
+        if (!is_running) {
+            is_running = true;
+            thread = new Thread(this, "NibbleNetwork connection pool");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops using the endpoint and disconnects its connections
+     *
+     * @param address
+     */
+    public synchronized void removeEndpoint(SocketAddress address) {
+        Endpoint endpoint = find(address);
+        if (endpoint == null) {
+            return;
+        }
+        List<Endpoint> endpoints = new ArrayList<Endpoint>(Arrays.asList(this.endpoints));
+        endpoints.remove(endpoint);
+        this.endpoints = endpoints.toArray(new Endpoint[endpoints.size()]);
+        disconnect(endpoint);
+    }
+
+    public List<SocketAddress> getEndpoints() {
+        List<SocketAddress> addresses = new ArrayList<SocketAddress>();
+        for (Endpoint endpoint : this.endpoints) {
+            addresses.add(endpoint.address);
+        }
+        return addresses;
+    }
+
+    /**
+     * @return The least loaded healthy connection to any endpoint
+     * @throws NetworkException If no connection is healthy
+     */
+    public NetworkClient getClient() throws NetworkException {
+        Endpoint[] endpoints = this.endpoints;
+        int total = endpoints.length * this.connections_per_endpoint;
+        if (total != 0) {
+            long now = System.currentTimeMillis();
+            int start = Math.floorMod(this.next.getAndIncrement(), total);
+            NetworkClient best = null;
+            long best_queued = Long.MAX_VALUE;
+            for (int i = 0; i < total; i++) {
+                int index = (start + i) % total;
+                NetworkClient client = endpoints[index / this.connections_per_endpoint].slots[index % this.connections_per_endpoint].client;
+                if (isHealthy(client, now)) {
+                    long queued = client.getOutputStream().getQueuedBytes();
+                    if (queued < best_queued) {
+                        best = client;
+                        best_queued = queued;
+                    }
+                }
+            }
+            if (best != null) {
+                return best;
+            }
+        }
+        throw new NetworkException("No healthy connection in the pool, " + endpoints.length + " endpoints");
+    }
+
+    /**
+     * @param address
+     * @return The least loaded healthy connection to the endpoint
+     * @throws NetworkException If the endpoint is not in the pool or has no
+     * healthy connection
+     */
+    public NetworkClient getClient(SocketAddress address) throws NetworkException {
+        Endpoint endpoint = find(address);
+        if (endpoint == null) {
+            throw new NetworkException("The endpoint " + address + " is not in the pool");
+        }
+        long now = System.currentTimeMillis();
+        int start = Math.floorMod(this.next.getAndIncrement(), this.connections_per_endpoint);
+        NetworkClient best = null;
+        long best_queued = Long.MAX_VALUE;
+        for (int i = 0; i < this.connections_per_endpoint; i++) {
+            NetworkClient client = endpoint.slots[(start + i) % this.connections_per_endpoint].client;
+            if (isHealthy(client, now)) {
+                long queued = client.getOutputStream().getQueuedBytes();
+                if (queued < best_queued) {
+                    best = client;
+                    best_queued = queued;
+                }
+            }
+        }
+        if (best == null) {
+            throw new NetworkException("No healthy connection to " + address);
+        }
+        return best;
+    }
+
+    /**
+     * @param client
+     * @param now
+     * @return True if the client is ready and has had a ping within the
+     * health timeout
+     */
+    private boolean isHealthy(NetworkClient client, long now) {
+        return client != null && client.isConnected() && client.isReady()
+                && now - client.getLastRecievedPing() <= this.health_timeout;
+    }
+
+    /**
+     * @return Connections across every endpoint that would be handed out
+     */
+    public int getHealthyCount() {
+        long now = System.currentTimeMillis();
+        int healthy = 0;
+        for (Endpoint endpoint : this.endpoints) {
+            for (Slot slot : endpoint.slots) {
+                if (isHealthy(slot.client, now)) {
+                    healthy++;
+                }
+            }
+        }
+        return healthy;
+    }
+
+    public int getConnectionsPerEndpoint() {
+        return this.connections_per_endpoint;
+    }
+
+    public long getTotalConnects() {
+        return this.total_connects.get();
+    }
+
+    /**
+     * @return Connects that failed plus connections that were lost
+     */
+    public long getTotalFailures() {
+        return this.total_failures.get();
+    }
+
+    /**
+     * @param connect_timeout Milliseconds to wait for each connection and for
+     * reads
+     */
+    public void setConnectTimeout(int connect_timeout) {
+        this.connect_timeout = connect_timeout;
+    }
+
+    public int getConnectTimeout() {
+        return this.connect_timeout;
+    }
+
+    /**
+     * @param health_timeout Milliseconds without a ping before a connection
+     * is no longer handed out, pings arrive every 500ms and a client is
+     * disconnected after 3000ms without one
+     */
+    public void setHealthTimeout(long health_timeout) {
+        this.health_timeout = health_timeout;
+    }
+
+    public long getHealthTimeout() {
+        return this.health_timeout;
+    }
+
+    /**
+     * The wait before opening a connection again doubles with every failure
+     * in a row from the minimum up to the maximum, the actual wait is between
+     * half and all of that
+     *
+     * @param min_backoff Milliseconds
+     * @param max_backoff Milliseconds
+     */
+    public void setBackoff(long min_backoff, long max_backoff) {
+        if (min_backoff <= 0 || max_backoff < min_backoff) {
+            throw new IllegalArgumentException("The backoff must be above zero and the maximum at least the minimum");
+        }
+        this.min_backoff = min_backoff;
+        this.max_backoff = max_backoff;
+    }
+
+    public long getMinBackoff() {
+        return this.min_backoff;
+    }
+
+    public long getMaxBackoff() {
+        return this.max_backoff;
+    }
+
+    private Endpoint find(SocketAddress address) {
+        for (Endpoint endpoint : this.endpoints) {
+            if (endpoint.address.equals(address)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void run() {
+        while (is_running) {
+            long now = System.currentTimeMillis();
+            for (Endpoint endpoint : this.endpoints) {
+                for (Slot slot : endpoint.slots) {
+                    check(endpoint, slot, now);
+                }
+            }
+            LockSupport.parkNanos(this, CHECK_INTERVAL * 1000000L);
+        }
+    }
+
+    private void check(Endpoint endpoint, Slot slot, long now) {
+        synchronized (slot) {
+            if (slot.connecting) {
+                return;
+            }
+            NetworkClient client = slot.client;
+            if (client != null) {
+                if (client.isConnected()) {
+                    if (slot.failures != 0 && now - slot.connected_at > this.health_timeout && isHealthy(client, now)) {
+                        // It has stayed up, the next loss starts from the minimum backoff again
+                        slot.failures = 0;
+                    }
+                    return;
+                }
+                // Lost, a server that keeps dropping connections backs off just as one refusing them does
+                slot.client = null;
+                slot.next_attempt = now + backoff(slot.failures++);
+                this.total_failures.incrementAndGet();
+                return;
+            }
+            if (now < slot.next_attempt) {
+                return;
+            }
+            slot.connecting = true;
+        }
+        open(endpoint, slot);
+    }
+
+    private void open(final Endpoint endpoint, final Slot slot) {
+        final NetworkClient client;
+        try {
+            client = this.factory.client(endpoint.address);
+            client.setConnectionHandler(this.pool_handler);
+            client.connectAsync(endpoint.address, this.connect_timeout).whenComplete(new BiConsumer<NetworkClient, Throwable>() {
+                @Override
+                public void accept(NetworkClient connected, Throwable problem) {
+                    if (problem != null) {
+                        failed(slot);
+                    } else {
+                        opened(endpoint, slot, client);
+                    }
+                }
+            });
+        } catch (Exception ex) {
+            this.pool_handler.connection_problem(ex);
+            failed(slot);
+        }
+    }
+
+    private void opened(Endpoint endpoint, Slot slot, NetworkClient client) {
+        this.total_connects.incrementAndGet();
+        synchronized (slot) {
+            slot.connecting = false;
+            if (!this.is_closed && !endpoint.removed) {
+                slot.client = client;
+                slot.connected_at = System.currentTimeMillis();
+                return;
+            }
+        }
+        // The pool or endpoint went away while we were connecting
+        disconnect(client);
+    }
+
+    private void failed(Slot slot) {
+        this.total_failures.incrementAndGet();
+        synchronized (slot) {
+            slot.connecting = false;
+            slot.next_attempt = System.currentTimeMillis() + backoff(slot.failures++);
+        }
+    }
+
+    private long backoff(int failures) {
+        long base = Math.min(this.max_backoff, this.min_backoff << Math.min(failures, MAX_BACKOFF_SHIFT));
+        // Half fixed and half random so clients that failed together spread out
+        return base / 2 + ThreadLocalRandom.current().nextLong(base / 2 + 1);
+    }
+
+    private void disconnect(Endpoint endpoint) {
+        endpoint.removed = true;
+        for (Slot slot : endpoint.slots) {
+            NetworkClient client;
+            synchronized (slot) {
+                client = slot.client;
+                slot.client = null;
+            }
+            if (client != null) {
+                disconnect(client);
+            }
+        }
+    }
+
+    private void disconnect(NetworkClient client) {
+        if (!client.isConnected()) {
+            return;
+        }
+        try {
+            client.setDisconnectReason("Removed from the connection pool");
+            client.disconnect();
+        } catch (Exception ex) {
+            Logger.getLogger(ConnectionPool.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Stops opening connections and disconnects every connection in the pool
+     */
+    @Override
+    public synchronized void close() {
+        if (this.is_closed) {
+            return;
+        }
+        this.is_closed = true;
+        is_running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+        for (Endpoint endpoint : this.endpoints) {
+            disconnect(endpoint);
+        }
+        this.endpoints = new Endpoint[0];
+    }
+
+    private static final class Endpoint {
+
+        private final SocketAddress address;
+        private final Slot[] slots;
+        private volatile boolean removed;
+
+        private Endpoint(SocketAddress address, int connections) {
+            this.address = address;
+            this.slots = new Slot[connections];
+            for (int i = 0; i < connections; i++) {
+                this.slots[i] = new Slot();
+            }
+        }
+    }
+
+    /**
+     * One connection the pool keeps open, changed under its own lock by the
+     * pool thread and the connector completing its connects
+     */
+    private static final class Slot {
+
+        // Read without the lock when picking a client
+        private volatile NetworkClient client;
+        private boolean connecting;
+        private int failures;
+        private long next_attempt;
+        private long connected_at;
+    }
+
+    /**
+     * Passes events on to the pool's handler and wakes the pool thread when a
+     * connection is lost so it is opened again without waiting for a check
+     */
+    private class PoolHandler implements ClientConnectionHandler {
+
+        @Override
+        public void connection(NetworkClient client) throws Exception {
+            if (connection_handler != null) {
+                connection_handler.connection(client);
+            }
+        }
+
+        @Override
+        public void connection_problem(Exception ex) {
+            if (connection_handler != null) {
+                connection_handler.connection_problem(ex);
+            } else {
+                Logger.getLogger(ConnectionPool.class.getName()).log(Level.WARNING, "Connection pool problem", ex);
+            }
+        }
+
+        @Override
+        public void disconnection(NetworkClient client) {
+            if (connection_handler != null) {
+                connection_handler.disconnection(client);
+            }
+            Thread pool_thread = thread;
+            if (pool_thread != null) {
+                LockSupport.unpark(pool_thread);
+            }
+        }
+    }
+}
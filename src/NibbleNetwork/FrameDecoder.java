@@ -0,0 +1,30 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork;
+
+/**
+ * Turns the payload of a frame into a value for an {@link InboundPublisher}.
+ * Called on the processor thread with the protocol id already read, it must
+ * read the whole payload.
+ *
+ * @author dansb
+ * @param <T> The type of value decoded
+ */
+public interface FrameDecoder<T> {
+
+    public T decode(NetworkClient client, InputNetworkStream input_stream) throws Exception;
+}
@@ -0,0 +1,230 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the frames of one protocol id from one client to a single
+ * subscriber, reading from the client only while the subscriber has asked for
+ * more. With no demand the processor stops reading the client altogether so
+ * the socket buffers fill and TCP pushes back on the sender.
+ *
+ * Frames are read in the order they were sent so while paused no frame is
+ * read, pings included. The ping timeout is held off while the client is
+ * paused, the remote end keeps getting our pings and stays connected.
+ *
+ * Values are decoded and handed to onNext on the processor thread. When the
+ * client disconnects the subscriber is completed, or given the error if the
+ * client was disconnected because of a problem. Cancelling detaches the
+ * publisher and the client is read as normal again, frames for the
+ * publisher's id then go to the processor's protocols.
+ *
+ * @author dansb
+ * @param <T> The type of value published
+ */
+public class InboundPublisher<T> implements Flow.Publisher<T> {
+
+    private final NetworkClient client;
+    private final int protocol_id;
+    private final FrameDecoder<T> decoder;
+    private final AtomicLong demand;
+    // Signals to the subscriber are made while holding the publisher's lock so they never overlap
+    private Flow.Subscriber<? super T> subscriber;
+    private volatile boolean cancelled;
+    private boolean subscribed;
+    private boolean terminated;
+
+    /**
+     * Creates the publisher and attaches it to the client, reads from the
+     * client are paused until a subscriber asks for frames
+     *
+     * @param client
+     * @param protocol_id The id of the frames to publish
+     * @param decoder Reads the payload of each frame
+     * @throws Exception
+     */
+    public InboundPublisher(NetworkClient client, int protocol_id, FrameDecoder<T> decoder) throws Exception {
+        if (protocol_id <= 0 || protocol_id > Protocols.MAX_PROTOCOL_ID) {
+            throw new Exception("Protocol id's must be within the 1-" + Protocols.MAX_PROTOCOL_ID + " range");
+        }
+        if (decoder == null) {
+            throw new IllegalArgumentException("The decoder may not be null");
+        }
+        this.client = client;
+        this.protocol_id = protocol_id;
+        this.decoder = decoder;
+        this.demand = new AtomicLong();
+        this.subscriber = null;
+        this.cancelled = false;
+        this.subscribed = false;
+        this.terminated = false;
+        client.setInboundPublisher(this);
+    }
+
+    public NetworkClient getNetworkClient() {
+        return this.client;
+    }
+
+    public int getProtocolId() {
+        return this.protocol_id;
+    }
+
+    /**
+     * @return How many more frames the subscriber has asked for
+     */
+    public long getDemand() {
+        return this.demand.get();
+    }
+
+    public boolean hasDemand() {
+        return this.demand.get() > 0;
+    }
+
+    @Override
+    public synchronized void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("The subscriber may not be null");
+        }
+        if (this.subscribed || this.terminated) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+
+                }
+
+                @Override
+                public void cancel() {
+
+                }
+            });
+            subscriber.onError(new IllegalStateException("This publisher only allows one subscriber"));
+            return;
+        }
+        this.subscribed = true;
+        this.subscriber = subscriber;
+        subscriber.onSubscribe(new Subscription());
+    }
+
+    /**
+     * Decodes the frame and hands it to the subscriber, called by the
+     * processor thread once the protocol id has been read
+     *
+     * @param input_stream
+     * @throws Exception
+     */
+    protected synchronized void publish(InputNetworkStream input_stream) throws Exception {
+        T value = this.decoder.decode(this.client, input_stream);
+        if (this.subscriber == null || this.cancelled) {
+            // Cancelled while the frame was on its way, it has been read so it is dropped
+            return;
+        }
+        this.demand.decrementAndGet();
+        try {
+            this.subscriber.onNext(value);
+        } catch (RuntimeException ex) {
+            // A subscriber that throws has broken the contract, it hears nothing more from us
+            cancel();
+            throw ex;
+        }
+    }
+
+    /**
+     * Completes the subscriber, called when the client disconnects
+     */
+    protected synchronized void complete() {
+        if (this.terminated) {
+            return;
+        }
+        this.terminated = true;
+        this.demand.set(0);
+        if (this.subscriber != null && !this.cancelled) {
+            Flow.Subscriber<? super T> current = this.subscriber;
+            this.subscriber = null;
+            current.onComplete();
+        }
+    }
+
+    /**
+     * Gives the subscriber the problem that is about to disconnect the client
+     *
+     * @param problem
+     */
+    protected synchronized void error(Throwable problem) {
+        if (this.terminated) {
+            return;
+        }
+        this.terminated = true;
+        this.demand.set(0);
+        if (this.subscriber != null && !this.cancelled) {
+            Flow.Subscriber<? super T> current = this.subscriber;
+            this.subscriber = null;
+            current.onError(problem);
+        }
+    }
+
+    private void cancel() {
+        this.cancelled = true;
+        this.demand.set(0);
+        this.client.detachInboundPublisher(this);
+        // Let the processor see the client is no longer paused
+        wakeProcessor();
+    }
+
+    private void wakeProcessor() {
+        this.client.getNetworkProcessor().wake();
+    }
+
+    private class Subscription implements Flow.Subscription {
+
+        @Override
+        public void request(long n) {
+            if (cancelled) {
+                return;
+            }
+            if (n <= 0) {
+                cancel();
+                synchronized (InboundPublisher.this) {
+                    if (subscriber != null && !terminated) {
+                        terminated = true;
+                        Flow.Subscriber<? super T> current = subscriber;
+                        subscriber = null;
+                        current.onError(new IllegalArgumentException("Subscribers must request a positive amount, got " + n));
+                    }
+                }
+                return;
+            }
+
+            long current;
+            long next;
+            do {
+                current = demand.get();
+                // Demand of Long.MAX_VALUE or more is treated as unbounded
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!demand.compareAndSet(current, next));
+            if (current == 0) {
+                wakeProcessor();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            InboundPublisher.this.cancel();
+        }
+    }
+}
@@ -17,27 +17,51 @@
 package NibbleNetwork;
 
 import NibbleNetwork.exceptions.DeniedOperationException;
+import NibbleNetwork.transport.TcpConnection;
+import NibbleNetwork.transport.TransportConnection;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.Socket;
 
 /**
+ * Reads are served from a read ahead buffer so decoding a frame costs one
+ * socket read rather than one per byte. The buffer comes from the shared
+ * buffer pool when a read needs it and goes back once everything in it has
+ * been read, so an idle stream holds no buffer.
  *
  * @author dansb
  */
 public class InputNetworkStream extends NetworkStream {
 
-    private final InputStream inputStream;
+    public static final int BUFFER_SIZE = BufferPool.BUFFER_SIZE;
+
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private long bytes_read;
 
     public InputNetworkStream(NetworkClient client, Socket socket) throws IOException {
-        super(client, socket);
-        this.inputStream = socket.getInputStream();
+        this(client, new TcpConnection(socket));
+    }
+
+    public InputNetworkStream(NetworkClient client, TransportConnection connection) {
+        super(client, connection);
+        this.buffer = null;
+        this.position = 0;
+        this.limit = 0;
     }
 
     public synchronized int read8() throws IOException, DeniedOperationException {
         getNetworkClient().EnsureSafe();
-        int b = this.inputStream.read();
-        return b;
+        if (this.position == this.limit && !fill()) {
+            this.bytes_read++;
+            return -1;
+        }
+        this.bytes_read++;
+        int i = this.buffer[this.position++] & 0xff;
+        if (this.position == this.limit) {
+            releaseBuffer();
+        }
+        return i;
     }
 
     public synchronized int read16() throws IOException, DeniedOperationException {
@@ -53,21 +77,99 @@ public class InputNetworkStream extends NetworkStream {
     }
 
     public synchronized String readString() throws IOException, DeniedOperationException {
-        String str = "";
+        int length = read16();
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) read8());
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Reads a string into the given builder instead of creating a new String,
+     * reusing one builder keeps string decoding free of allocations.
+     *
+     * @param builder The builder to append the string to
+     * @return The length of the string that was read
+     * @throws IOException
+     * @throws DeniedOperationException
+     */
+    public synchronized int readString(StringBuilder builder) throws IOException, DeniedOperationException {
         int length = read16();
         for (int i = 0; i < length; i++) {
-            str += (char) read8();
+            builder.append((char) read8());
         }
 
-        return str;
+        return length;
+    }
+
+    /**
+     * Blocks until more data arrives and buffers as much of it as fits
+     *
+     * @return False if the end of the stream was reached
+     * @throws IOException
+     */
+    private boolean fill() throws IOException {
+        if (this.buffer == null) {
+            this.buffer = BufferPool.getShared().take();
+        }
+        int amount = getConnection().read(this.buffer, 0, this.buffer.length);
+        if (amount <= 0) {
+            releaseBuffer();
+            return false;
+        }
+        this.position = 0;
+        this.limit = amount;
+        return true;
+    }
+
+    private void releaseBuffer() {
+        if (this.buffer != null) {
+            BufferPool.getShared().give(this.buffer);
+            this.buffer = null;
+            this.position = 0;
+            this.limit = 0;
+        }
+    }
+
+    /**
+     * @return True if the stream is holding a buffer, which it only does
+     * while there is unread data in it
+     */
+    public synchronized boolean hasBuffer() {
+        return this.buffer != null;
+    }
+
+    /**
+     * @return The total amount of bytes read from this stream
+     */
+    public synchronized long getBytesRead() {
+        return this.bytes_read;
     }
 
     public synchronized boolean hasInput() throws IOException {
-        return this.inputStream.available() > 0;
+        return this.position != this.limit || getConnection().available() > 0;
     }
 
     public synchronized void wipe() throws Exception {
         getNetworkClient().EnsureSafe();
-        this.inputStream.skip(this.inputStream.available());
+        releaseBuffer();
+        // Only what has already arrived is dropped, anything still on its way is read as normal
+        int remaining = getConnection().available();
+        if (remaining > 0) {
+            byte[] discard = BufferPool.getShared().take();
+            try {
+                while (remaining > 0) {
+                    int amount = getConnection().read(discard, 0, Math.min(remaining, discard.length));
+                    if (amount <= 0) {
+                        break;
+                    }
+                    remaining -= amount;
+                }
+            } finally {
+                BufferPool.getShared().give(discard);
+            }
+        }
     }
 }
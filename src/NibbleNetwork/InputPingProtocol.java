@@ -22,10 +22,17 @@ package NibbleNetwork;
  */
 public class InputPingProtocol extends InputNetworkProtocol {
 
+    // Holds no state so every processor can share one
+    private static final InputPingProtocol shared = new InputPingProtocol();
+
     public InputPingProtocol() {
    
     }
 
+    public static InputPingProtocol getShared() {
+        return InputPingProtocol.shared;
+    }
+
     @Override
     public void process_input(NetworkClient networkClient, InputNetworkStream input_stream) throws Exception {
         networkClient.setLastRecievedPing(System.currentTimeMillis());
@@ -16,10 +16,31 @@
  */
 package NibbleNetwork;
 
+import NibbleNetwork.datagram.DatagramSession;
+import NibbleNetwork.events.DisconnectEvent;
+import NibbleNetwork.events.NetworkEvents;
 import NibbleNetwork.exceptions.DeniedOperationException;
+import NibbleNetwork.session.SessionConnection;
+import NibbleNetwork.transport.Connector;
+import NibbleNetwork.transport.TcpConnection;
+import NibbleNetwork.transport.Transport;
+import NibbleNetwork.transport.TransportConnection;
+import NibbleNetwork.transport.Transports;
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 /**
  *
@@ -27,39 +48,66 @@ import java.net.Socket;
  */
 public abstract class NetworkClient extends NetworkObject implements IProcessable {
 
-    private NetworkProcessor network_processor;
-    private Socket socket;
+    private static final AtomicLong next_client_id = new AtomicLong();
+
+    // Bits of state, packed into one field to keep idle clients small
+    private static final int INITIATED = 1;
+    private static final int READY = 2;
+    private static final int CONNECTED = 4;
+    private static final VarHandle STATE;
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(NetworkClient.class, "state", int.class);
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private final long client_id;
+    private volatile NetworkProcessor network_processor;
+    private TransportConnection connection;
     private InputNetworkStream input_stream;
     private OutputNetworkStream output_stream;
     private ConnectionHandler connection_handler;
-    private OutputPingProtocol ping_protocol;
-    protected boolean initiated;
-    protected boolean ready;
-    private boolean connected;
-    private long lastRecievedPing;
+    private volatile int state;
+    // Read by connection pools checking health from their own thread
+    private volatile long lastRecievedPing;
     private long lastSentPing;
+    private String disconnect_reason;
+    private volatile int weight;
+    // Deficit round robin counter for scheduled output, only touched by the processor thread
+    private int outbound_deficit;
+    private volatile InboundPublisher<?> inbound_publisher;
+    private volatile DatagramSession datagram_session;
 
     public NetworkClient(NetworkProcessor processor) throws Exception {
-        this(processor, null);
+        this(processor, (TransportConnection) null);
     }
 
     public NetworkClient(NetworkProcessor processor, Socket socket) throws IOException, Exception {
+        this(processor, socket == null ? null : new TcpConnection(socket));
+    }
+
+    public NetworkClient(NetworkProcessor processor, TransportConnection connection) throws Exception {
         if (processor == null) {
             throw new Exception("A client must have a processor");
         }
 
-        this.socket = socket;
-        if (socket != null) {
-            this.input_stream = new InputNetworkStream(this, socket);
-            this.output_stream = new OutputNetworkStream(this, socket);
+        this.client_id = next_client_id.incrementAndGet();
+        this.connection = connection;
+        if (connection != null) {
+            this.input_stream = new InputNetworkStream(this, connection);
+            this.output_stream = new OutputNetworkStream(this, connection);
         }
         this.network_processor = processor;
-        this.initiated = false;
-        this.ready = false;
+        this.state = 0;
         this.lastRecievedPing = System.currentTimeMillis();
         this.lastSentPing = 0;
-        this.ping_protocol = new OutputPingProtocol(this);
-
+        this.weight = 1;
+        this.outbound_deficit = 0;
+        this.inbound_publisher = null;
+        this.datagram_session = null;
     }
 
     public void connect(String host, int port) throws Exception {
@@ -67,53 +115,247 @@ public abstract class NetworkClient extends NetworkObject implements IProcessabl
     }
 
     public void connect(String host, int port, int timeout, boolean spawn_new_thread) throws Exception {
-        if (!hasConnectionHandler()) {
-            throw new Exception("You cannot connect without a connection handler");
-        }
+        connect(new InetSocketAddress(host, port), timeout, spawn_new_thread);
+    }
 
-        if (!(getConnectionHandler() instanceof ClientConnectionHandler)) {
-            throw new Exception("A client connection handler is expected when connecting");
+    public void connect(SocketAddress address) throws Exception {
+        connect(address, 1000, true);
+    }
+
+    /**
+     * Connects over the transport for the type of address, see
+     * {@link Transports}
+     *
+     * @param address
+     * @param timeout Milliseconds to wait for the connection and for reads
+     * @param spawn_new_thread True to connect in the background as
+     * {@link #connectAsync(SocketAddress, int)} does, false to block until
+     * connected
+     * @throws Exception
+     */
+    public void connect(final SocketAddress address, final int timeout, boolean spawn_new_thread) throws Exception {
+        ClientConnectionHandler client_connection_handler = getClientConnectionHandler();
+        if (spawn_new_thread) {
+            connectAsync(address, timeout);
+            return;
         }
+        try {
+            Transport transport = Transports.forAddress(address);
+            connected(transport.connect(address, timeout), client_connection_handler);
+        } catch (Exception ex) {
+            client_connection_handler.connection_problem(ex);
+        }
+    }
 
-        ClientConnectionHandler client_connection_handler = (ClientConnectionHandler) getConnectionHandler();
-        Runnable runnable = new Runnable() {
-            public void run() {
+    /**
+     * Connects without blocking or starting a thread, see {@link Connector}.
+     * The connection handler hears how it went just as it does for
+     * {@link #connect(SocketAddress, int, boolean)}.
+     *
+     * @param address
+     * @param timeout Milliseconds to wait for the connection and for reads
+     * @return Completed with this client once it is connected and set up
+     * @throws Exception If the client has no client connection handler
+     */
+    public CompletableFuture<NetworkClient> connectAsync(SocketAddress address, int timeout) throws Exception {
+        final ClientConnectionHandler client_connection_handler = getClientConnectionHandler();
+        final CompletableFuture<NetworkClient> result = new CompletableFuture<NetworkClient>();
+        Connector.getShared().connect(address, timeout).whenComplete(new BiConsumer<TransportConnection, Throwable>() {
+            @Override
+            public void accept(TransportConnection connection, Throwable problem) {
                 try {
-                    Socket sock = new Socket();
-                    sock.setSoTimeout(timeout);
-                    sock.connect(new InetSocketAddress(host, port));
-                    setSocket(sock);
-                    setConnected(true);
-                    Init();
-                    setProcessor(network_processor);
-                    client_connection_handler.connection(NetworkClient.this);
-                    initiated = true;
+                    if (problem != null) {
+                        throw problem instanceof Exception ? (Exception) problem : new Exception(problem);
+                    }
+                    connected(connection, client_connection_handler);
+                    result.complete(NetworkClient.this);
                 } catch (Exception ex) {
                     client_connection_handler.connection_problem(ex);
+                    result.completeExceptionally(ex);
                 }
             }
-        };
-        if (spawn_new_thread) {
-            new Thread(runnable).start();
-        } else {
-            runnable.run();
+        });
+        return result;
+    }
+
+    /**
+     * Connects every client to its address at once on the connector's few
+     * threads, for opening thousands of connections without a thread each.
+     * Clients that fail are told through their connection handlers as usual.
+     *
+     * @param targets
+     * @param timeout Milliseconds to wait for each connection and for reads
+     * @return Completed once every connect has finished with the clients that
+     * connected
+     * @throws Exception If a client has no client connection handler, in
+     * which case none are connected
+     */
+    public static CompletableFuture<List<NetworkClient>> connectAll(Map<? extends NetworkClient, ? extends SocketAddress> targets, int timeout) throws Exception {
+        for (NetworkClient client : targets.keySet()) {
+            client.getClientConnectionHandler();
         }
+
+        final CompletableFuture<List<NetworkClient>> result = new CompletableFuture<List<NetworkClient>>();
+        if (targets.isEmpty()) {
+            result.complete(new ArrayList<NetworkClient>());
+            return result;
+        }
+        final Queue<NetworkClient> connected = new ConcurrentLinkedQueue<NetworkClient>();
+        final AtomicInteger remaining = new AtomicInteger(targets.size());
+        for (Map.Entry<? extends NetworkClient, ? extends SocketAddress> target : targets.entrySet()) {
+            target.getKey().connectAsync(target.getValue(), timeout).whenComplete(new BiConsumer<NetworkClient, Throwable>() {
+                @Override
+                public void accept(NetworkClient client, Throwable problem) {
+                    if (client != null) {
+                        connected.add(client);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        result.complete(new ArrayList<NetworkClient>(connected));
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    private ClientConnectionHandler getClientConnectionHandler() throws Exception {
+        if (!hasConnectionHandler()) {
+            throw new Exception("You cannot connect without a connection handler");
+        }
+
+        if (!(getConnectionHandler() instanceof ClientConnectionHandler)) {
+            throw new Exception("A client connection handler is expected when connecting");
+        }
+        return (ClientConnectionHandler) getConnectionHandler();
+    }
+
+    private void connected(TransportConnection connection, ClientConnectionHandler client_connection_handler) throws Exception {
+        setConnection(connection);
+        setConnected(true);
+        Init();
+        setProcessor(network_processor);
+        client_connection_handler.connection(this);
+        setInitiated(true);
     }
 
     public void connect(String host, int port, int timeout) throws Exception {
         connect(host, port, timeout, true);
     }
 
+    private void setState(int flag, boolean on) {
+        int current;
+        do {
+            current = this.state;
+        } while (!STATE.compareAndSet(this, current, on ? current | flag : current & ~flag));
+    }
+
     protected void setConnected(boolean connected) {
-        this.connected = connected;
+        setState(CONNECTED, connected);
+    }
+
+    protected void setInitiated(boolean initiated) {
+        setState(INITIATED, initiated);
+    }
+
+    protected void setReady(boolean ready) {
+        setState(READY, ready);
+    }
+
+    /**
+     * @return An id unique to this client for the life of the JVM, it never
+     * changes and is never reused
+     */
+    public long getClientId() {
+        return this.client_id;
+    }
+
+    /**
+     * Sets this client's share of its processor. Each iteration a client may
+     * have as many frames processed as its weight and, when outbound frames
+     * are scheduled, as many bytes sent as its weight times the processor's
+     * outbound quantum. The default weight of one processes one frame per
+     * iteration.
+     *
+     * @param weight
+     */
+    public void setWeight(int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("A client's weight must be at least one");
+        }
+        this.weight = weight;
+    }
+
+    public int getWeight() {
+        return this.weight;
+    }
+
+    protected int getOutboundDeficit() {
+        return this.outbound_deficit;
+    }
+
+    protected void setOutboundDeficit(int outbound_deficit) {
+        this.outbound_deficit = outbound_deficit;
+    }
+
+    /**
+     * Attaches a publisher for frames from this client, replacing any before
+     * it. Normally called for you by the publisher's constructor.
+     *
+     * @param inbound_publisher
+     */
+    public synchronized void setInboundPublisher(InboundPublisher<?> inbound_publisher) {
+        this.inbound_publisher = inbound_publisher;
+    }
+
+    public InboundPublisher<?> getInboundPublisher() {
+        return this.inbound_publisher;
+    }
+
+    protected synchronized void detachInboundPublisher(InboundPublisher<?> inbound_publisher) {
+        if (this.inbound_publisher == inbound_publisher) {
+            this.inbound_publisher = null;
+        }
+    }
+
+    /**
+     * @return True if this client has a publisher whose subscriber has not
+     * asked for any more frames, the processor does not read the client while
+     * it is paused
+     */
+    public boolean isInboundPaused() {
+        InboundPublisher<?> publisher = this.inbound_publisher;
+        return publisher != null && !publisher.hasDemand();
+    }
+
+    /**
+     * Attaches a datagram session to this client, normally called for you by
+     * the datagram endpoint. Its frames are processed along with the frames
+     * from the connection and it is closed when the client disconnects.
+     *
+     * @param datagram_session
+     */
+    public synchronized void setDatagramSession(DatagramSession datagram_session) {
+        DatagramSession old_session = this.datagram_session;
+        this.datagram_session = datagram_session;
+        if (old_session != null && old_session != datagram_session) {
+            old_session.close();
+        }
+    }
+
+    public DatagramSession getDatagramSession() {
+        return this.datagram_session;
+    }
+
+    public boolean hasDatagramSession() {
+        return this.datagram_session != null;
     }
 
     public boolean hasInitiated() {
-        return this.initiated;
+        return (this.state & INITIATED) != 0;
     }
 
     public boolean isReady() {
-        return this.ready;
+        return (this.state & READY) != 0;
     }
 
     public void setConnectionHandler(ConnectionHandler connection_handler) {
@@ -141,38 +383,62 @@ public abstract class NetworkClient extends NetworkObject implements IProcessabl
     }
 
     public synchronized void setSocket(Socket socket) throws IOException {
-        this.socket = socket;
-        this.input_stream = new InputNetworkStream(this, socket);
-        this.output_stream = new OutputNetworkStream(this, socket);
+        setConnection(new TcpConnection(socket));
+    }
+
+    public synchronized void setConnection(TransportConnection connection) {
+        this.connection = connection;
+        this.input_stream = new InputNetworkStream(this, connection);
+        this.output_stream = new OutputNetworkStream(this, connection);
     }
 
-    public void setProcessor(NetworkProcessor processor) throws Exception {
+    /**
+     * Moves the client to the processor. The client becomes ready once the
+     * processor thread has welcomed it, when moving between processors the
+     * new one only takes the client after the old one has let go of it.
+     *
+     * @param processor
+     * @throws Exception
+     */
+    public void setProcessor(final NetworkProcessor processor) throws Exception {
         if (processor == null) {
             throw new Exception("A client must have a processor");
         }
-        ready = false;
-        synchronized (this.network_processor) {
-            // Lets remove the client from the old processor
-            if (this.network_processor.hasClient(this)) {
-                this.network_processor.removeClient(this);
-            }
-            this.network_processor = processor;
+        setReady(false);
+        final NetworkProcessor old_processor = this.network_processor;
+        this.network_processor = processor;
+        if (old_processor == processor) {
+            processor.addClient(this);
+            return;
         }
 
-        synchronized (processor) {
-            if (!processor.hasClient(this)) {
-                processor.addClient(this);
+        old_processor.submit(new ProcessorCommand() {
+            @Override
+            public void run() throws Exception {
+                old_processor.removeClient(NetworkClient.this);
+                processor.addClient(NetworkClient.this);
             }
-        }
-        ready = true;
+        });
     }
 
     public boolean hasSocket() {
-        return this.socket != null;
+        return getSocket() != null;
     }
 
+    /**
+     * @return The socket of this client or null if it is not connected over
+     * TCP
+     */
     public Socket getSocket() {
-        return this.socket;
+        return this.connection instanceof TcpConnection ? ((TcpConnection) this.connection).getSocket() : null;
+    }
+
+    public boolean hasConnection() {
+        return this.connection != null;
+    }
+
+    public TransportConnection getConnection() {
+        return this.connection;
     }
 
     public InputNetworkStream getInputStream() {
@@ -193,24 +459,69 @@ public abstract class NetworkClient extends NetworkObject implements IProcessabl
             throw new Exception("The client is not connected");
         }
         long curTime = System.currentTimeMillis();
+        SessionConnection session = this.connection instanceof SessionConnection ? (SessionConnection) this.connection : null;
+        if (isInboundPaused() || (session != null && session.isResumable())) {
+            // Pings are not read while paused or waiting for a resume, the timeout starts again from when we carry on
+            setLastRecievedPing(curTime);
+        }
         if (curTime - getLastRecievedPing() > 3000) {
+            if (session != null && session.detach()) {
+                // The link has gone quiet, keep the client while the session waits to be resumed
+                setLastRecievedPing(curTime);
+                return;
+            }
             // No ping for three seconds lets disconnect the client.
+            setDisconnectReason("No ping received for " + (curTime - getLastRecievedPing()) + "ms");
             disconnect();
             return;
         }
 
         if (curTime - getLastSentPing() > 500) {
             // Its been 500ms since the last ping lets send a ping.
-            ping_protocol.ping();
+            OutputPingProtocol.ping(this);
             this.lastSentPing = System.currentTimeMillis();
         }
     }
 
     public void disconnect() throws Exception {
+        if (NetworkEvents.DISCONNECT.isEnabled()) {
+            DisconnectEvent event = new DisconnectEvent();
+            if (event.shouldCommit()) {
+                event.client = toString();
+                event.reason = hasDisconnectReason() ? getDisconnectReason() : "Disconnect requested";
+                event.commit();
+            }
+        }
         priorDisconnection();
         getConnectionHandler().disconnection(this);
-        this.connected = false;
-        this.socket.close();
+        setConnected(false);
+        this.connection.close();
+        InboundPublisher<?> publisher = this.inbound_publisher;
+        if (publisher != null) {
+            publisher.complete();
+        }
+        DatagramSession session = this.datagram_session;
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * Sets why this client is about to be disconnected, the reason is kept for
+     * diagnostics and reported to the flight recorder
+     *
+     * @param reason
+     */
+    public void setDisconnectReason(String reason) {
+        this.disconnect_reason = reason;
+    }
+
+    public String getDisconnectReason() {
+        return this.disconnect_reason;
+    }
+
+    public boolean hasDisconnectReason() {
+        return this.disconnect_reason != null;
     }
 
     protected void setLastSentPing(long new_ping) {
@@ -230,7 +541,7 @@ public abstract class NetworkClient extends NetworkObject implements IProcessabl
     }
 
     public boolean isConnected() {
-        return this.connected;
+        return (this.state & CONNECTED) != 0;
     }
 
     public abstract void Init() throws Exception;
@@ -16,10 +16,62 @@
  */
 package NibbleNetwork;
 
+import NibbleNetwork.replication.ReplicationState;
+import NibbleNetwork.replication.SyncField;
+
 /**
+ * Something whose state can be replicated to clients. Subclasses register the
+ * fields to keep in sync from their constructor, a
+ * {@link NibbleNetwork.replication.Replicator} then sends each client only the
+ * fields that changed since the last snapshot the client acknowledged.
  *
  * @author dansb
  */
 public class NetworkObject {
-    
+
+    // Created by the first synced field so plain objects stay small
+    private volatile ReplicationState replication;
+
+    public NetworkObject() {
+        this.replication = null;
+    }
+
+    /**
+     * Registers a field to replicate, both sides must register the same
+     * fields in the same order
+     *
+     * @param <F>
+     * @param field
+     * @return The field
+     */
+    protected <F extends SyncField> F sync(F field) {
+        getReplication().add(field);
+        return field;
+    }
+
+    public ReplicationState getReplication() {
+        ReplicationState current = this.replication;
+        if (current == null) {
+            synchronized (this) {
+                if (this.replication == null) {
+                    this.replication = new ReplicationState(this);
+                }
+                current = this.replication;
+            }
+        }
+        return current;
+    }
+
+    public boolean isReplicated() {
+        ReplicationState current = this.replication;
+        return current != null && current.getObjectId() != -1;
+    }
+
+    /**
+     * @return Sent with the object when it is first replicated so the other
+     * side knows what to create
+     */
+    public int getObjectType() {
+        return 0;
+    }
 }
@@ -16,33 +16,142 @@
  */
 package NibbleNetwork;
 
-import java.util.ArrayList;
+import NibbleNetwork.datagram.DatagramSession;
+import NibbleNetwork.events.FrameReceivedEvent;
+import NibbleNetwork.events.NetworkEvents;
+import NibbleNetwork.events.ProcessorTickEvent;
+import NibbleNetwork.exceptions.UnknownProtocolException;
+import NibbleNetwork.idle.IdleStrategy;
+import NibbleNetwork.idle.SleepingIdleStrategy;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * A network processor owns its clients and protocols and is the only thread
+ * that changes them. Adding, removing and moving clients and changing
+ * protocols from other threads is queued as a {@link ProcessorCommand} and run
+ * by the processor thread at the top of its next iteration, so the processing
+ * loop itself never waits on a lock. When the processor has no thread
+ * commands run straight away on the caller.
+ *
+ * Each iteration a client gets as many inbound frames processed as its weight,
+ * control frames are not charged. With scheduled outbound turned on finished
+ * frames are queued per client and sent by the processor thread, most urgent
+ * {@link QosClass} first, using deficit round robin across clients with a
+ * quantum of the client's weight times the outbound quantum in bytes. A
+ * client's frames are only sent as fast as its connection takes them without
+ * blocking, so a slow client can not hold up the rest. A client whose queue
+ * would grow past the queued byte limit is disconnected.
+ *
+ * A client with a datagram session has every frame waiting in the session's
+ * inbox processed each iteration, and the session is flushed after the
+ * client's outbound frames.
+ *
+ * By default the processor sleeps briefly between iterations, an
+ * {@link IdleStrategy} can have it spin, yield, back off or wait to be woken
+ * instead. With a tick rate set it instead starts each iteration on a fixed
+ * deadline, running late ticks back to back to catch up, and tick listeners
+ * are called before and after the clients are processed.
  *
  * @author dansb
  */
 public abstract class NetworkProcessor implements Runnable, IProcessable {
 
-    private final ArrayList<InputNetworkProtocol> input_protocols;
-    private boolean is_running;
-    private Thread thread;
+    public static final int DEFAULT_OUTBOUND_QUANTUM = 4096;
+    public static final int DEFAULT_MAX_CATCH_UP_TICKS = 5;
+    // Control frames a client may have processed each iteration before they are charged like any other
+    private static final int FREE_CONTROL_FRAMES = 4;
+
+    private final List<InputNetworkProtocol> input_protocols;
+    // Indexed by protocol id, never changed once published, replaced whole when the protocols change
+    private volatile InputNetworkProtocol[] dispatch_table;
+    private volatile UnknownProtocolPolicy unknown_protocol_policy;
+    private volatile long unknown_protocols;
+    // Indexed by protocol id, replaced whole like the dispatch table
+    private volatile QosClass[] qos_classes;
+    private volatile boolean scheduled_outbound;
+    private volatile int outbound_quantum;
+    private volatile long max_queued_bytes;
+    private long iteration_queued_bytes;
+    private volatile long outbound_queued_bytes;
+    private final Queue<ProcessorCommand> commands;
+    private final List<TickListener> tick_listeners;
+    // Guards starting and stopping the thread and deciding whether a command is queued or run inline
+    private final Object lifecycle_lock;
+    private volatile boolean is_running;
+    // True from starting a thread until that thread has run its last command and exited
+    private boolean thread_active;
+    private volatile Thread thread;
     private final NetworkServer server;
+    // What the processor thread is doing right now, read by the stall detector
+    private volatile long iteration_started;
+    private volatile long last_iteration_duration;
+    private volatile NetworkClient current_client;
+    private volatile int current_protocol_id;
+    private volatile long total_stalls;
+    // Nanoseconds between ticks, zero when the processor runs freely
+    private volatile long tick_interval;
+    private volatile int max_catch_up_ticks;
+    private volatile IdleStrategy idle_strategy;
+    // Frames and commands handled this iteration, only touched by the processor thread
+    private int iteration_work;
+    // Only touched by the processor thread
+    private long tick_deadline;
+    private long scheduled_interval;
+    private volatile long tick_count;
+    private volatile long total_ticks;
+    private volatile long tick_overruns;
+    private volatile long late_ticks;
+    private volatile long skipped_ticks;
+    private volatile long max_tick_lateness;
+    private volatile long total_tick_lateness;
+    private volatile long max_tick_duration;
 
     public NetworkProcessor() throws Exception {
         this(null);
     }
 
     public NetworkProcessor(NetworkServer server) throws Exception {
-        input_protocols = new ArrayList<InputNetworkProtocol>();
+        input_protocols = new CopyOnWriteArrayList<InputNetworkProtocol>();
+        commands = new ConcurrentLinkedQueue<ProcessorCommand>();
+        tick_listeners = new CopyOnWriteArrayList<TickListener>();
+        lifecycle_lock = new Object();
 
         // Add the ping protocol to the network processor to handle incoming pings.
-        input_protocols.add(new InputPingProtocol());
+        input_protocols.add(InputPingProtocol.getShared());
+        rebuildDispatchTable();
+        unknown_protocol_policy = UnknownProtocolPolicy.DISCONNECT;
+        unknown_protocols = 0;
+        qos_classes = new QosClass[Protocols.MAX_PROTOCOL_ID + 1];
+        Arrays.fill(qos_classes, QosClass.INTERACTIVE);
+        qos_classes[Protocols.PING_PROTOCOL] = QosClass.CONTROL;
+        scheduled_outbound = false;
+        outbound_quantum = DEFAULT_OUTBOUND_QUANTUM;
+        max_queued_bytes = 0;
+        iteration_queued_bytes = 0;
+        outbound_queued_bytes = 0;
         is_running = false;
+        thread_active = false;
         this.server = server;
+        iteration_started = 0;
+        last_iteration_duration = 0;
+        current_client = null;
+        current_protocol_id = -1;
+        total_stalls = 0;
+        tick_interval = 0;
+        max_catch_up_ticks = DEFAULT_MAX_CATCH_UP_TICKS;
+        idle_strategy = new SleepingIdleStrategy();
+        iteration_work = 0;
+        tick_deadline = 0;
+        scheduled_interval = 0;
+        tick_count = 0;
+        clearTickStats();
     }
 
     public static NetworkProcessor Create(Class c, NetworkServer server) throws Exception {
@@ -72,45 +181,147 @@ public abstract class NetworkProcessor implements Runnable, IProcessable {
         return this.server;
     }
 
-    public synchronized void startThread() {
-        if (is_running) {
-            throw new RuntimeException("There is already a thread running");
+    public void startThread() {
+        synchronized (lifecycle_lock) {
+            if (is_running) {
+                throw new RuntimeException("There is already a thread running");
+            }
+            is_running = true;
+            if (!thread_active) {
+                thread_active = true;
+                thread = new Thread(this);
+                thread.start();
+            }
+            // Otherwise the thread is still finishing up and will carry on now it has seen it is running again
         }
-        is_running = true;
-        thread = new Thread(this);
-        thread.start();
     }
 
-    public synchronized void stopThread() {
-        if (!is_running) {
-            throw new RuntimeException("No thread is running");
+    public void stopThread() {
+        synchronized (lifecycle_lock) {
+            if (!is_running) {
+                throw new RuntimeException("No thread is running");
+            }
+            is_running = false;
+            LockSupport.unpark(thread);
         }
-        is_running = false;
     }
 
+    /**
+     * @return The thread running this processor, or the last one that did if
+     * the processor has since stopped
+     */
     public Thread getThread() {
         return this.thread;
     }
 
-    public synchronized boolean isRunning() {
+    public boolean isRunning() {
         return is_running;
     }
 
+    /**
+     * Runs the command on the processor thread before its next iteration. If
+     * called on the processor thread, or the processor has no thread, the
+     * command is run straight away.
+     *
+     * Problems with queued commands cannot reach the caller, commands that
+     * concern a client should report them through the client's connection
+     * handler.
+     *
+     * @param command
+     * @throws Exception If the command was run straight away and failed
+     */
+    public void submit(ProcessorCommand command) throws Exception {
+        if (Thread.currentThread() == thread) {
+            command.run();
+            return;
+        }
+
+        synchronized (lifecycle_lock) {
+            if (thread_active) {
+                commands.add(command);
+                LockSupport.unpark(thread);
+                return;
+            }
+            // No thread can start while we hold the lock so nothing else is touching our state
+            command.run();
+        }
+    }
+
+    private void runCommands() {
+        ProcessorCommand command = commands.poll();
+        if (command == null) {
+            return;
+        }
+        // Commands run welcomes and connection handlers so they are timed for the stall detector like an iteration
+        iteration_started = System.nanoTime() | 1;
+        current_client = null;
+        current_protocol_id = -1;
+        try {
+            do {
+                iteration_work++;
+                try {
+                    command.run();
+                } catch (Exception ex) {
+                    Logger.getLogger(NetworkProcessor.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            } while ((command = commands.poll()) != null);
+        } finally {
+            iteration_started = 0;
+            current_client = null;
+        }
+    }
+
+    /**
+     * Reports the problem to the client's connection handler and disconnects
+     * the client
+     *
+     * @param client
+     * @param ex
+     */
+    protected void clientProblem(NetworkClient client, Exception ex) {
+        NetworkClient previous = current_client;
+        current_client = client;
+        try {
+            if (client.hasConnectionHandler()) {
+                client.getConnectionHandler().connection_problem(ex);
+            }
+            InboundPublisher<?> publisher = client.getInboundPublisher();
+            if (publisher != null) {
+                publisher.error(ex);
+            }
+            if (client.isConnected()) {
+                client.setDisconnectReason(ex.toString());
+                client.disconnect();
+            }
+        } catch (Exception ex2) {
+            Logger.getLogger(NetworkProcessor.class.getName()).log(Level.SEVERE, null, ex2);
+        } finally {
+            current_client = previous;
+        }
+    }
+
     /**
      * Handles the new client and starts the processor thread if it is not
-     * already running
+     * already running, called from a command
      *
      * @param client
      * @throws Exception
      */
-    protected synchronized void handleNewClient(NetworkClient client) throws Exception {
+    protected void handleNewClient(NetworkClient client) throws Exception {
 
         if (client.getNetworkProcessor() != this) {
             client.setProcessor(this);
         }
 
         // Welcome the new client to the processor
-        welcome(client);
+        NetworkClient previous = current_client;
+        current_client = client;
+        try {
+            welcome(client);
+        } finally {
+            current_client = previous;
+        }
+        client.setReady(true);
 
         // Start the processor thread if required
         if (!isRunning()) {
@@ -118,73 +329,404 @@ public abstract class NetworkProcessor implements Runnable, IProcessable {
         }
     }
 
-    protected synchronized void handleClientThatLeft(NetworkClient client) throws Exception {
-        clientRemoved(client);
+    protected void handleClientThatLeft(NetworkClient client) throws Exception {
+        NetworkClient previous = current_client;
+        current_client = client;
+        try {
+            clientRemoved(client);
+        } finally {
+            current_client = previous;
+        }
         if (isRunning() && !hasClients()) {
             stopThread();
         }
     }
 
     protected void processProtocolsForClient(NetworkClient client) throws Exception {
-        InputNetworkStream input_stream = client.getInputStream();
+        processFrame(client, client.getInputStream());
+    }
+
+    /**
+     * Processes the next frame from the stream if one has arrived
+     *
+     * @param client
+     * @param input_stream The client's own stream or its datagram session's
+     * @return The protocol id of the frame or -1 if there was no input
+     * @throws Exception
+     */
+    private int processFrame(NetworkClient client, InputNetworkStream input_stream) throws Exception {
         // Lets process the client with all its protocols if we have data
         synchronized (input_stream) {
-            if (input_stream.hasInput()) {
-                int protocol_id = input_stream.read8();
-                InputNetworkProtocol protocol = getInputProtocolById(protocol_id);
-                protocol.process_input(client, input_stream);
+            if (!input_stream.hasInput()) {
+                return -1;
+            }
+            iteration_work++;
+            FrameReceivedEvent event = null;
+            if (NetworkEvents.FRAME_RECEIVED.isEnabled()) {
+                event = new FrameReceivedEvent();
+                event.begin();
+            }
+            long frame_start = input_stream.getBytesRead();
+            int protocol_id = input_stream.read8();
+            InboundPublisher<?> publisher = client.getInboundPublisher();
+            InputNetworkProtocol protocol = null;
+            if (publisher == null || publisher.getProtocolId() != protocol_id) {
+                protocol = findInputProtocol(protocol_id);
+                if (protocol == null) {
+                    unknownProtocol(input_stream, protocol_id);
+                    return protocol_id;
+                }
+            }
+            current_protocol_id = protocol_id;
+            try {
+                if (protocol != null) {
+                    protocol.process_input(client, input_stream);
+                } else {
+                    publisher.publish(input_stream);
+                }
+            } finally {
+                current_protocol_id = -1;
+            }
+            if (event != null) {
+                event.end();
+                if (event.shouldCommit()) {
+                    event.protocolId = protocol_id;
+                    event.size = input_stream.getBytesRead() - frame_start;
+                    event.client = client.toString();
+                    event.commit();
+                }
+            }
+            return protocol_id;
+        }
+    }
+
+    /**
+     * Processes up to the client's weight in frames, control frames are free
+     * up to a point so pings still get through to a busy client. Nothing is
+     * read while the client's publisher has no demand.
+     *
+     * @param client
+     * @throws Exception
+     */
+    private void processInbound(NetworkClient client) throws Exception {
+        int quantum = client.getWeight();
+        int free_control_frames = FREE_CONTROL_FRAMES;
+        while (quantum > 0 && client.isConnected() && !client.isInboundPaused()) {
+            int protocol_id = processFrame(client, client.getInputStream());
+            if (protocol_id == -1) {
+                break;
+            }
+            if (free_control_frames > 0 && getQosClass(protocol_id) == QosClass.CONTROL) {
+                free_control_frames--;
+                continue;
+            }
+            quantum--;
+        }
+
+        DatagramSession session = client.getDatagramSession();
+        if (session != null) {
+            // Datagram frames are already bounded by the inbox and are late if left for another iteration
+            InputNetworkStream datagram_stream = session.getInputStream();
+            while (client.isConnected() && !client.isInboundPaused()) {
+                if (processFrame(client, datagram_stream) == -1) {
+                    break;
+                }
             }
         }
     }
 
+    /**
+     * Sends the client's queued frames using deficit round robin, a client
+     * that overran its quantum with a large frame gets less next time and an
+     * idle client does not bank its quantum. Nor does a client whose
+     * connection is full, it is left with at most one quantum.
+     *
+     * @param client
+     * @throws Exception
+     */
+    private void processOutbound(NetworkClient client) throws Exception {
+        OutputNetworkStream output_stream = client.getOutputStream();
+        if (output_stream.isOverflowed()) {
+            throw new Exception("The client was sent a frame that would have taken it past the queued byte limit of " + this.max_queued_bytes);
+        }
+        if (!output_stream.hasQueuedFrames()) {
+            client.setOutboundDeficit(0);
+            return;
+        }
+
+        int quantum = client.getWeight() * this.outbound_quantum;
+        int deficit = client.getOutboundDeficit() + quantum;
+        int drained = output_stream.drain(deficit);
+        if (drained != 0) {
+            iteration_work++;
+        }
+        deficit -= drained;
+        if (output_stream.isSendingBlocked()) {
+            deficit = Math.min(deficit, quantum);
+        }
+        long queued_bytes = output_stream.getQueuedBytes();
+        client.setOutboundDeficit(output_stream.hasQueuedFrames() ? deficit : 0);
+        this.iteration_queued_bytes += queued_bytes;
+        if (this.max_queued_bytes != 0 && queued_bytes > this.max_queued_bytes) {
+            throw new Exception("The client has " + queued_bytes + " bytes queued, more than the limit of " + this.max_queued_bytes);
+        }
+    }
+
+    /**
+     * Sends everything the client's datagram session has waiting, queued
+     * frames are not charged as datagrams are already limited by the MTU
+     * batching and are worthless once late
+     *
+     * @param client
+     * @throws Exception
+     */
+    private void processDatagramOutbound(NetworkClient client) throws Exception {
+        DatagramSession session = client.getDatagramSession();
+        if (session == null) {
+            return;
+        }
+        OutputNetworkStream output_stream = session.getOutputStream();
+        if (output_stream.hasQueuedFrames()) {
+            output_stream.drain(Integer.MAX_VALUE);
+        }
+        session.flush();
+    }
+
+    private void unknownProtocol(InputNetworkStream input_stream, int protocol_id) throws Exception {
+        // Only the processor thread writes this
+        unknown_protocols++;
+        switch (unknown_protocol_policy) {
+            case IGNORE:
+                break;
+            case WIPE:
+                input_stream.wipe();
+                break;
+            default:
+                throw new UnknownProtocolException(protocol_id);
+        }
+    }
+
+    /**
+     * Sets the class of the protocol id, used for frames in both directions.
+     * Every id is interactive apart from ping which is control.
+     *
+     * @param protocol_id
+     * @param qos_class
+     * @throws Exception
+     */
+    public void setQosClass(final int protocol_id, final QosClass qos_class) throws Exception {
+        if (protocol_id < 0 || protocol_id > Protocols.MAX_PROTOCOL_ID) {
+            throw new Exception("Protocol id's must be within the 0-" + Protocols.MAX_PROTOCOL_ID + " range");
+        }
+        if (qos_class == null) {
+            throw new IllegalArgumentException("The QoS class may not be null");
+        }
+        submit(new ProcessorCommand() {
+            @Override
+            public void run() throws Exception {
+                QosClass[] table = qos_classes.clone();
+                table[protocol_id] = qos_class;
+                qos_classes = table;
+            }
+        });
+    }
+
+    public QosClass getQosClass(int protocol_id) {
+        if (protocol_id < 0 || protocol_id > Protocols.MAX_PROTOCOL_ID) {
+            return QosClass.INTERACTIVE;
+        }
+        return this.qos_classes[protocol_id];
+    }
+
+    /**
+     * When scheduled, finished frames are queued and sent by the processor
+     * thread instead of by the thread that finished them. Frames already
+     * queued are still sent after turning it off.
+     *
+     * @param scheduled_outbound
+     */
+    public void setScheduledOutbound(boolean scheduled_outbound) {
+        this.scheduled_outbound = scheduled_outbound;
+    }
+
+    public boolean isScheduledOutbound() {
+        return this.scheduled_outbound;
+    }
+
+    /**
+     * @param outbound_quantum Bytes a client of weight one may be sent each
+     * iteration when outbound frames are scheduled
+     */
+    public void setOutboundQuantum(int outbound_quantum) {
+        if (outbound_quantum < 1) {
+            throw new IllegalArgumentException("The outbound quantum must be at least one byte");
+        }
+        this.outbound_quantum = outbound_quantum;
+    }
+
+    public int getOutboundQuantum() {
+        return this.outbound_quantum;
+    }
+
+    /**
+     * Limits the memory a slow client can hold. A frame that would take a
+     * client's queue past this many bytes is refused, the sender gets an
+     * IOException, and the client is disconnected on its next turn. Conflated
+     * frames only count once however often they are replaced.
+     *
+     * @param max_queued_bytes Bytes, zero for no limit
+     */
+    public void setMaxQueuedBytes(long max_queued_bytes) {
+        if (max_queued_bytes < 0) {
+            throw new IllegalArgumentException("The queued byte limit can not be negative");
+        }
+        this.max_queued_bytes = max_queued_bytes;
+    }
+
+    public long getMaxQueuedBytes() {
+        return this.max_queued_bytes;
+    }
+
+    /**
+     * @return How many bytes were left queued across all clients at the end of
+     * the last iteration
+     */
+    public long getOutboundQueuedBytes() {
+        return this.outbound_queued_bytes;
+    }
+
+    public void setUnknownProtocolPolicy(UnknownProtocolPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("The unknown protocol policy may not be null");
+        }
+        this.unknown_protocol_policy = policy;
+    }
+
+    public UnknownProtocolPolicy getUnknownProtocolPolicy() {
+        return this.unknown_protocol_policy;
+    }
+
+    /**
+     * @return How many frames have arrived with an id that has no protocol
+     */
+    public long getTotalUnknownProtocols() {
+        return this.unknown_protocols;
+    }
+
     public void process_client(NetworkClient c) throws Exception {
-        synchronized (c) {
-            if (c.isConnected()) {
-                try {
-                    processProtocolsForClient(c);
-                    if (c.isConnected()) {
-                        c.process();
+        current_client = c;
+        try {
+            synchronized (c) {
+                if (c.isConnected()) {
+                    try {
+                        processInbound(c);
+                        if (c.isConnected()) {
+                            c.process();
+                        }
+                        if (c.isConnected()) {
+                            processOutbound(c);
+                        }
+                        if (c.isConnected()) {
+                            processDatagramOutbound(c);
+                        }
+                    } catch (Exception ex) {
+                        clientProblem(c, ex);
                     }
-                } catch (Exception ex) {
-                    c.getConnectionHandler().connection_problem(ex);
-                    c.disconnect();
+                } else {
+                    // Remove the client as they are not connected
+                    removeClient(c);
                 }
-            } else {
-                // Remove the client as they are not connected
-                removeClient(c);
             }
+        } finally {
+            current_client = null;
         }
     }
 
-    public synchronized void addInputProtocol(InputNetworkProtocol protocol) throws Exception {
+    /**
+     * Adds the protocol, once the processor thread gets to it if the processor
+     * is running
+     *
+     * @param protocol
+     * @throws Exception
+     */
+    public void addInputProtocol(final InputNetworkProtocol protocol) throws Exception {
         if (hasInputProtocol(protocol)) {
             throw new Exception("The protocol is already apart of this network processor");
         }
+        if (protocol.getId() < 0 || protocol.getId() > Protocols.MAX_PROTOCOL_ID) {
+            throw new Exception("Protocol id's must be within the 0-" + Protocols.MAX_PROTOCOL_ID + " range. " + protocol.getClass().getName());
+        }
         if (protocol.getId() == 0 && !(protocol instanceof InputPingProtocol)) {
             throw new Exception("The protocol ID of zero is reserved for pinging. " + protocol.getClass().getName());
         }
-        input_protocols.add(protocol);
+        submit(new ProcessorCommand() {
+            @Override
+            public void run() throws Exception {
+                if (!hasInputProtocol(protocol)) {
+                    input_protocols.add(protocol);
+                    rebuildDispatchTable();
+                }
+            }
+        });
     }
 
-    public synchronized ArrayList<InputNetworkProtocol> getInputProtocols() {
+    /**
+     * @return The protocols of this processor, safe to read from any thread
+     */
+    public List<InputNetworkProtocol> getInputProtocols() {
         return this.input_protocols;
     }
 
-    public synchronized void removeInputProtocol(InputNetworkProtocol protocol) {
-        this.input_protocols.remove(protocol);
+    public void removeInputProtocol(final InputNetworkProtocol protocol) throws Exception {
+        submit(new ProcessorCommand() {
+            @Override
+            public void run() throws Exception {
+                if (input_protocols.remove(protocol)) {
+                    rebuildDispatchTable();
+                }
+            }
+        });
     }
 
-    public synchronized InputNetworkProtocol getInputProtocolById(int protocol_id) throws Exception {
-        for (InputNetworkProtocol protocol : getInputProtocols()) {
-            if (protocol.getId() == protocol_id) {
-                return protocol;
-            }
+    public InputNetworkProtocol getInputProtocolById(int protocol_id) throws Exception {
+        InputNetworkProtocol protocol = findInputProtocol(protocol_id);
+        if (protocol == null) {
+            throw new UnknownProtocolException(protocol_id);
         }
+        return protocol;
+    }
 
-        throw new Exception("No protocol could be found with the id: " + protocol_id);
+    /**
+     * Finds the input protocol with the given id without locking or
+     * allocating
+     *
+     * @param protocol_id
+     * @return The protocol or null if there is no protocol with this id
+     */
+    public InputNetworkProtocol findInputProtocol(int protocol_id) {
+        if (protocol_id < 0 || protocol_id > Protocols.MAX_PROTOCOL_ID) {
+            return null;
+        }
+        return this.dispatch_table[protocol_id];
     }
 
-    public synchronized boolean hasInputProtocol(InputNetworkProtocol protocol) {
+    /**
+     * Builds a new dispatch table from the registered protocols and swaps it
+     * in, readers see either the old table or the new one
+     */
+    private void rebuildDispatchTable() {
+        InputNetworkProtocol[] table = new InputNetworkProtocol[Protocols.MAX_PROTOCOL_ID + 1];
+        for (InputNetworkProtocol protocol : this.input_protocols) {
+            int id = protocol.getId();
+            // When ids clash the first protocol registered wins
+            if (id >= 0 && id < table.length && table[id] == null) {
+                table[id] = protocol;
+            }
+        }
+        this.dispatch_table = table;
+    }
+
+    public boolean hasInputProtocol(InputNetworkProtocol protocol) {
         for (InputNetworkProtocol p : getInputProtocols()) {
             if (p == protocol) {
                 return true;
@@ -196,19 +738,318 @@ public abstract class NetworkProcessor implements Runnable, IProcessable {
 
     @Override
     public void run() {
-        while (isRunning()) {
+        while (true) {
+            iteration_work = 0;
+            runCommands();
+            if (!isRunning()) {
+                synchronized (lifecycle_lock) {
+                    // Nothing more can be queued once we let go of the thread, run whatever made it in
+                    runCommands();
+                    if (!isRunning()) {
+                        thread_active = false;
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            long interval = tick_interval;
+            long lateness = 0;
+            if (interval != 0) {
+                lateness = awaitTick(interval);
+                if (lateness < 0) {
+                    // Woken before the deadline, run whatever woke us and wait again
+                    continue;
+                }
+            } else {
+                scheduled_interval = 0;
+            }
+
             try {
-                synchronized (this) {
+                ProcessorTickEvent event = null;
+                if (NetworkEvents.PROCESSOR_TICK.isEnabled()) {
+                    event = new ProcessorTickEvent();
+                    event.begin();
+                }
+                // Zero is reserved for idle so make sure we never store it
+                long started = System.nanoTime() | 1;
+                iteration_started = started;
+                iteration_queued_bytes = 0;
+                try {
+                    beforeTickListeners();
                     process();
+                    tickListeners();
+                } finally {
+                    iteration_started = 0;
+                    outbound_queued_bytes = iteration_queued_bytes;
+                    last_iteration_duration = System.nanoTime() - started;
+                    tickFinished(interval, lateness, last_iteration_duration);
+                }
+                if (event != null) {
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.processor = getClass().getName();
+                        event.clients = getTotalClients();
+                        event.lateness = lateness;
+                        event.commit();
+                    }
                 }
-                Thread.sleep(10);
+            } catch (Exception ex) {
+                Logger.getLogger(NetworkProcessor.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            if (interval == 0) {
+                idle();
+            }
+        }
+    }
+
+    private void idle() {
+        try {
+            idle_strategy.idle(iteration_work);
+        } catch (Exception ex) {
+            Logger.getLogger(NetworkProcessor.class.getName()).log(Level.SEVERE, null, ex);
+            // A broken strategy must not leave us spinning
+            LockSupport.parkNanos(this, SleepingIdleStrategy.DEFAULT_PARK);
+        }
+    }
+
+    /**
+     * Parks until the next tick is due. Ticks that fall behind are run back to
+     * back until the schedule is caught up, unless the processor is more than
+     * the maximum catch up ticks behind in which case the missed ticks are
+     * dropped and the schedule starts again from now.
+     *
+     * @param interval
+     * @return How late the tick is starting in nanoseconds, or -1 if the
+     * processor was woken before the deadline
+     */
+    private long awaitTick(long interval) {
+        long now = System.nanoTime();
+        if (interval != scheduled_interval) {
+            // The first tick at a new rate is due straight away
+            scheduled_interval = interval;
+            tick_deadline = now;
+        }
+
+        long lateness = now - tick_deadline;
+        if (lateness < 0) {
+            // Submitting a command or stopping the thread wakes us early
+            LockSupport.parkNanos(this, -lateness);
+            return -1;
+        }
+
+        if (lateness >= interval) {
+            long behind = lateness / interval;
+            if (behind > max_catch_up_ticks) {
+                skipped_ticks += behind;
+                tick_deadline = now;
+            } else {
+                late_ticks++;
+            }
+        }
+        tick_deadline += interval;
+        return lateness;
+    }
+
+    private void tickFinished(long interval, long lateness, long duration) {
+        tick_count++;
+        total_ticks++;
+        total_tick_lateness += lateness;
+        if (lateness > max_tick_lateness) {
+            max_tick_lateness = lateness;
+        }
+        if (duration > max_tick_duration) {
+            max_tick_duration = duration;
+        }
+        if (interval != 0 && duration > interval) {
+            tick_overruns++;
+        }
+    }
+
+    private void clearTickStats() {
+        total_ticks = 0;
+        tick_overruns = 0;
+        late_ticks = 0;
+        skipped_ticks = 0;
+        max_tick_lateness = 0;
+        total_tick_lateness = 0;
+        max_tick_duration = 0;
+    }
+
+    private void beforeTickListeners() {
+        for (TickListener listener : tick_listeners) {
+            try {
+                listener.beforeTick(this);
             } catch (Exception ex) {
                 Logger.getLogger(NetworkProcessor.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
     }
 
-    public synchronized boolean hasClients() {
+    private void tickListeners() {
+        for (TickListener listener : tick_listeners) {
+            try {
+                listener.tick(this);
+            } catch (Exception ex) {
+                Logger.getLogger(NetworkProcessor.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Sets what the processor thread does between iterations when it has no
+     * tick rate, by default it parks for 10ms after every iteration
+     *
+     * @param idle_strategy A strategy used by this processor alone
+     */
+    public void setIdleStrategy(IdleStrategy idle_strategy) {
+        if (idle_strategy == null) {
+            throw new IllegalArgumentException("The idle strategy may not be null");
+        }
+        this.idle_strategy = idle_strategy;
+        wake();
+    }
+
+    public IdleStrategy getIdleStrategy() {
+        return this.idle_strategy;
+    }
+
+    /**
+     * Cuts short whatever wait the processor thread is in so it runs its next
+     * iteration now, for anything that has made work for the processor it
+     * would otherwise only find when it next polls
+     */
+    public void wake() {
+        Thread processor_thread = this.thread;
+        if (processor_thread != null && processor_thread != Thread.currentThread()) {
+            LockSupport.unpark(processor_thread);
+        }
+    }
+
+    /**
+     * Runs the processor at a fixed rate instead of as fast as it can with a
+     * short sleep between iterations. Each tick is started on a deadline so a
+     * simulation stepped by a tick listener sees a steady tick interval, while
+     * commands submitted between ticks are still run straight away.
+     *
+     * @param tick_rate Ticks per second, zero to run freely
+     */
+    public void setTickRate(int tick_rate) {
+        if (tick_rate < 0 || tick_rate > 1000000000) {
+            throw new IllegalArgumentException("The tick rate must be between zero and one billion");
+        }
+        this.tick_interval = tick_rate == 0 ? 0 : 1000000000L / tick_rate;
+        wake();
+    }
+
+    /**
+     * @return Nanoseconds between ticks or zero if the processor runs freely
+     */
+    public long getTickInterval() {
+        return this.tick_interval;
+    }
+
+    public boolean hasTickRate() {
+        return this.tick_interval != 0;
+    }
+
+    /**
+     * Limits how far behind a fixed tick rate the processor may fall and still
+     * catch up by running ticks back to back, beyond this the missed ticks are
+     * skipped
+     *
+     * @param max_catch_up_ticks
+     */
+    public void setMaxCatchUpTicks(int max_catch_up_ticks) {
+        if (max_catch_up_ticks < 0) {
+            throw new IllegalArgumentException("The maximum catch up ticks can not be negative");
+        }
+        this.max_catch_up_ticks = max_catch_up_ticks;
+    }
+
+    public int getMaxCatchUpTicks() {
+        return this.max_catch_up_ticks;
+    }
+
+    /**
+     * @return How many ticks the processor has run, the tick listeners can use
+     * this as the simulation tick number
+     */
+    public long getTickCount() {
+        return this.tick_count;
+    }
+
+    public TickStats getTickStats() {
+        return new TickStats(total_ticks, tick_overruns, late_ticks, skipped_ticks, max_tick_lateness, total_tick_lateness, max_tick_duration);
+    }
+
+    public void resetTickStats() throws Exception {
+        submit(new ProcessorCommand() {
+            @Override
+            public void run() throws Exception {
+                clearTickStats();
+            }
+        });
+    }
+
+    /**
+     * Adds a listener called at the start and end of every iteration on the
+     * processor thread
+     *
+     * @param listener
+     */
+    public void addTickListener(TickListener listener) {
+        if (!tick_listeners.contains(listener)) {
+            tick_listeners.add(listener);
+        }
+    }
+
+    public void removeTickListener(TickListener listener) {
+        tick_listeners.remove(listener);
+    }
+
+    /**
+     * @return The System.nanoTime() the current iteration started at or zero if
+     * the processor is between iterations
+     */
+    public long getIterationStarted() {
+        return this.iteration_started;
+    }
+
+    /**
+     * @return How long the last finished iteration took in nanoseconds
+     */
+    public long getLastIterationDuration() {
+        return this.last_iteration_duration;
+    }
+
+    /**
+     * @return The client the processor thread is currently processing or null
+     */
+    public NetworkClient getCurrentClient() {
+        return this.current_client;
+    }
+
+    /**
+     * @return The id of the input protocol currently being processed or -1
+     */
+    public int getCurrentProtocolId() {
+        return this.current_protocol_id;
+    }
+
+    /**
+     * @return How many stalls a stall detector has reported for this processor
+     */
+    public long getTotalStalls() {
+        return this.total_stalls;
+    }
+
+    protected void stallDetected() {
+        // Only ever written by the detector thread
+        this.total_stalls++;
+    }
+
+    public boolean hasClients() {
         return getTotalClients() != 0;
     }
 
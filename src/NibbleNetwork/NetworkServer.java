@@ -16,32 +16,79 @@
  */
 package NibbleNetwork;
 
+import NibbleNetwork.events.AcceptEvent;
+import NibbleNetwork.exceptions.ConnectionRejectedException;
 import NibbleNetwork.exceptions.NetworkException;
+import NibbleNetwork.transport.TcpConnection;
+import NibbleNetwork.transport.Transport;
+import NibbleNetwork.transport.TransportConnection;
+import NibbleNetwork.transport.TransportListener;
+import NibbleNetwork.transport.Transports;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Listens on any address a {@link Transport} supports, TCP for an
+ * InetSocketAddress and Unix domain sockets for a UnixDomainSocketAddress.
+ *
+ * Connections are accepted by one or more acceptor threads, each waiting on
+ * its own selector, or blocked in accept for transports without a selectable
+ * channel. Setting up an accepted connection (the connection
+ * handler, Init and handing the client to its processor) runs on a bounded
+ * pool of handshake threads with a bounded queue, so a connect storm queues
+ * up instead of creating a thread per socket. When the queue is full new
+ * connections are closed straight away and reported as a connection problem.
+ * A failed accept is reported too, the acceptor carries on after a short
+ * pause.
  *
  * @author dansb
  */
 public class NetworkServer {
 
+    // Milliseconds an acceptor waits after a failed accept before trying again
+    private static final long ACCEPT_BACKOFF = 100;
+
     private static NetworkServer activeServer = null;
-    private ServerSocket server_sock;
     private ServerConnectionHandler connection_handler;
-    private final List<ServerNetworkClient> clients;
-    private Thread accepting_thread;
+    private AdmissionController admission_controller;
+    private final ClientRegistry<ServerNetworkClient> clients;
+    private final List<TransportListener> listeners;
+    private final List<Selector> selectors;
+    private final List<Thread> acceptor_threads;
+    private ThreadPoolExecutor handshake_executor;
+    private int backlog;
+    private int acceptors;
+    private int handshake_threads;
+    private int handshake_queue_size;
 
     public NetworkServer() {
-        server_sock = null;
         connection_handler = null;
-        accepting_thread = null;
-        clients = new CopyOnWriteArrayList<ServerNetworkClient>();
+        admission_controller = null;
+        clients = new ClientRegistry<ServerNetworkClient>();
+        listeners = new CopyOnWriteArrayList<TransportListener>();
+        selectors = new CopyOnWriteArrayList<Selector>();
+        acceptor_threads = new CopyOnWriteArrayList<Thread>();
+        handshake_executor = null;
+        backlog = 50;
+        acceptors = 1;
+        handshake_threads = Runtime.getRuntime().availableProcessors();
+        handshake_queue_size = 1024;
 
         if (NetworkServer.activeServer == null) {
             // We currently have no active server so lets set it to us
@@ -65,8 +112,143 @@ public class NetworkServer {
         return connection_handler != null;
     }
 
-    public synchronized List<ServerNetworkClient> getClients() {
-        return this.clients;
+    /**
+     * Sets the admission controller consulted for every accepted connection
+     * before its handshake, null admits everything
+     *
+     * @param admission_controller
+     */
+    public void setAdmissionController(AdmissionController admission_controller) {
+        this.admission_controller = admission_controller;
+    }
+
+    public AdmissionController getAdmissionController() {
+        return this.admission_controller;
+    }
+
+    /**
+     * @return A copy of the clients connected to this server
+     */
+    public List<ServerNetworkClient> getClients() {
+        return this.clients.snapshot();
+    }
+
+    public int getTotalClients() {
+        return this.clients.size();
+    }
+
+    /**
+     * @param client_id
+     * @return The client with this id or null if it is not connected to this
+     * server
+     */
+    public ServerNetworkClient getClientById(long client_id) {
+        return this.clients.get(client_id);
+    }
+
+    /**
+     * Sets the length of the kernel queue of connections waiting to be
+     * accepted, takes effect on the next listen
+     *
+     * @param backlog
+     */
+    public void setBacklog(int backlog) {
+        if (backlog <= 0) {
+            throw new IllegalArgumentException("The backlog must be above zero");
+        }
+        this.backlog = backlog;
+    }
+
+    public int getBacklog() {
+        return this.backlog;
+    }
+
+    /**
+     * Sets how many threads accept connections, takes effect on the next
+     * listen. With more than one acceptor each gets its own listener bound to
+     * the address if the transport can share addresses, SO_REUSEPORT for TCP,
+     * so the kernel spreads connections between them. Otherwise they share
+     * one listener.
+     *
+     * @param acceptors
+     */
+    public void setAcceptorCount(int acceptors) {
+        if (acceptors <= 0) {
+            throw new IllegalArgumentException("There must be at least one acceptor");
+        }
+        this.acceptors = acceptors;
+    }
+
+    public int getAcceptorCount() {
+        return this.acceptors;
+    }
+
+    /**
+     * Sets how many threads set up accepted connections, takes effect on the
+     * next listen
+     *
+     * @param handshake_threads
+     */
+    public void setHandshakeThreads(int handshake_threads) {
+        if (handshake_threads <= 0) {
+            throw new IllegalArgumentException("There must be at least one handshake thread");
+        }
+        this.handshake_threads = handshake_threads;
+    }
+
+    public int getHandshakeThreads() {
+        return this.handshake_threads;
+    }
+
+    /**
+     * Sets how many accepted connections may wait for a handshake thread
+     * before new connections are dropped, takes effect on the next listen
+     *
+     * @param handshake_queue_size
+     */
+    public void setHandshakeQueueSize(int handshake_queue_size) {
+        if (handshake_queue_size <= 0) {
+            throw new IllegalArgumentException("The handshake queue size must be above zero");
+        }
+        this.handshake_queue_size = handshake_queue_size;
+    }
+
+    public int getHandshakeQueueSize() {
+        return this.handshake_queue_size;
+    }
+
+    /**
+     * @return How many accepted connections are waiting for a handshake thread
+     */
+    public int getPendingHandshakes() {
+        ThreadPoolExecutor executor = this.handshake_executor;
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    /**
+     * @return The port the server is listening on or -1 if it is not listening
+     * @throws IOException
+     */
+    public int getPort() throws IOException {
+        SocketAddress address = getLocalAddress();
+        if (address instanceof InetSocketAddress) {
+            return ((InetSocketAddress) address).getPort();
+        }
+        return -1;
+    }
+
+    /**
+     * @return The address the server is listening on or null if it is not
+     * listening
+     * @throws IOException
+     */
+    public SocketAddress getLocalAddress() throws IOException {
+        for (TransportListener listener : this.listeners) {
+            if (listener.isOpen()) {
+                return listener.getLocalAddress();
+            }
+        }
+        return null;
     }
 
     public void listen(int port) throws IOException, NetworkException {
@@ -74,65 +256,320 @@ public class NetworkServer {
     }
 
     public void listen(int port, boolean do_block, int client_timeout) throws IOException, NetworkException {
+        listen(new InetSocketAddress(port), do_block, client_timeout);
+    }
+
+    /**
+     * Listens on the address with the transport for its type, see
+     * {@link Transports}
+     *
+     * @param address
+     * @param do_block True to block until the server is closed
+     * @param client_timeout Read timeout for accepted connections in
+     * milliseconds
+     * @throws IOException
+     * @throws NetworkException
+     */
+    public void listen(SocketAddress address, boolean do_block, int client_timeout) throws IOException, NetworkException {
         if (!hasConnectionHandler()) {
             throw new NetworkException("Expecting a connection handler before listening");
         }
 
         if (isListening()) {
-            throw new NetworkException("The network server is already listening on port " + port);
+            throw new NetworkException("The network server is already listening on " + getLocalAddress());
+        }
+
+        Transport transport = Transports.forAddress(address);
+        boolean share_address = this.acceptors > 1 && transport.canShareAddress();
+        List<TransportListener> acceptor_listeners = new ArrayList<TransportListener>();
+        List<Selector> acceptor_selectors = new ArrayList<Selector>();
+        this.listeners.clear();
+        this.selectors.clear();
+        this.acceptor_threads.clear();
+        try {
+            TransportListener shared_listener = null;
+            for (int i = 0; i < this.acceptors; i++) {
+                TransportListener listener;
+                if (shared_listener != null) {
+                    listener = shared_listener;
+                } else {
+                    listener = transport.listen(address, this.backlog, share_address);
+                    this.listeners.add(listener);
+                    // If we were asked for any free port the other acceptors must share the one we got
+                    address = listener.getLocalAddress();
+                    if (!share_address) {
+                        shared_listener = listener;
+                    }
+                }
+
+                Selector selector = null;
+                if (listener.getSelectableChannel() != null) {
+                    selector = Selector.open();
+                    listener.getSelectableChannel().register(selector, SelectionKey.OP_ACCEPT);
+                    this.selectors.add(selector);
+                }
+                acceptor_listeners.add(listener);
+                acceptor_selectors.add(selector);
+            }
+        } catch (IOException ex) {
+            closeListeners();
+            throw ex;
         }
-        server_sock = new ServerSocket(port);
-        accepting_thread = new Thread(new Runnable() {
+
+        final AtomicInteger handshake_thread_number = new AtomicInteger();
+        this.handshake_executor = new ThreadPoolExecutor(this.handshake_threads, this.handshake_threads,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(this.handshake_queue_size), new ThreadFactory() {
             @Override
-            public void run() {
-                while (!server_sock.isClosed()) {
-                    final Socket socket;
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "NibbleNetwork handshake " + handshake_thread_number.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.handshake_executor.allowCoreThreadTimeOut(true);
+
+        for (int i = 0; i < acceptor_listeners.size(); i++) {
+            Acceptor acceptor = new Acceptor(acceptor_listeners.get(i), acceptor_selectors.get(i), this.handshake_executor, client_timeout);
+            Thread thread = new Thread(acceptor, "NibbleNetwork acceptor " + i);
+            this.acceptor_threads.add(thread);
+            thread.start();
+        }
+
+        if (do_block) {
+            for (Thread thread : this.acceptor_threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets up a freshly accepted connection as a client, runs on a handshake
+     * thread
+     */
+    private void handshake(TransportConnection connection, AcceptEvent event, int client_timeout) {
+        try {
+            if (!connection.handshake()) {
+                // The transport handed it to a client we already have, such as a resumed session
+                event.accepted = true;
+            } else {
+                ServerNetworkClient client = connection_handler.connection(connection);
+                if (client != null) {
+                    if (client.getConnection() != connection) {
+                        client.setConnection(connection);
+                    }
+                    connection.setReadTimeout(client_timeout);
+                    client.setConnectionHandler(connection_handler);
+                    client.setConnected(true);
+
+                    clients.add(client);
+
+                    if (!client.hasInitiated()) {
+                        client.Init();
+                        client.setInitiated(true);
+                    }
+
+                    client.setProcessor(client.getNetworkProcessor());
+                    event.accepted = true;
+                } else {
+                    throw new Exception("Connection handler rejected connection");
+                }
+            }
+        } catch (Exception ex) {
+            connection_handler.connection_problem(ex);
+        }
+
+        if (!event.accepted && !connection.isClosed()) {
+            try {
+                connection.close();
+            } catch (IOException ex) {
+                Logger.getLogger(NetworkServer.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.remoteAddress = String.valueOf(connection.getRemoteAddress());
+            event.commit();
+        }
+    }
+
+    private class Acceptor implements Runnable {
+
+        private final TransportListener listener;
+        // Null when the listener blocks in accept
+        private final Selector selector;
+        private final ThreadPoolExecutor executor;
+        private final int client_timeout;
+
+        public Acceptor(TransportListener listener, Selector selector, ThreadPoolExecutor executor, int client_timeout) {
+            this.listener = listener;
+            this.selector = selector;
+            this.executor = executor;
+            this.client_timeout = client_timeout;
+        }
+
+        @Override
+        public void run() {
+            // A problem with one connection or running out of descriptors must not stop us accepting the rest
+            if (selector == null) {
+                while (listener.isOpen()) {
+                    TransportConnection connection;
                     try {
-                        socket = server_sock.accept();
+                        connection = listener.accept();
                     } catch (Exception ex) {
-                        connection_handler.connection_problem(ex);
+                        if (!acceptFailed(ex)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    if (connection == null) {
                         return;
                     }
+                    dispatchOrClose(connection);
+                }
+                return;
+            }
 
-                    // Lets setup a new thread incase something goes wrong
-                    new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                ServerNetworkClient client = connection_handler.connection(socket);
-                                if (client != null) {
-                                    client.setSocket(socket);
-                                    client.getSocket().setSoTimeout(client_timeout);
-                                    client.setConnectionHandler(connection_handler);
-                                    client.setConnected(true);
-
-                                    synchronized (clients) {
-                                        clients.add(client);
-                                    }
-
-                                    if (!client.hasInitiated()) {
-                                        client.Init();
-                                        client.initiated = true;
-                                    }
-
-                                    client.setProcessor(client.getNetworkProcessor());
-                                } else {
-                                    throw new Exception("Connection handler rejected connection");
-                                }
-                            } catch (Exception ex) {
-                                connection_handler.connection_problem(ex);
-                            }
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+                    if (!selector.isOpen()) {
+                        return;
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (key.isValid() && key.isAcceptable()) {
+                            acceptAll();
                         }
-                    }).start();
+                    }
+                    selector.selectedKeys().clear();
+                } catch (ClosedSelectorException ex) {
+                    return;
+                } catch (Exception ex) {
+                    if (!acceptFailed(ex)) {
+                        return;
+                    }
+                }
+            }
+        }
 
+        private void acceptAll() {
+            TransportConnection connection;
+            // Drain everything that is waiting, acceptors sharing a listener just get null
+            while (true) {
+                try {
+                    connection = listener.accept();
+                } catch (Exception ex) {
+                    // Back to the selector, whatever is still waiting is picked up after the backoff
+                    acceptFailed(ex);
+                    return;
+                }
+                if (connection == null) {
+                    return;
                 }
+                dispatchOrClose(connection);
             }
-        });
-        accepting_thread.start();
+        }
 
-        if (do_block) {
-            while (accepting_thread.isAlive()) {
+        /**
+         * Reports a failed accept and waits a little, failures such as running
+         * out of file descriptors would otherwise fail again straight away
+         *
+         * @param problem
+         * @return False if the server has stopped listening and the acceptor
+         * should stop
+         */
+        private boolean acceptFailed(Exception problem) {
+            if (!listener.isOpen() || !isListening()) {
+                return false;
+            }
+            connection_handler.connection_problem(problem);
+            try {
+                Thread.sleep(ACCEPT_BACKOFF);
+            } catch (InterruptedException ex) {
+                return false;
+            }
+            return true;
+        }
+
+        private void dispatchOrClose(TransportConnection connection) {
+            try {
+                dispatch(connection);
+            } catch (Exception ex) {
+                // Likely reset before we got to it, only this connection is lost
+                try {
+                    connection.close();
+                } catch (IOException close_problem) {
+                    ex.addSuppressed(close_problem);
+                }
+                connection_handler.connection_problem(ex);
+            }
+        }
+
+        private void dispatch(final TransportConnection connection) throws IOException {
+            final AcceptEvent event = new AcceptEvent();
+            event.begin();
+            SocketAddress remote_address = connection.getRemoteAddress();
+            AdmissionController controller = admission_controller;
+            if (controller != null) {
+                InetAddress address = remote_address instanceof InetSocketAddress ? ((InetSocketAddress) remote_address).getAddress() : null;
+                // Connections still waiting on a handshake count towards the limit
+                AdmissionController.Decision decision = controller.admit(address, clients.size() + executor.getQueue().size() + executor.getActiveCount());
+                if (decision != AdmissionController.Decision.ADMIT) {
+                    reject(connection, event, new ConnectionRejectedException(decision, remote_address));
+                    return;
+                }
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handshake(connection, event, client_timeout);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                reject(connection, event, new NetworkException("Handshake queue is full, dropped connection from " + remote_address));
+            }
+        }
+
+        private void reject(TransportConnection connection, AcceptEvent event, NetworkException problem) throws IOException {
+            String address = String.valueOf(connection.getRemoteAddress());
+            if (connection instanceof TcpConnection) {
+                // Set SO_LINGER to zero so a refused client gets a reset rather than a socket in TIME_WAIT
+                ((TcpConnection) connection).getSocket().setSoLinger(true, 0);
             }
+            connection.close();
+            event.end();
+            if (event.shouldCommit()) {
+                event.remoteAddress = address;
+                event.commit();
+            }
+            connection_handler.connection_problem(problem);
+        }
+    }
+
+    private void closeListeners() throws IOException {
+        IOException problem = null;
+        for (Selector selector : this.selectors) {
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                problem = ex;
+            }
+        }
+        for (TransportListener listener : this.listeners) {
+            try {
+                listener.close();
+            } catch (IOException ex) {
+                problem = ex;
+            }
+        }
+        if (problem != null) {
+            throw problem;
         }
     }
 
@@ -158,11 +595,20 @@ public class NetworkServer {
             throw new NetworkException("The network server is not listening on a port");
         }
 
-        server_sock.close();
+        closeListeners();
+        if (this.handshake_executor != null) {
+            // Connections already accepted still get set up
+            this.handshake_executor.shutdown();
+        }
     }
 
     public boolean isListening() {
-        return server_sock != null && !server_sock.isClosed();
+        for (TransportListener listener : this.listeners) {
+            if (listener.isOpen()) {
+                return true;
+            }
+        }
+        return false;
     }
 
 }
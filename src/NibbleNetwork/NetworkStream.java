@@ -16,6 +16,8 @@
  */
 package NibbleNetwork;
 
+import NibbleNetwork.transport.TcpConnection;
+import NibbleNetwork.transport.TransportConnection;
 import java.net.Socket;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -26,13 +28,14 @@ import java.util.concurrent.locks.ReentrantLock;
 public abstract class NetworkStream {
 
     private final NetworkClient client;
-    private final Socket socket;
-    private final ReentrantLock lock;
+    private final TransportConnection connection;
+    // Created by the first frame, input streams never need one
+    private volatile ReentrantLock lock;
 
-    public NetworkStream(NetworkClient client, Socket socket) {
+    public NetworkStream(NetworkClient client, TransportConnection connection) {
         this.client = client;
-        this.socket = socket;
-        this.lock = new ReentrantLock();
+        this.connection = connection;
+        this.lock = null;
     }
 
     public NetworkClient getNetworkClient() {
@@ -40,15 +43,32 @@ public abstract class NetworkStream {
     }
     
     public void lock() {
-        this.lock.lock();
+        ReentrantLock current = this.lock;
+        if (current == null) {
+            synchronized (this) {
+                if (this.lock == null) {
+                    this.lock = new ReentrantLock();
+                }
+                current = this.lock;
+            }
+        }
+        current.lock();
     }
 
     public void unlock() {
         this.lock.unlock();
     }
     
+    public TransportConnection getConnection() {
+        return this.connection;
+    }
+
+    /**
+     * @return The socket under this stream or null if its transport is not
+     * TCP
+     */
     public Socket getSocket() {
-        return this.socket;
+        return this.connection instanceof TcpConnection ? ((TcpConnection) this.connection).getSocket() : null;
     }
 
 }
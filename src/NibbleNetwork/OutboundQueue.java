@@ -0,0 +1,279 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finished frames of one client waiting for the processor to send them, kept
+ * in one queue per {@link QosClass}. Frames of the same class leave in the
+ * order they were queued, a class is only drained once every more urgent
+ * class is empty.
+ *
+ * A frame can carry a conflation key. While a keyed frame is waiting a newer
+ * frame of the same protocol and key replaces its contents where it stands,
+ * so a backed up client is only ever sent the latest value for each key.
+ *
+ * @author dansb
+ */
+public class OutboundQueue {
+
+    private final ArrayDeque<Frame>[] classes;
+    // Keyed frames still waiting, created by the first keyed frame
+    private Map<ConflationKey, Frame> keyed_frames;
+    // Reused for lookups so only a keyed frame that starts waiting allocates a key
+    private final ConflationKey lookup;
+    private long queued_bytes;
+    private int queued_frames;
+    private long conflated_frames;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public OutboundQueue() {
+        this.classes = new ArrayDeque[QosClass.values().length];
+        this.lookup = new ConflationKey(0, 0);
+        this.queued_bytes = 0;
+        this.queued_frames = 0;
+        this.conflated_frames = 0;
+    }
+
+    /**
+     * Queues the frame, or if it is keyed and a frame with the same protocol
+     * and key is still waiting, replaces that frame's contents instead
+     *
+     * @param frame
+     */
+    public synchronized void add(Frame frame) {
+        add(frame, 0);
+    }
+
+    /**
+     * Queues the frame as {@link #add(Frame)} does unless that would take the
+     * queued bytes past the limit
+     *
+     * @param frame
+     * @param limit Bytes, zero for no limit
+     * @return False if the frame was not queued
+     */
+    public synchronized boolean add(Frame frame, long limit) {
+        if (frame.isKeyed()) {
+            if (this.keyed_frames == null) {
+                this.keyed_frames = new HashMap<ConflationKey, Frame>();
+            }
+            Frame pending = this.keyed_frames.get(this.lookup.set(frame.getProtocolId(), frame.getConflationKey()));
+            if (pending != null) {
+                long queued_bytes = this.queued_bytes + frame.getLength() - pending.getLength();
+                if (limit != 0 && queued_bytes > limit) {
+                    return false;
+                }
+                this.queued_bytes = queued_bytes;
+                pending.replace(frame.getData(), frame.getLength());
+                this.conflated_frames++;
+                return true;
+            }
+            if (limit != 0 && this.queued_bytes + frame.getLength() > limit) {
+                return false;
+            }
+            this.keyed_frames.put(new ConflationKey(frame.getProtocolId(), frame.getConflationKey()), frame);
+        } else if (limit != 0 && this.queued_bytes + frame.getLength() > limit) {
+            return false;
+        }
+
+        int index = frame.getQosClass().ordinal();
+        if (this.classes[index] == null) {
+            // Most clients only ever use one or two classes
+            this.classes[index] = new ArrayDeque<Frame>();
+        }
+        this.classes[index].add(frame);
+        this.queued_bytes += frame.getLength();
+        this.queued_frames++;
+        return true;
+    }
+
+    private Frame taken(Frame frame) {
+        this.queued_bytes -= frame.getLength();
+        this.queued_frames--;
+        if (frame.isKeyed()) {
+            // Anything with this key from now on is newer than what is being sent
+            this.keyed_frames.remove(this.lookup.set(frame.getProtocolId(), frame.getConflationKey()));
+        }
+        return frame;
+    }
+
+    /**
+     * @return The most urgent frame without removing it, or null if the queue
+     * is empty
+     */
+    public synchronized Frame peek() {
+        for (ArrayDeque<Frame> frames : this.classes) {
+            if (frames != null && !frames.isEmpty()) {
+                return frames.peekFirst();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The most urgent frame, or null if the queue is empty
+     */
+    public synchronized Frame poll() {
+        for (ArrayDeque<Frame> frames : this.classes) {
+            if (frames != null && !frames.isEmpty()) {
+                return taken(frames.pollFirst());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The oldest control frame, or null if there are none
+     */
+    public synchronized Frame pollControl() {
+        ArrayDeque<Frame> frames = this.classes[QosClass.CONTROL.ordinal()];
+        if (frames == null || frames.isEmpty()) {
+            return null;
+        }
+        return taken(frames.pollFirst());
+    }
+
+    public synchronized void clear() {
+        for (ArrayDeque<Frame> frames : this.classes) {
+            if (frames != null) {
+                frames.clear();
+            }
+        }
+        if (this.keyed_frames != null) {
+            this.keyed_frames.clear();
+        }
+        this.queued_bytes = 0;
+        this.queued_frames = 0;
+    }
+
+    public synchronized boolean isEmpty() {
+        return this.queued_frames == 0;
+    }
+
+    public synchronized long getQueuedBytes() {
+        return this.queued_bytes;
+    }
+
+    public synchronized int getQueuedFrames() {
+        return this.queued_frames;
+    }
+
+    /**
+     * @return How many frames were replaced by a newer frame before they were
+     * sent
+     */
+    public synchronized long getConflatedFrames() {
+        return this.conflated_frames;
+    }
+
+    /**
+     * A finished frame, including its protocol id byte
+     */
+    public static class Frame {
+
+        private final int protocol_id;
+        private final QosClass qos_class;
+        private final boolean keyed;
+        private final long conflation_key;
+        // Replaced when a newer frame with the same key is queued, guarded by the queue
+        private byte[] data;
+        private int length;
+
+        public Frame(int protocol_id, QosClass qos_class, byte[] data, int length) {
+            this.protocol_id = protocol_id;
+            this.qos_class = qos_class;
+            this.keyed = false;
+            this.conflation_key = 0;
+            this.data = data;
+            this.length = length;
+        }
+
+        public Frame(int protocol_id, QosClass qos_class, long conflation_key, byte[] data, int length) {
+            this.protocol_id = protocol_id;
+            this.qos_class = qos_class;
+            this.keyed = true;
+            this.conflation_key = conflation_key;
+            this.data = data;
+            this.length = length;
+        }
+
+        private void replace(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        public boolean isKeyed() {
+            return this.keyed;
+        }
+
+        public long getConflationKey() {
+            return this.conflation_key;
+        }
+
+        public int getProtocolId() {
+            return this.protocol_id;
+        }
+
+        public QosClass getQosClass() {
+            return this.qos_class;
+        }
+
+        public byte[] getData() {
+            return this.data;
+        }
+
+        public int getLength() {
+            return this.length;
+        }
+    }
+
+    private static final class ConflationKey {
+
+        // Only ever changed on the lookup key, never on one in the map
+        private int protocol_id;
+        private long key;
+
+        public ConflationKey(int protocol_id, long key) {
+            this.protocol_id = protocol_id;
+            this.key = key;
+        }
+
+        private ConflationKey set(int protocol_id, long key) {
+            this.protocol_id = protocol_id;
+            this.key = key;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ConflationKey)) {
+                return false;
+            }
+            ConflationKey other = (ConflationKey) o;
+            return other.protocol_id == this.protocol_id && other.key == this.key;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.protocol_id + Long.hashCode(this.key);
+        }
+    }
+}
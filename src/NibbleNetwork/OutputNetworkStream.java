@@ -16,23 +16,88 @@
  */
 package NibbleNetwork;
 
+import NibbleNetwork.events.BackpressureStallEvent;
+import NibbleNetwork.events.FrameSentEvent;
+import NibbleNetwork.events.NetworkEvents;
 import NibbleNetwork.exceptions.DeniedOperationException;
+import NibbleNetwork.transport.TcpConnection;
+import NibbleNetwork.transport.TransportConnection;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.Socket;
+import java.util.Arrays;
 
 /**
+ * Frames are built up in a buffer and written to the socket in one go when
+ * they are finished. Writes made outside of a frame are sent straight away.
+ * The buffer is taken from the shared buffer pool by the first write and
+ * handed back once it has been sent, so an idle stream holds no buffer.
+ *
+ * When the client's processor schedules outbound traffic finished frames are
+ * copied into the client's {@link OutboundQueue} instead and the processor
+ * thread sends them, most urgent first, as its quantum allows and only as
+ * fast as the connection takes them without blocking, the rest of a frame the
+ * connection could not take waits for the client's next turn. A frame that
+ * would take the queue past the processor's queued byte limit is refused and
+ * the client is disconnected. Frames created with a conflation key replace
+ * any older frame with the same key that is still waiting, frames are sent as
+ * soon as they are finished otherwise so there is nothing to conflate and the
+ * key is ignored.
  *
  * @author dansb
  */
 public class OutputNetworkStream extends NetworkStream {
 
-    private final OutputStream outputStream;
+    public static final int BUFFER_SIZE = BufferPool.BUFFER_SIZE;
+
+    private byte[] buffer;
+    private int position;
+    private boolean in_frame;
+    private long bytes_written;
+    private int frame_protocol_id;
+    private long frame_start;
+    private boolean queue_frame;
+    private boolean frame_keyed;
+    private long frame_conflation_key;
+    // Created by the first queued frame
+    // Only read outside the stream lock by getQueuedBytes
+    private volatile OutboundQueue outbound_queue;
+    // A queued frame the connection has only taken part of, sent before anything else
+    private OutboundQueue.Frame sending;
+    private int sending_offset;
+    // Set once a frame was refused for going over the queued byte limit
+    private volatile boolean overflowed;
 
     public OutputNetworkStream(NetworkClient client, Socket socket) throws IOException {
-        super(client, socket);
-        this.outputStream = socket.getOutputStream();
+        this(client, new TcpConnection(socket));
+    }
+
+    public OutputNetworkStream(NetworkClient client, TransportConnection connection) {
+        super(client, connection);
+        this.buffer = null;
+        this.position = 0;
+        this.in_frame = false;
+        this.queue_frame = false;
+        this.frame_keyed = false;
+        this.outbound_queue = null;
+        this.sending = null;
+        this.sending_offset = 0;
+        this.overflowed = false;
+    }
 
+    /**
+     * Creates a frame that, while it waits in the outbound queue, is replaced
+     * by any newer frame of the same protocol and key. For state where only
+     * the latest value matters, such as positions.
+     *
+     * @param protocol_id
+     * @param conflation_key
+     * @throws IOException
+     * @throws Exception
+     */
+    public synchronized void createFrame(int protocol_id, long conflation_key) throws IOException, Exception {
+        createFrame(protocol_id);
+        this.frame_keyed = true;
+        this.frame_conflation_key = conflation_key;
     }
 
     public synchronized void createFrame(int protocol_id) throws IOException, Exception {
@@ -42,44 +107,320 @@ public class OutputNetworkStream extends NetworkStream {
 
         getNetworkClient().EnsureSafe();
 
-        lock();
+        if (NetworkEvents.BACKPRESSURE_STALL.isEnabled()) {
+            BackpressureStallEvent stall = new BackpressureStallEvent();
+            stall.begin();
+            lock();
+            stall.end();
+            if (stall.shouldCommit()) {
+                stall.protocolId = protocol_id;
+                stall.client = getNetworkClient().toString();
+                stall.flush = false;
+                stall.commit();
+            }
+        } else {
+            lock();
+        }
+        this.in_frame = true;
+        this.queue_frame = getNetworkClient().getNetworkProcessor().isScheduledOutbound();
+        this.frame_protocol_id = protocol_id;
+        this.frame_start = this.bytes_written;
         write8(protocol_id);
     }
 
     public synchronized void finishFrame() throws IOException, DeniedOperationException {
         getNetworkClient().EnsureSafe();
         // Flush the network
-        this.outputStream.flush();
-        unlock();
+        FrameSentEvent event = null;
+        BackpressureStallEvent stall = null;
+        if (NetworkEvents.FRAME_SENT.isEnabled()) {
+            event = new FrameSentEvent();
+            event.begin();
+        }
+        if (NetworkEvents.BACKPRESSURE_STALL.isEnabled() && !this.queue_frame) {
+            stall = new BackpressureStallEvent();
+            stall.begin();
+        }
+        try {
+            if (this.queue_frame) {
+                queueFrame();
+            } else {
+                flush();
+            }
+        } finally {
+            this.in_frame = false;
+            this.queue_frame = false;
+            this.frame_keyed = false;
+            releaseBuffer();
+            // A failed flush must not leave the stream locked against every other thread
+            unlock();
+        }
+        if (stall != null) {
+            stall.end();
+            if (stall.shouldCommit()) {
+                stall.protocolId = this.frame_protocol_id;
+                stall.client = getNetworkClient().toString();
+                stall.flush = true;
+                stall.commit();
+            }
+        }
+
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.protocolId = this.frame_protocol_id;
+                event.size = this.bytes_written - this.frame_start;
+                event.client = getNetworkClient().toString();
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * @return The total amount of bytes written to this stream
+     */
+    public synchronized long getBytesWritten() {
+        return this.bytes_written;
+    }
+
+    /**
+     * Writes everything buffered so far to the socket. Called for you by
+     * finishFrame and after any write made outside of a frame.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (this.position != 0) {
+            finishSending();
+            getConnection().write(this.buffer, 0, this.position);
+            this.position = 0;
+        }
+        getConnection().flush();
+    }
+
+    private void queueFrame() throws IOException {
+        byte[] data;
+        if (this.buffer.length == BUFFER_SIZE) {
+            data = Arrays.copyOf(this.buffer, this.position);
+        } else {
+            // The frame outgrew the pooled buffer, the grown buffer is ours to hand over
+            data = this.buffer;
+            this.buffer = null;
+        }
+        NetworkProcessor processor = getNetworkClient().getNetworkProcessor();
+        QosClass qos_class = processor.getQosClass(this.frame_protocol_id);
+        OutboundQueue queue = getOutboundQueue();
+        boolean was_empty = queue.isEmpty();
+        OutboundQueue.Frame frame;
+        if (this.frame_keyed) {
+            frame = new OutboundQueue.Frame(this.frame_protocol_id, qos_class, this.frame_conflation_key, data, this.position);
+        } else {
+            frame = new OutboundQueue.Frame(this.frame_protocol_id, qos_class, data, this.position);
+        }
+        int length = this.position;
+        this.position = 0;
+        long limit = processor.getMaxQueuedBytes();
+        if (!queue.add(frame, limit)) {
+            // The processor disconnects the client on its next turn
+            this.overflowed = true;
+            processor.wake();
+            throw new IOException("A " + length + " byte frame would take the client past the queued byte limit of " + limit
+                    + ", " + queue.getQueuedBytes() + " bytes are queued");
+        }
+        if (was_empty) {
+            // A processor waiting to be woken would otherwise only send it when it next polls
+            processor.wake();
+        }
+    }
+
+    /**
+     * @return True if a frame was refused for going over the processor's
+     * queued byte limit
+     */
+    public boolean isOverflowed() {
+        return this.overflowed;
+    }
+
+    /**
+     * @return The frames waiting for the processor to send them
+     */
+    public synchronized OutboundQueue getOutboundQueue() {
+        if (this.outbound_queue == null) {
+            this.outbound_queue = new OutboundQueue();
+        }
+        return this.outbound_queue;
+    }
+
+    public synchronized boolean hasQueuedFrames() {
+        return this.sending != null || (this.outbound_queue != null && !this.outbound_queue.isEmpty());
+    }
+
+    /**
+     * @return True if the connection could not take everything the last drain
+     * tried to send, part of a frame is waiting for the next one
+     */
+    public synchronized boolean isSendingBlocked() {
+        return this.sending != null;
+    }
+
+    /**
+     * @return How many bytes are queued waiting to be sent, does not wait for
+     * a writer holding the stream
+     */
+    public long getQueuedBytes() {
+        OutboundQueue queue = this.outbound_queue;
+        return queue == null ? 0 : queue.getQueuedBytes();
+    }
+
+    /**
+     * Sends queued frames, most urgent first, until the budget is spent, the
+     * queue is empty or the connection can not take more without blocking. A
+     * frame is charged whole when it starts to be sent so the budget can be
+     * overrun by up to one frame, if the connection only takes part of it the
+     * rest goes first next time. Control frames are not charged and are sent
+     * even once the budget is spent. Called by the processor thread.
+     *
+     * @param budget How many bytes may be charged
+     * @return How many bytes were charged
+     * @throws IOException
+     */
+    public synchronized int drain(int budget) throws IOException {
+        if (!hasQueuedFrames()) {
+            return 0;
+        }
+
+        int charged = 0;
+        boolean written = false;
+        lock();
+        try {
+            while (true) {
+                if (this.sending == null) {
+                    // Once the budget is spent only control frames may go
+                    this.sending = charged < budget ? this.outbound_queue.poll() : this.outbound_queue.pollControl();
+                    if (this.sending == null) {
+                        break;
+                    }
+                    this.sending_offset = 0;
+                    if (this.sending.getQosClass() != QosClass.CONTROL) {
+                        charged += this.sending.getLength();
+                    }
+                }
+                int remaining = this.sending.getLength() - this.sending_offset;
+                int amount = getConnection().tryWrite(this.sending.getData(), this.sending_offset, remaining);
+                if (amount > 0) {
+                    written = true;
+                }
+                if (amount < remaining) {
+                    this.sending_offset += amount;
+                    break;
+                }
+                this.sending = null;
+            }
+            if (written) {
+                getConnection().flush();
+            }
+        } finally {
+            unlock();
+        }
+        return charged;
+    }
+
+    /**
+     * Sends the rest of a partly sent frame, blocking, before anything is
+     * written past the queue
+     *
+     * @throws IOException
+     */
+    private void finishSending() throws IOException {
+        if (this.sending != null) {
+            OutboundQueue.Frame frame = this.sending;
+            this.sending = null;
+            getConnection().write(frame.getData(), this.sending_offset, frame.getLength() - this.sending_offset);
+        }
+    }
+
+    private void releaseBuffer() {
+        // Dropped even if a failed flush left bytes in it, they can not be sent now
+        if (this.buffer != null) {
+            BufferPool.getShared().give(this.buffer);
+            this.buffer = null;
+            this.position = 0;
+        }
+    }
+
+    /**
+     * @return True if the stream is holding a buffer, which it only does
+     * while a frame is being built
+     */
+    public synchronized boolean hasBuffer() {
+        return this.buffer != null;
+    }
+
+    private void put(int i) throws IOException {
+        if (this.buffer == null) {
+            this.buffer = BufferPool.getShared().take();
+        }
+        if (this.position == this.buffer.length && this.in_frame && this.queue_frame) {
+            // A queued frame has to be kept whole so grow past the pooled size
+            byte[] grown = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+            BufferPool.getShared().give(this.buffer);
+            this.buffer = grown;
+        } else if (this.position == this.buffer.length) {
+            // Frame is bigger than the buffer, send what we have so far
+            finishSending();
+            getConnection().write(this.buffer, 0, this.position);
+            this.position = 0;
+        }
+        this.buffer[this.position++] = (byte) i;
+        this.bytes_written++;
+    }
+
+    private void flushOutsideFrame() throws IOException {
+        if (!this.in_frame) {
+            try {
+                flush();
+            } finally {
+                releaseBuffer();
+            }
+        }
+    }
+
+    private void put16(int i) throws IOException {
+        int s1 = i >> 8;
+        int s2 = i & 0xff;
+        put(s1);
+        put(s2);
     }
 
     public synchronized void write8(int i) throws IOException, DeniedOperationException {
         getNetworkClient().EnsureSafe();
-        this.outputStream.write(i);
+        put(i);
+        flushOutsideFrame();
     }
 
     public synchronized void write16(int i) throws IOException {
-        int s1 = i >> 8;
-        int s2 = i & 0xff;
-        this.outputStream.write(s1);
-        this.outputStream.write(s2);
+        put16(i);
+        flushOutsideFrame();
     }
 
     public synchronized void write32(int i) throws IOException {
         int s1 = i & 0xffff;
         int s2 = i >> 16;
-        write16(s1);
-        write16(s2);
+        put16(s1);
+        put16(s2);
+        flushOutsideFrame();
     }
 
     public synchronized void writeString(String s) throws Exception {
         if (s.length() > 65535) {
             throw new Exception("The string cannot be bigger than a word 16 bits in size");
         }
-        write16(s.length());
+        getNetworkClient().EnsureSafe();
+        put16(s.length());
         for (int i = 0; i < s.length(); i++) {
-            write8(s.charAt(i));
+            put(s.charAt(i));
         }
+        flushOutsideFrame();
     }
 
 }
@@ -27,8 +27,18 @@ public class OutputPingProtocol extends OutputNetworkProtocol {
     }
 
     public synchronized void ping() throws Exception {
+        OutputPingProtocol.ping(getNetworkClient());
+    }
+
+    /**
+     * Sends a ping to the client, clients ping through this so they do not
+     * each need a protocol object
+     *
+     * @param network_client
+     * @throws Exception
+     */
+    public static void ping(NetworkClient network_client) throws Exception {
         // No payload required for pinging.
-        NetworkClient network_client = getNetworkClient();
         OutputNetworkStream output_stream = network_client.getOutputStream();
         synchronized (output_stream) {
             output_stream.createFrame(Protocols.PING_PROTOCOL);
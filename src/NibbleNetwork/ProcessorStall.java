@@ -0,0 +1,94 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork;
+
+/**
+ * A snapshot of a processor iteration that ran for longer than the stall
+ * threshold. The client and protocol id are what the processor was working on
+ * at the time the stack was captured.
+ *
+ * @author dansb
+ */
+public class ProcessorStall {
+
+    private final NetworkProcessor processor;
+    private final NetworkClient client;
+    private final int protocol_id;
+    private final long duration;
+    private final StackTraceElement[] stack_trace;
+
+    public ProcessorStall(NetworkProcessor processor, NetworkClient client, int protocol_id, long duration, StackTraceElement[] stack_trace) {
+        this.processor = processor;
+        this.client = client;
+        this.protocol_id = protocol_id;
+        this.duration = duration;
+        this.stack_trace = stack_trace;
+    }
+
+    public NetworkProcessor getProcessor() {
+        return this.processor;
+    }
+
+    /**
+     * @return The client being processed or null if the processor was not
+     * inside a client at the time
+     */
+    public NetworkClient getClient() {
+        return this.client;
+    }
+
+    public boolean hasClient() {
+        return this.client != null;
+    }
+
+    /**
+     * @return The id of the input protocol being run or -1 if the stall
+     * happened outside of a protocol, for example in a connection handler
+     */
+    public int getProtocolId() {
+        return this.protocol_id;
+    }
+
+    /**
+     * @return How long the iteration had been running in milliseconds when the
+     * stall was captured
+     */
+    public long getDuration() {
+        return this.duration;
+    }
+
+    public StackTraceElement[] getStackTrace() {
+        return this.stack_trace;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Processor ").append(processor.getClass().getName())
+                .append(" stalled for ").append(duration).append("ms");
+        if (hasClient()) {
+            builder.append(" while processing client ").append(client);
+        }
+        if (protocol_id != -1) {
+            builder.append(" in protocol ").append(protocol_id);
+        }
+        for (StackTraceElement element : stack_trace) {
+            builder.append("\n\tat ").append(element);
+        }
+        return builder.toString();
+    }
+}
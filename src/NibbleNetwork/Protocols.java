@@ -22,4 +22,6 @@ package NibbleNetwork;
  */
 public class Protocols {
     public static int PING_PROTOCOL = 0;
+    // Protocol ids are sent as a single byte
+    public static final int MAX_PROTOCOL_ID = 255;
 }
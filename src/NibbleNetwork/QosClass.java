@@ -0,0 +1,45 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork;
+
+/**
+ * How urgent the frames of a protocol are, set per protocol id on a network
+ * processor. Control frames are never charged against a client's quantum and
+ * when outbound frames are scheduled they are sent before interactive frames,
+ * which are sent before bulk frames.
+ *
+ * Inbound frames arrive in the order the client sent them so a class can only
+ * change what a frame costs, not when it is read.
+ *
+ * @author dansb
+ */
+public enum QosClass {
+    /**
+     * Pings and other small frames that keep the connection alive, free and
+     * always first
+     */
+    CONTROL,
+    /**
+     * Latency sensitive traffic, the default for every protocol other than
+     * ping
+     */
+    INTERACTIVE,
+    /**
+     * Throughput traffic that may wait behind everything else
+     */
+    BULK
+}
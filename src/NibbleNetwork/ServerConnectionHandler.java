@@ -16,14 +16,37 @@
  */
 package NibbleNetwork;
 
+import NibbleNetwork.exceptions.NetworkException;
+import NibbleNetwork.transport.TcpConnection;
+import NibbleNetwork.transport.TransportConnection;
 import java.net.Socket;
 
 /**
+ * Creates the client for each connection a server accepts. Handlers only
+ * serving TCP can implement the socket version, handlers for any other
+ * transport implement the connection version.
  *
  * @author dansb
  */
 public interface ServerConnectionHandler extends ConnectionHandler {
 
-    public ServerNetworkClient connection(Socket socket) throws Exception;
+    public default ServerNetworkClient connection(Socket socket) throws Exception {
+        throw new NetworkException("The connection handler " + getClass().getName() + " does not create clients for sockets");
+    }
+
+    /**
+     * Called by the server for every accepted connection, by default TCP
+     * connections are passed on to the socket version
+     *
+     * @param connection
+     * @return The client for the connection or null to reject it
+     * @throws Exception
+     */
+    public default ServerNetworkClient connection(TransportConnection connection) throws Exception {
+        if (connection instanceof TcpConnection) {
+            return connection(((TcpConnection) connection).getSocket());
+        }
+        throw new NetworkException("The connection handler " + getClass().getName() + " does not create clients for " + connection);
+    }
 
 }
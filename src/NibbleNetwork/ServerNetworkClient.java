@@ -16,6 +16,7 @@
  */
 package NibbleNetwork;
 
+import NibbleNetwork.transport.TransportConnection;
 import java.io.IOException;
 import java.net.Socket;
 
@@ -31,6 +32,11 @@ public abstract class ServerNetworkClient extends NetworkClient {
         super(processor, socket);
         this.server = server;
     }
+
+    public ServerNetworkClient(NetworkProcessor processor, TransportConnection connection, NetworkServer server) throws Exception {
+        super(processor, connection);
+        this.server = server;
+    }
     
     public NetworkServer getServer() {
         return this.server;
@@ -17,7 +17,6 @@
 package NibbleNetwork;
 
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  *
@@ -25,7 +24,9 @@ import java.util.concurrent.CopyOnWriteArrayList;
  */
 public abstract class SharedNetworkProcessor extends NetworkProcessor {
 
-    private final List<NetworkClient> network_clients;
+    private final ClientRegistry<NetworkClient> network_clients;
+    // Where the next iteration starts so no client is always served first, processor thread only
+    private int next_start;
 
     public SharedNetworkProcessor() throws Exception {
         this(null);
@@ -33,11 +34,12 @@ public abstract class SharedNetworkProcessor extends NetworkProcessor {
 
     public SharedNetworkProcessor(NetworkServer server) throws Exception {
         super(server);
-        this.network_clients = new CopyOnWriteArrayList<NetworkClient>();
+        this.network_clients = new ClientRegistry<NetworkClient>();
+        this.next_start = 0;
     }
 
     @Override
-    public synchronized void addInputProtocol(InputNetworkProtocol protocol) throws Exception {
+    public void addInputProtocol(InputNetworkProtocol protocol) throws Exception {
         if (protocol instanceof InputOutputBlockingProtocol) {
             throw new Exception("Blocking protocols can only be used in single network processors");
         }
@@ -45,52 +47,89 @@ public abstract class SharedNetworkProcessor extends NetworkProcessor {
     }
 
     @Override
-    public synchronized void moveClients(NetworkProcessor new_processor) throws Exception {
-        for (NetworkClient networkClient : this.network_clients) {
-            networkClient.setProcessor(new_processor);
-        }
+    public void moveClients(final NetworkProcessor new_processor) throws Exception {
+        submit(new ProcessorCommand() {
+            @Override
+            public void run() throws Exception {
+                // Moving a client removes it from us so work from a copy
+                for (NetworkClient networkClient : network_clients.snapshot()) {
+                    networkClient.setProcessor(new_processor);
+                }
+            }
+        });
     }
 
     @Override
-    public synchronized void addClient(NetworkClient client) throws Exception {
-        if (!shouldAllowClient(client)) {
-            throw new Exception("The client was rejected by the processor: ");
-        }
-        this.network_clients.add(client);
-        handleNewClient(client);
+    public void addClient(final NetworkClient client) throws Exception {
+        submit(new ProcessorCommand() {
+            @Override
+            public void run() throws Exception {
+                try {
+                    if (!shouldAllowClient(client)) {
+                        throw new Exception("The client was rejected by the processor: ");
+                    }
+                    if (network_clients.add(client)) {
+                        handleNewClient(client);
+                    }
+                } catch (Exception ex) {
+                    clientProblem(client, ex);
+                }
+            }
+        });
     }
 
     @Override
-    public synchronized boolean hasClient(NetworkClient client) {
-        for (NetworkClient c : this.network_clients) {
-            if (c == client) {
-                return true;
-            }
-        }
+    public boolean hasClient(NetworkClient client) {
+        return this.network_clients.contains(client);
+    }
 
-        return false;
+    /**
+     * @param client_id
+     * @return The client with this id or null if it is not on this processor
+     */
+    public NetworkClient getClientById(long client_id) {
+        return this.network_clients.get(client_id);
     }
 
+    /**
+     * @return A copy of the clients on this processor
+     */
     @Override
-    public synchronized List<NetworkClient> getClients() {
-        return this.network_clients;
+    public List<NetworkClient> getClients() {
+        return this.network_clients.snapshot();
     }
 
     @Override
-    public synchronized int getTotalClients() {
+    public int getTotalClients() {
         return this.network_clients.size();
     }
 
     @Override
-    public synchronized void removeClient(NetworkClient client) throws Exception {
-        this.network_clients.remove(client);
-        handleClientThatLeft(client);
+    public void removeClient(final NetworkClient client) throws Exception {
+        submit(new ProcessorCommand() {
+            @Override
+            public void run() throws Exception {
+                if (network_clients.remove(client)) {
+                    handleClientThatLeft(client);
+                }
+            }
+        });
     }
 
     @Override
     public void process() throws Exception {
-        for (NetworkClient client : this.network_clients) {
-            process_client(client);
+        // Walk by index so a tick does not allocate an iterator
+        int total = this.network_clients.size();
+        if (this.next_start >= total) {
+            this.next_start = 0;
+        }
+        int start = this.next_start++;
+        for (int n = 0; n < total; n++) {
+            int i = start + n < total ? start + n : start + n - total;
+            NetworkClient client = this.network_clients.getAt(i);
+            if (client != null) {
+                process_client(client);
+            }
         }
     }
 
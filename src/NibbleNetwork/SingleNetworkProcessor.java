@@ -16,7 +16,7 @@
  */
 package NibbleNetwork;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -25,7 +25,10 @@ import java.util.List;
  */
 public abstract class SingleNetworkProcessor extends NetworkProcessor {
 
-    private NetworkClient client;
+    // Only changed by commands, read from any thread
+    private volatile NetworkClient client;
+    // Handed out by getClients so asking for the client list never allocates
+    private volatile List<NetworkClient> clients;
 
     public SingleNetworkProcessor() throws Exception {
         this(null);
@@ -34,40 +37,68 @@ public abstract class SingleNetworkProcessor extends NetworkProcessor {
     public SingleNetworkProcessor(NetworkServer server) throws Exception {
         super(server);
         client = null;
+        clients = Collections.emptyList();
     }
 
-    public synchronized void moveClients(NetworkProcessor new_processor) throws Exception {
-        if (client != null) {
-            client.setProcessor(new_processor);
-        }
+    public void moveClients(final NetworkProcessor new_processor) throws Exception {
+        submit(new ProcessorCommand() {
+            @Override
+            public void run() throws Exception {
+                if (client != null) {
+                    client.setProcessor(new_processor);
+                }
+            }
+        });
     }
 
-    public synchronized void setClient(NetworkClient client) throws Exception {
+    public void setClient(final NetworkClient client) throws Exception {
         if (client == null) {
             throw new Exception("The client may not be null");
         }
-        if (!shouldAllowClient(client)) {
-            throw new Exception("The client was rejected by the processor");
+        submit(new ProcessorCommand() {
+            @Override
+            public void run() throws Exception {
+                attach(client);
+            }
+        });
+    }
+
+    private void attach(NetworkClient client) {
+        try {
+            if (!shouldAllowClient(client)) {
+                throw new Exception("The client was rejected by the processor");
+            }
+            this.client = client;
+            this.clients = Collections.singletonList(client);
+            handleNewClient(client);
+        } catch (Exception ex) {
+            clientProblem(client, ex);
         }
-        this.client = client;
-        handleNewClient(client);
     }
 
-    public synchronized NetworkClient getClient() {
+    public NetworkClient getClient() {
         return this.client;
     }
 
     @Override
-    public synchronized void addClient(NetworkClient client) throws Exception {
-        if (hasClient()) {
-            throw new Exception("Single network processors are only allowed one client");
-        }
-
-        setClient(client);
+    public void addClient(final NetworkClient client) throws Exception {
+        submit(new ProcessorCommand() {
+            @Override
+            public void run() throws Exception {
+                if (SingleNetworkProcessor.this.client == client) {
+                    return;
+                }
+                if (hasClient()) {
+                    clientProblem(client, new Exception("Single network processors are only allowed one client"));
+                    return;
+                }
+                attach(client);
+            }
+        });
     }
 
     @Override
-    public synchronized void addInputProtocol(InputNetworkProtocol protocol) throws Exception {
+    public void addInputProtocol(InputNetworkProtocol protocol) throws Exception {
         if (protocol instanceof FramelessInputOutputBlockingProtocol) {
             throw new Exception("This protocol is frameless meaning it is not supported by this protcol system. Frameless protocols are expected to be called by the programmer manually.");
         }
@@ -75,11 +106,11 @@ public abstract class SingleNetworkProcessor extends NetworkProcessor {
     }
 
     @Override
-    public synchronized boolean hasClient(NetworkClient client) {
-        return hasClient() && this.client == client;
+    public boolean hasClient(NetworkClient client) {
+        return client != null && this.client == client;
     }
 
-    public synchronized boolean hasClient() {
+    public boolean hasClient() {
         return this.client != null;
     }
 
@@ -92,32 +123,35 @@ public abstract class SingleNetworkProcessor extends NetworkProcessor {
         return 0;
     }
 
+    /**
+     * @return An unmodifiable list holding the client if there is one
+     */
     @Override
-    public synchronized List<NetworkClient> getClients() {
-        List<NetworkClient> clients = new ArrayList<NetworkClient>();
-        if (hasClient()) {
-            clients.add(getClient());
-        }
-
-        return clients;
+    public List<NetworkClient> getClients() {
+        return this.clients;
     }
 
     @Override
     public void process() throws Exception {
-        if (hasClient()) {
-            NetworkClient c = getClient();
+        NetworkClient c = getClient();
+        if (c != null) {
             process_client(c);
         }
     }
 
     @Override
-    public synchronized void removeClient(NetworkClient client) throws Exception {
-        if (hasClient() && getClient() == client) {
-            this.client = null;
-            super.handleClientThatLeft(client);
-        } else {
-            throw new Exception("This is not the single client that was originally set");
-        }
+    public void removeClient(final NetworkClient client) throws Exception {
+        submit(new ProcessorCommand() {
+            @Override
+            public void run() throws Exception {
+                // Anything else is a client that never made it on to this processor
+                if (hasClient(client)) {
+                    SingleNetworkProcessor.this.client = null;
+                    clients = Collections.emptyList();
+                    handleClientThatLeft(client);
+                }
+            }
+        });
     }
 
 }
@@ -0,0 +1,188 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watchdog that samples network processors from its own thread and reports any
+ * processor iteration that has been running for longer than the threshold. A
+ * blocked protocol or connection handler freezes every client on that
+ * processor, this lets you find out which one it was.
+ *
+ * Each stalled iteration is reported once, with the stack of the processor
+ * thread at the moment the threshold was crossed.
+ *
+ * @author dansb
+ */
+public class StallDetector implements Runnable {
+
+    private final long threshold;
+    private final StallHandler handler;
+    private final List<NetworkProcessor> processors;
+    // Written by the detector thread, entries are removed when a processor is unwatched
+    private final Map<NetworkProcessor, Long> reported_iterations;
+    private final AtomicLong total_stalls;
+    private final AtomicLong longest_stall;
+    // Guarded by the detector, null once the thread has seen there is nothing to watch and stopped
+    private Thread thread;
+
+    public StallDetector(long threshold) {
+        this(threshold, null);
+    }
+
+    /**
+     * @param threshold Time in milliseconds a single processor iteration may
+     * take before it is reported
+     * @param handler The handler to report stalls to, if null stalls are
+     * logged instead
+     */
+    public StallDetector(long threshold, StallHandler handler) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("The stall threshold must be above zero");
+        }
+        this.threshold = threshold;
+        this.handler = handler;
+        this.processors = new CopyOnWriteArrayList<NetworkProcessor>();
+        this.reported_iterations = new ConcurrentHashMap<NetworkProcessor, Long>();
+        this.total_stalls = new AtomicLong();
+        this.longest_stall = new AtomicLong();
+        this.thread = null;
+    }
+
+    public synchronized void watch(NetworkProcessor processor) {
+        if (!this.processors.contains(processor)) {
+            this.processors.add(processor);
+        }
+
+        // A thread that has not yet noticed it had nothing to watch carries on with this one
+        if (thread == null) {
+            thread = new Thread(this, "NibbleNetwork stall detector");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public synchronized void unwatch(NetworkProcessor processor) {
+        this.processors.remove(processor);
+        this.reported_iterations.remove(processor);
+    }
+
+    public long getThreshold() {
+        return this.threshold;
+    }
+
+    public long getTotalStalls() {
+        return this.total_stalls.get();
+    }
+
+    /**
+     * @return The longest iteration seen at the point it was reported, in
+     * milliseconds
+     */
+    public long getLongestStall() {
+        return this.longest_stall.get();
+    }
+
+    @Override
+    public void run() {
+        // Sample at half the threshold so a stall is never seen later than 1.5x the threshold
+        long interval = Math.max(1, this.threshold / 2);
+        while (true) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException ex) {
+                synchronized (this) {
+                    thread = null;
+                }
+                return;
+            }
+
+            synchronized (this) {
+                if (this.processors.isEmpty()) {
+                    // The next watch starts a new thread
+                    thread = null;
+                    return;
+                }
+            }
+            for (NetworkProcessor processor : this.processors) {
+                check(processor);
+            }
+        }
+    }
+
+    private void check(NetworkProcessor processor) {
+        long started = processor.getIterationStarted();
+        if (started == 0) {
+            // Processor is idle between iterations
+            return;
+        }
+
+        long duration = (System.nanoTime() - started) / 1000000;
+        if (duration < this.threshold) {
+            return;
+        }
+
+        Long reported = this.reported_iterations.get(processor);
+        if (reported != null && reported == started) {
+            // We have already reported this iteration
+            return;
+        }
+        this.reported_iterations.put(processor, started);
+        if (!this.processors.contains(processor)) {
+            // Unwatched while we were looking, unwatch may already have removed its entry
+            this.reported_iterations.remove(processor);
+            return;
+        }
+
+        // Read the attribution before the stack so they describe the same moment as closely as possible
+        NetworkClient client = processor.getCurrentClient();
+        int protocol_id = processor.getCurrentProtocolId();
+        Thread processor_thread = processor.getThread();
+        StackTraceElement[] stack_trace = processor_thread != null ? processor_thread.getStackTrace() : new StackTraceElement[0];
+        if (processor.getIterationStarted() != started) {
+            // The iteration finished while we were looking so the stack belongs to something else
+            return;
+        }
+
+        ProcessorStall stall = new ProcessorStall(processor, client, protocol_id, duration, stack_trace);
+        this.total_stalls.incrementAndGet();
+        processor.stallDetected();
+        long longest;
+        while (duration > (longest = this.longest_stall.get())) {
+            if (this.longest_stall.compareAndSet(longest, duration)) {
+                break;
+            }
+        }
+
+        if (this.handler != null) {
+            try {
+                this.handler.stall(stall);
+            } catch (Exception ex) {
+                Logger.getLogger(StallDetector.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        } else {
+            Logger.getLogger(StallDetector.class.getName()).log(Level.WARNING, stall.toString());
+        }
+    }
+}
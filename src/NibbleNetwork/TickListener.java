@@ -0,0 +1,45 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork;
+
+/**
+ * Told about every iteration of a network processor, on the processor thread
+ * once all of its clients have had their turn. Work that has to happen once
+ * per tick for many clients, such as replication, belongs here rather than in
+ * each client's process.
+ *
+ * With a fixed tick rate, see {@link NetworkProcessor#setTickRate(int)}, the
+ * listeners are where the application runs its simulation. The tick's input
+ * has been read by the time {@link #tick(NetworkProcessor)} is called, so a
+ * simulation stepped there is replicated by listeners added after it in the
+ * same tick.
+ *
+ * @author dansb
+ */
+public interface TickListener {
+
+    /**
+     * Called at the start of every iteration before any client is processed
+     *
+     * @param processor
+     * @throws Exception
+     */
+    public default void beforeTick(NetworkProcessor processor) throws Exception {
+    }
+
+    public void tick(NetworkProcessor processor) throws Exception;
+}
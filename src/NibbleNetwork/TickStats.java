@@ -0,0 +1,100 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork;
+
+/**
+ * A snapshot of how well a network processor is keeping to its tick rate.
+ * Lateness is how long after its deadline a tick started, the jitter of the
+ * schedule, and is only measured when the processor has a fixed tick rate.
+ *
+ * @author dansb
+ */
+public class TickStats {
+
+    private final long ticks;
+    private final long overruns;
+    private final long late_ticks;
+    private final long skipped_ticks;
+    private final long max_lateness;
+    private final long total_lateness;
+    private final long max_duration;
+
+    public TickStats(long ticks, long overruns, long late_ticks, long skipped_ticks, long max_lateness, long total_lateness, long max_duration) {
+        this.ticks = ticks;
+        this.overruns = overruns;
+        this.late_ticks = late_ticks;
+        this.skipped_ticks = skipped_ticks;
+        this.max_lateness = max_lateness;
+        this.total_lateness = total_lateness;
+        this.max_duration = max_duration;
+    }
+
+    public long getTicks() {
+        return this.ticks;
+    }
+
+    /**
+     * @return Ticks that took longer than the tick interval to run
+     */
+    public long getOverruns() {
+        return this.overruns;
+    }
+
+    /**
+     * @return Ticks started a whole interval or more late, run straight away to
+     * catch up
+     */
+    public long getLateTicks() {
+        return this.late_ticks;
+    }
+
+    /**
+     * @return Ticks never run because the processor fell further behind than
+     * it is allowed to catch up
+     */
+    public long getSkippedTicks() {
+        return this.skipped_ticks;
+    }
+
+    /**
+     * @return The latest a tick has started after its deadline in nanoseconds
+     */
+    public long getMaxLateness() {
+        return this.max_lateness;
+    }
+
+    /**
+     * @return The mean time ticks started after their deadline in nanoseconds
+     */
+    public long getMeanLateness() {
+        return ticks != 0 ? total_lateness / ticks : 0;
+    }
+
+    /**
+     * @return The longest a tick has taken to run in nanoseconds
+     */
+    public long getMaxDuration() {
+        return this.max_duration;
+    }
+
+    @Override
+    public String toString() {
+        return "ticks " + ticks + " overruns " + overruns + " late " + late_ticks + " skipped " + skipped_ticks
+                + " lateness mean " + getMeanLateness() / 1000 + "us max " + max_lateness / 1000 + "us"
+                + " duration max " + max_duration / 1000 + "us";
+    }
+}
@@ -0,0 +1,42 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork;
+
+/**
+ * What a network processor does when a frame arrives with a protocol id it
+ * has no protocol for. Frames carry no length so the rest of an unknown frame
+ * cannot be found, only the id byte or everything read so far can be thrown
+ * away. Every unknown id is counted whatever the policy.
+ *
+ * @author dansb
+ */
+public enum UnknownProtocolPolicy {
+    /**
+     * Drop the id byte and carry on reading, the next byte is treated as the
+     * start of a frame
+     */
+    IGNORE,
+    /**
+     * Drop everything that has arrived from the client so far
+     */
+    WIPE,
+    /**
+     * Report the unknown id to the connection handler and disconnect the
+     * client, the default
+     */
+    DISCONNECT
+}
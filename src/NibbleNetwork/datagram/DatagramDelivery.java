@@ -0,0 +1,42 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.datagram;
+
+/**
+ * How the frames of a protocol are delivered over a datagram session, set per
+ * protocol id on a {@link DatagramEndpoint}. Only reliable frames are ever
+ * sent twice, everything else is gone if its datagram is lost.
+ *
+ * @author dansb
+ */
+public enum DatagramDelivery {
+    /**
+     * Sent once and handed over in whatever order it arrives
+     */
+    UNRELIABLE,
+    /**
+     * Sent once, a frame that arrives after a newer frame of the same
+     * protocol is dropped. The default, for state where only the latest value
+     * matters.
+     */
+    SEQUENCED,
+    /**
+     * Resent until acknowledged and handed over in the order it was sent,
+     * frames that arrive early wait for the gap to be filled
+     */
+    RELIABLE_ORDERED
+}
@@ -0,0 +1,323 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.datagram;
+
+import NibbleNetwork.NetworkClient;
+import NibbleNetwork.Protocols;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A UDP socket shared by the datagram sessions of many clients. A session
+ * rides alongside a client's normal connection so frames that must not wait
+ * behind a lost TCP segment, such as game state, can go out as datagrams
+ * while everything else stays on the connection. Datagram frames use the same
+ * protocol ids and are processed by the same input protocols as frames from
+ * the connection.
+ *
+ * The server accepts a session for a client and hands its token to the client
+ * over the client's connection, using whatever protocol the application
+ * likes. The client attaches a session with that token and the server's
+ * datagram address. Every datagram carries the token, the server learns where
+ * the client is from the first one that arrives and follows it if it moves.
+ *
+ * A single thread receives for the whole endpoint and drops anything with a
+ * token it does not know. Frames are put in the session's inbox and the
+ * client's processor reads them on its next iteration.
+ *
+ * @author dansb
+ */
+public class DatagramEndpoint implements Runnable {
+
+    // Safe for any path on the internet once IP and UDP headers are added
+    public static final int DEFAULT_MTU = 1200;
+    public static final int DEFAULT_RESEND_INTERVAL = 100;
+    public static final int DEFAULT_INBOX_CAPACITY = 65536;
+    public static final int DEFAULT_MAX_UNACKED = 128 * DatagramSession.WINDOW;
+    // The largest UDP payload
+    private static final int MAX_DATAGRAM = 65507;
+
+    private final DatagramChannel channel;
+    private final Map<Long, DatagramSession> sessions;
+    private final SecureRandom random;
+    // Replaced whole so the receiving thread never sees a half made change
+    private volatile DatagramDelivery[] deliveries;
+    private volatile int mtu;
+    private volatile int resend_interval;
+    private volatile int inbox_capacity;
+    private volatile int max_unacked;
+    private final AtomicLong packets_sent;
+    private final AtomicLong packets_received;
+    private final AtomicLong unknown_packets;
+    private final Thread thread;
+
+    /**
+     * Binds the endpoint and starts receiving
+     *
+     * @param local_address Where to receive datagrams, null for any port
+     * @throws IOException
+     */
+    public DatagramEndpoint(SocketAddress local_address) throws IOException {
+        this.channel = DatagramChannel.open();
+        try {
+            this.channel.bind(local_address);
+        } catch (IOException ex) {
+            this.channel.close();
+            throw ex;
+        }
+        this.sessions = new ConcurrentHashMap<Long, DatagramSession>();
+        this.random = new SecureRandom();
+        this.deliveries = new DatagramDelivery[Protocols.MAX_PROTOCOL_ID + 1];
+        Arrays.fill(this.deliveries, DatagramDelivery.SEQUENCED);
+        this.mtu = DEFAULT_MTU;
+        this.resend_interval = DEFAULT_RESEND_INTERVAL;
+        this.inbox_capacity = DEFAULT_INBOX_CAPACITY;
+        this.max_unacked = DEFAULT_MAX_UNACKED;
+        this.packets_sent = new AtomicLong();
+        this.packets_received = new AtomicLong();
+        this.unknown_packets = new AtomicLong();
+        this.thread = new Thread(this, "NibbleNetwork datagram endpoint");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Starts a session for a client that connected to us. Send the token of
+     * the session to the client over its connection so it can attach.
+     *
+     * @param client
+     * @return The new session
+     * @throws Exception
+     */
+    public DatagramSession accept(NetworkClient client) throws Exception {
+        while (true) {
+            long token = this.random.nextLong();
+            if (token == 0 || this.sessions.containsKey(token)) {
+                continue;
+            }
+            DatagramSession session = new DatagramSession(this, client, token, null);
+            if (this.sessions.putIfAbsent(token, session) == null) {
+                client.setDatagramSession(session);
+                return session;
+            }
+        }
+    }
+
+    /**
+     * Starts a session for our side of a connection using the token the
+     * server gave us
+     *
+     * @param client
+     * @param token
+     * @param server_address The server's datagram endpoint
+     * @return The new session
+     * @throws Exception
+     */
+    public DatagramSession attach(NetworkClient client, long token, SocketAddress server_address) throws Exception {
+        if (server_address == null) {
+            throw new Exception("A datagram session needs the server's address");
+        }
+        DatagramSession session = new DatagramSession(this, client, token, server_address);
+        if (this.sessions.putIfAbsent(token, session) != null) {
+            throw new Exception("A datagram session with this token already exists");
+        }
+        client.setDatagramSession(session);
+        // Lets the server know where we are before we have anything to say
+        session.flush();
+        return session;
+    }
+
+    protected void detach(DatagramSession session) {
+        this.sessions.remove(session.getToken(), session);
+    }
+
+    /**
+     * Sets how frames of the protocol are delivered, every protocol is
+     * sequenced unless told otherwise. Both ends must agree.
+     *
+     * @param protocol_id
+     * @param delivery
+     * @throws Exception
+     */
+    public synchronized void setDelivery(int protocol_id, DatagramDelivery delivery) throws Exception {
+        if (protocol_id < 0 || protocol_id > Protocols.MAX_PROTOCOL_ID) {
+            throw new Exception("Protocol id's must be within the 0-" + Protocols.MAX_PROTOCOL_ID + " range");
+        }
+        if (delivery == null) {
+            throw new Exception("A protocol must have a delivery");
+        }
+        DatagramDelivery[] table = Arrays.copyOf(this.deliveries, this.deliveries.length);
+        table[protocol_id] = delivery;
+        this.deliveries = table;
+    }
+
+    public DatagramDelivery getDelivery(int protocol_id) {
+        return this.deliveries[protocol_id];
+    }
+
+    /**
+     * Sets the largest datagram we send, frames are batched into datagrams up
+     * to this size and a frame that does not fit in one on its own is
+     * refused. Lower it for paths that fragment.
+     *
+     * @param mtu
+     */
+    public void setMtu(int mtu) {
+        if (mtu < DatagramSession.PACKET_HEADER_SIZE + DatagramSession.FRAME_HEADER_SIZE + 1 || mtu > MAX_DATAGRAM) {
+            throw new IllegalArgumentException("The MTU must be between " + (DatagramSession.PACKET_HEADER_SIZE + DatagramSession.FRAME_HEADER_SIZE + 1) + " and " + MAX_DATAGRAM);
+        }
+        this.mtu = mtu;
+    }
+
+    public int getMtu() {
+        return this.mtu;
+    }
+
+    /**
+     * @param resend_interval Milliseconds a reliable frame waits for its
+     * acknowledgement before it is sent again
+     */
+    public void setResendInterval(int resend_interval) {
+        if (resend_interval <= 0) {
+            throw new IllegalArgumentException("The resend interval must be above zero");
+        }
+        this.resend_interval = resend_interval;
+    }
+
+    public int getResendInterval() {
+        return this.resend_interval;
+    }
+
+    /**
+     * @param inbox_capacity Bytes of frames a new session holds for its
+     * processor, frames that arrive to a full inbox are dropped
+     */
+    public void setInboxCapacity(int inbox_capacity) {
+        if (inbox_capacity <= 0) {
+            throw new IllegalArgumentException("The inbox capacity must be above zero");
+        }
+        this.inbox_capacity = inbox_capacity;
+    }
+
+    public int getInboxCapacity() {
+        return this.inbox_capacity;
+    }
+
+    /**
+     * @param max_unacked Reliable frames a session may have sent or waiting
+     * to be sent without an acknowledgement, a session that reaches it has
+     * lost the other side and is closed
+     */
+    public void setMaxUnacked(int max_unacked) {
+        if (max_unacked < DatagramSession.WINDOW) {
+            throw new IllegalArgumentException("At least a window of " + DatagramSession.WINDOW + " reliable frames must be allowed");
+        }
+        this.max_unacked = max_unacked;
+    }
+
+    public int getMaxUnacked() {
+        return this.max_unacked;
+    }
+
+    public SocketAddress getLocalAddress() throws IOException {
+        return this.channel.getLocalAddress();
+    }
+
+    public int getTotalSessions() {
+        return this.sessions.size();
+    }
+
+    public long getPacketsSent() {
+        return this.packets_sent.get();
+    }
+
+    public long getPacketsReceived() {
+        return this.packets_received.get();
+    }
+
+    /**
+     * @return Datagrams dropped because they were too short or carried a
+     * token we do not know
+     */
+    public long getUnknownPackets() {
+        return this.unknown_packets.get();
+    }
+
+    protected void send(ByteBuffer packet, SocketAddress address) throws IOException {
+        this.channel.send(packet, address);
+        this.packets_sent.incrementAndGet();
+    }
+
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    /**
+     * Closes the socket, sessions stay attached to their clients but nothing
+     * more is sent or received
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+        byte[] packet = buffer.array();
+        while (this.channel.isOpen()) {
+            SocketAddress source;
+            try {
+                buffer.clear();
+                source = this.channel.receive(buffer);
+            } catch (ClosedChannelException ex) {
+                return;
+            } catch (IOException ex) {
+                Logger.getLogger(DatagramEndpoint.class.getName()).log(Level.WARNING, null, ex);
+                continue;
+            }
+            this.packets_received.incrementAndGet();
+
+            int length = buffer.position();
+            DatagramSession session = null;
+            if (length >= DatagramSession.PACKET_HEADER_SIZE && packet[0] == DatagramSession.DATA_PACKET) {
+                session = this.sessions.get(DatagramSession.getLong(packet, 1));
+            }
+            if (session == null) {
+                this.unknown_packets.incrementAndGet();
+                continue;
+            }
+
+            try {
+                session.received(source, packet, length);
+            } catch (Exception ex) {
+                Logger.getLogger(DatagramEndpoint.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
+}
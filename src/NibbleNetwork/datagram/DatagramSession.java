@@ -0,0 +1,577 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.datagram;
+
+import NibbleNetwork.InputNetworkStream;
+import NibbleNetwork.NetworkClient;
+import NibbleNetwork.OutputNetworkStream;
+import NibbleNetwork.Protocols;
+import NibbleNetwork.transport.ByteRing;
+import NibbleNetwork.transport.TransportConnection;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * The datagram side of one client, see {@link DatagramEndpoint}. Frames
+ * written to the session's output stream are batched into datagrams no bigger
+ * than the endpoint's MTU, the client's processor sends them at the end of
+ * the client's turn. Frames that arrive are put in an inbox the processor
+ * reads through the session's input stream, a frame is never split between
+ * datagrams so the inbox only ever holds whole frames.
+ *
+ * Every datagram starts with the session token and the state of the reliable
+ * channel as seen by the sender, the next reliable frame it expects and a bit
+ * for each of the frames after that it already has. The other side resends
+ * reliable frames that are neither acknowledged nor marked once the resend
+ * interval passes. At most {@link #WINDOW} reliable frames are in flight,
+ * later frames wait their turn. A session whose other side has gone, or has
+ * never been heard from, stops holding on to reliable frames once the
+ * endpoint's limit is reached and is closed.
+ *
+ * Each frame has its delivery, a sequence number and its length in front of
+ * it. Sequenced frames count per protocol id so a late frame of one protocol
+ * never hides a newer frame of another.
+ *
+ * @author dansb
+ */
+public class DatagramSession {
+
+    static final byte DATA_PACKET = 1;
+    // Type, token, next expected reliable sequence and the selective acknowledgement bits
+    public static final int PACKET_HEADER_SIZE = 17;
+    // Delivery, sequence and length
+    public static final int FRAME_HEADER_SIZE = 7;
+    // Reliable frames in flight, one more than there are selective acknowledgement bits
+    public static final int WINDOW = 32;
+    // Milliseconds without sending before an empty datagram goes out, so the server learns and keeps our address
+    public static final int KEEPALIVE_INTERVAL = 1000;
+
+    private static final DatagramDelivery[] DELIVERIES = DatagramDelivery.values();
+
+    private final DatagramEndpoint endpoint;
+    private final NetworkClient client;
+    private final long token;
+    private volatile SocketAddress remote_address;
+    private final ByteRing inbox;
+    private final InputNetworkStream input_stream;
+    private final OutputNetworkStream output_stream;
+    private volatile boolean closed;
+
+    // Sending, guarded by this
+    private final byte[] packet;
+    private final ByteBuffer packet_buffer;
+    private int packet_length;
+    private boolean packet_has_frames;
+    private final int[] send_sequences;
+    private int next_reliable;
+    private final ArrayDeque<Reliable> unacked;
+    private boolean ack_owed;
+    private long last_sent;
+
+    // Receiving, guarded by this
+    private final int[] newest_sequences;
+    private int expected_reliable;
+    private final byte[][] early_frames;
+    private final int[] early_sequences;
+
+    private long frames_sent;
+    private long frames_received;
+    private long stale_frames;
+    private long dropped_frames;
+    private long resent_frames;
+
+    protected DatagramSession(DatagramEndpoint endpoint, NetworkClient client, long token, SocketAddress remote_address) {
+        this.endpoint = endpoint;
+        this.client = client;
+        this.token = token;
+        this.remote_address = remote_address;
+        this.inbox = ByteRing.allocate(endpoint.getInboxCapacity());
+        this.input_stream = new InputNetworkStream(client, new InboxConnection());
+        this.output_stream = new OutputNetworkStream(client, new OutboxConnection());
+        this.closed = false;
+        this.packet = new byte[endpoint.getMtu()];
+        this.packet_buffer = ByteBuffer.wrap(this.packet);
+        this.packet_length = PACKET_HEADER_SIZE;
+        this.packet_has_frames = false;
+        this.send_sequences = new int[Protocols.MAX_PROTOCOL_ID + 1];
+        this.next_reliable = 0;
+        this.unacked = new ArrayDeque<Reliable>();
+        this.ack_owed = false;
+        this.last_sent = 0;
+        this.newest_sequences = new int[Protocols.MAX_PROTOCOL_ID + 1];
+        // Sequences start at zero so everything is newer than this
+        Arrays.fill(this.newest_sequences, -1);
+        this.expected_reliable = 0;
+        this.early_frames = new byte[WINDOW][];
+        this.early_sequences = new int[WINDOW];
+    }
+
+    public long getToken() {
+        return this.token;
+    }
+
+    public NetworkClient getClient() {
+        return this.client;
+    }
+
+    public DatagramEndpoint getEndpoint() {
+        return this.endpoint;
+    }
+
+    /**
+     * @return Where datagrams for this session go, null on the server until
+     * the first datagram from the client arrives
+     */
+    public SocketAddress getRemoteAddress() {
+        return this.remote_address;
+    }
+
+    /**
+     * @return The stream the processor reads datagram frames from
+     */
+    public InputNetworkStream getInputStream() {
+        return this.input_stream;
+    }
+
+    /**
+     * @return The stream to write datagram frames to, used just like the
+     * client's own output stream
+     */
+    public OutputNetworkStream getOutputStream() {
+        return this.output_stream;
+    }
+
+    /**
+     * Adds a finished frame to the datagram being built, sending that datagram
+     * first if the frame does not fit. Reliable frames wait in the unacked
+     * list and are put in datagrams when flushed, if too many are waiting
+     * the session is closed.
+     */
+    private synchronized void queueFrame(byte[] frame, int offset, int length) throws IOException {
+        if (this.closed) {
+            throw new IOException("The datagram session is closed");
+        }
+        if (length + FRAME_HEADER_SIZE > this.packet.length - PACKET_HEADER_SIZE) {
+            throw new IOException("A frame of " + length + " bytes does not fit in a " + this.packet.length + " byte datagram");
+        }
+        int protocol_id = frame[offset] & 0xff;
+        DatagramDelivery delivery = this.endpoint.getDelivery(protocol_id);
+        boolean was_empty = !this.packet_has_frames && this.unacked.isEmpty();
+        switch (delivery) {
+            case RELIABLE_ORDERED:
+                if (this.unacked.size() >= this.endpoint.getMaxUnacked()) {
+                    int unacked_frames = this.unacked.size();
+                    close();
+                    throw new IOException("The datagram session was closed with " + unacked_frames + " reliable frames unacknowledged by "
+                            + (this.remote_address != null ? this.remote_address : "a peer that has not been heard from"));
+                }
+                this.unacked.add(new Reliable(this.next_reliable++, Arrays.copyOfRange(frame, offset, offset + length)));
+                break;
+            case SEQUENCED:
+                append(delivery, this.send_sequences[protocol_id]++, frame, offset, length);
+                break;
+            default:
+                append(delivery, 0, frame, offset, length);
+                break;
+        }
+
+        if (was_empty) {
+            // Get the processor to send it sooner than its next iteration
+            this.client.getNetworkProcessor().wake();
+        }
+    }
+
+    private void append(DatagramDelivery delivery, int sequence, byte[] frame, int offset, int length) throws IOException {
+        if (this.packet_length + FRAME_HEADER_SIZE + length > this.packet.length) {
+            sendPacket();
+        }
+        int position = this.packet_length;
+        this.packet[position] = (byte) delivery.ordinal();
+        putInt(this.packet, position + 1, sequence);
+        this.packet[position + 5] = (byte) (length >> 8);
+        this.packet[position + 6] = (byte) length;
+        System.arraycopy(frame, offset, this.packet, position + FRAME_HEADER_SIZE, length);
+        this.packet_length = position + FRAME_HEADER_SIZE + length;
+        this.packet_has_frames = true;
+        this.frames_sent++;
+    }
+
+    private void sendPacket() throws IOException {
+        SocketAddress address = this.remote_address;
+        if (address != null && this.endpoint.isOpen()) {
+            this.packet[0] = DATA_PACKET;
+            putLong(this.packet, 1, this.token);
+            putInt(this.packet, 9, this.expected_reliable);
+            putInt(this.packet, 13, earlyBits());
+            this.packet_buffer.clear().limit(this.packet_length);
+            this.endpoint.send(this.packet_buffer, address);
+            this.ack_owed = false;
+            this.last_sent = System.currentTimeMillis();
+        }
+        // Without an address yet only reliable frames survive, they are still waiting to be acknowledged
+        this.packet_length = PACKET_HEADER_SIZE;
+        this.packet_has_frames = false;
+    }
+
+    /**
+     * Sends the datagram being built along with any reliable frames that are
+     * due, and an empty datagram if all we owe is an acknowledgement or we
+     * have been quiet for the keepalive interval. Called by the processor at
+     * the end of the client's turn.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (!this.unacked.isEmpty()) {
+            int resend_interval = this.endpoint.getResendInterval();
+            int window_end = this.unacked.peekFirst().sequence + WINDOW;
+            for (Reliable reliable : this.unacked) {
+                if (reliable.sequence - window_end >= 0) {
+                    break;
+                }
+                if (reliable.marked || (reliable.sent_at != 0 && now - reliable.sent_at < resend_interval)) {
+                    continue;
+                }
+                if (reliable.sent_at != 0) {
+                    this.resent_frames++;
+                }
+                append(DatagramDelivery.RELIABLE_ORDERED, reliable.sequence, reliable.data, 0, reliable.data.length);
+                reliable.sent_at = now;
+            }
+        }
+        if (this.packet_has_frames || this.ack_owed || now - this.last_sent >= KEEPALIVE_INTERVAL) {
+            sendPacket();
+        }
+    }
+
+    /**
+     * @return A bit for each of the reliable frames after the one we expect
+     * that has already arrived
+     */
+    private int earlyBits() {
+        int bits = 0;
+        for (int i = 0; i < WINDOW - 1; i++) {
+            int sequence = this.expected_reliable + 1 + i;
+            int slot = sequence & (WINDOW - 1);
+            if (this.early_frames[slot] != null && this.early_sequences[slot] == sequence) {
+                bits |= 1 << i;
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Takes a datagram for this session apart, called by the endpoint's
+     * receiving thread
+     */
+    protected synchronized void received(SocketAddress source, byte[] data, int length) throws IOException {
+        if (this.closed) {
+            return;
+        }
+        // Follow the client if its address changes, the token is what identifies it
+        this.remote_address = source;
+        acknowledged(getInt(data, 9), getInt(data, 13));
+
+        boolean delivered = false;
+        int position = PACKET_HEADER_SIZE;
+        while (position + FRAME_HEADER_SIZE <= length) {
+            int delivery_index = data[position];
+            int sequence = getInt(data, position + 1);
+            int frame_length = (data[position + 5] & 0xff) << 8 | (data[position + 6] & 0xff);
+            int frame = position + FRAME_HEADER_SIZE;
+            if (delivery_index < 0 || delivery_index >= DELIVERIES.length || frame_length == 0 || frame + frame_length > length) {
+                throw new IOException("Malformed datagram from " + source);
+            }
+            position = frame + frame_length;
+            this.frames_received++;
+
+            switch (DELIVERIES[delivery_index]) {
+                case RELIABLE_ORDERED:
+                    delivered |= receivedReliable(sequence, data, frame, frame_length);
+                    break;
+                case SEQUENCED:
+                    int protocol_id = data[frame] & 0xff;
+                    if (sequence - this.newest_sequences[protocol_id] <= 0) {
+                        this.stale_frames++;
+                        break;
+                    }
+                    if (deliver(data, frame, frame_length)) {
+                        this.newest_sequences[protocol_id] = sequence;
+                        delivered = true;
+                    }
+                    break;
+                default:
+                    delivered |= deliver(data, frame, frame_length);
+                    break;
+            }
+        }
+
+        if (delivered) {
+            this.client.getNetworkProcessor().wake();
+        }
+    }
+
+    private boolean receivedReliable(int sequence, byte[] data, int frame, int frame_length) {
+        // Whatever happens the sender needs to hear what we have
+        this.ack_owed = true;
+        int ahead = sequence - this.expected_reliable;
+        if (ahead < 0 || ahead >= WINDOW) {
+            // Already handed over, or too far ahead to keep
+            return false;
+        }
+        int slot = sequence & (WINDOW - 1);
+        if (ahead > 0) {
+            if (this.early_frames[slot] == null || this.early_sequences[slot] != sequence) {
+                this.early_frames[slot] = Arrays.copyOfRange(data, frame, frame + frame_length);
+                this.early_sequences[slot] = sequence;
+            }
+            return false;
+        }
+
+        // A full inbox leaves the frame unacknowledged so it is sent again
+        if (!deliver(data, frame, frame_length)) {
+            return false;
+        }
+        this.early_frames[slot] = null;
+        this.expected_reliable++;
+        // Hand over whatever was waiting on this one
+        while (true) {
+            slot = this.expected_reliable & (WINDOW - 1);
+            byte[] early = this.early_frames[slot];
+            if (early == null || this.early_sequences[slot] != this.expected_reliable || !deliver(early, 0, early.length)) {
+                break;
+            }
+            this.early_frames[slot] = null;
+            this.expected_reliable++;
+        }
+        return true;
+    }
+
+    private boolean deliver(byte[] data, int offset, int length) {
+        if (this.inbox.remaining() < length) {
+            this.dropped_frames++;
+            return false;
+        }
+        this.inbox.write(data, offset, length);
+        return true;
+    }
+
+    /**
+     * Drops reliable frames the other side has, everything before the
+     * sequence it expects and anything it has marked
+     */
+    private void acknowledged(int expected, int bits) {
+        Iterator<Reliable> iterator = this.unacked.iterator();
+        while (iterator.hasNext()) {
+            Reliable reliable = iterator.next();
+            int ahead = reliable.sequence - expected;
+            if (ahead < 0) {
+                iterator.remove();
+            } else if (ahead > 0 && ahead <= WINDOW - 1) {
+                reliable.marked = (bits & (1 << (ahead - 1))) != 0;
+            } else if (ahead >= WINDOW) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Stops the session, called for you when the client disconnects
+     */
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.unacked.clear();
+        this.endpoint.detach(this);
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    public synchronized long getFramesSent() {
+        return this.frames_sent;
+    }
+
+    public synchronized long getFramesReceived() {
+        return this.frames_received;
+    }
+
+    /**
+     * @return Sequenced frames dropped for arriving after a newer one
+     */
+    public synchronized long getStaleFrames() {
+        return this.stale_frames;
+    }
+
+    /**
+     * @return Frames dropped because the inbox was full
+     */
+    public synchronized long getDroppedFrames() {
+        return this.dropped_frames;
+    }
+
+    public synchronized long getResentFrames() {
+        return this.resent_frames;
+    }
+
+    /**
+     * @return Reliable frames sent or waiting to be sent that have not been
+     * acknowledged
+     */
+    public synchronized int getUnackedFrames() {
+        return this.unacked.size();
+    }
+
+    static long getLong(byte[] data, int offset) {
+        return (long) getInt(data, offset) << 32 | (getInt(data, offset + 4) & 0xffffffffL);
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+
+    private static void putLong(byte[] data, int offset, long value) {
+        putInt(data, offset, (int) (value >> 32));
+        putInt(data, offset + 4, (int) value);
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static class Reliable {
+
+        private final int sequence;
+        private final byte[] data;
+        // Zero until first sent
+        private long sent_at;
+        // The other side has it but is still waiting on an earlier frame
+        private boolean marked;
+
+        private Reliable(int sequence, byte[] data) {
+            this.sequence = sequence;
+            this.data = data;
+            this.sent_at = 0;
+            this.marked = false;
+        }
+    }
+
+    /**
+     * Feeds the session's input stream from the inbox, only the processor
+     * reads it
+     */
+    private class InboxConnection implements TransportConnection {
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            // Frames are only read once they are whole so there is never anything to wait for
+            return inbox.read(buffer, offset, length);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return inbox.available();
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            throw new IOException("The datagram inbox can not be written to");
+        }
+
+        @Override
+        public void flush() throws IOException {
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) throws IOException {
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return remote_address;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            DatagramSession.this.close();
+        }
+    }
+
+    /**
+     * Takes each frame the session's output stream finishes
+     */
+    private class OutboxConnection implements TransportConnection {
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            throw new IOException("The datagram outbox can not be read from");
+        }
+
+        @Override
+        public int available() throws IOException {
+            return 0;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            queueFrame(buffer, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // Frames are batched, the processor sends them at the end of the client's turn
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) throws IOException {
+        }
+
+        @Override
+        public SocketAddress getRemoteAddress() {
+            return remote_address;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            DatagramSession.this.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded by a network server for every accepted socket. The duration is the
+ * accept latency, from the socket being accepted until the client has been
+ * initiated and handed to its processor or has been rejected.
+ *
+ * @author dansb
+ */
+@Name("NibbleNetwork.Accept")
+@Label("Accept")
+@Category("NibbleNetwork")
+@Description("A connection was accepted and set up by the server")
+@Enabled(false)
+@StackTrace(false)
+public class AcceptEvent extends Event {
+
+    @Label("Remote Address")
+    public String remoteAddress;
+
+    @Label("Accepted")
+    @Description("False if the connection handler rejected the connection or set up failed")
+    public boolean accepted;
+}
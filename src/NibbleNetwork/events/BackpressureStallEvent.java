@@ -0,0 +1,51 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Recorded when a thread writing a frame is held up, either waiting for
+ * another thread to finish its frame or waiting for the socket to accept the
+ * flush. Only stalls longer than the threshold are recorded.
+ *
+ * @author dansb
+ */
+@Name("NibbleNetwork.BackpressureStall")
+@Label("Backpressure Stall")
+@Category("NibbleNetwork")
+@Description("A writer was blocked by the output stream lock or a full socket buffer")
+@Enabled(false)
+@Threshold("1 ms")
+public class BackpressureStallEvent extends Event {
+
+    @Label("Protocol Id")
+    public int protocolId;
+
+    @Label("Client")
+    public String client;
+
+    @Label("Flush")
+    @Description("True if blocked flushing to the socket, false if blocked waiting for the stream lock")
+    public boolean flush;
+}
@@ -0,0 +1,43 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded when a network client disconnects, along with why.
+ *
+ * @author dansb
+ */
+@Name("NibbleNetwork.Disconnect")
+@Label("Disconnect")
+@Category("NibbleNetwork")
+@Description("A network client was disconnected")
+@Enabled(false)
+public class DisconnectEvent extends Event {
+
+    @Label("Client")
+    public String client;
+
+    @Label("Reason")
+    public String reason;
+}
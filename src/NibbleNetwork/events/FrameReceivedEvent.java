@@ -0,0 +1,51 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded by a network processor for every inbound frame it dispatches. The
+ * duration covers the protocol's process_input.
+ *
+ * @author dansb
+ */
+@Name("NibbleNetwork.FrameReceived")
+@Label("Frame Received")
+@Category("NibbleNetwork")
+@Description("An inbound frame was read and dispatched to its protocol")
+@Enabled(false)
+@StackTrace(false)
+public class FrameReceivedEvent extends Event {
+
+    @Label("Protocol Id")
+    public int protocolId;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+
+    @Label("Client")
+    public String client;
+}
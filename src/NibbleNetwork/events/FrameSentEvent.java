@@ -0,0 +1,51 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Recorded when an outbound frame is finished. The duration is the time taken
+ * to flush the frame to the socket.
+ *
+ * @author dansb
+ */
+@Name("NibbleNetwork.FrameSent")
+@Label("Frame Sent")
+@Category("NibbleNetwork")
+@Description("An outbound frame was written and flushed")
+@Enabled(false)
+@StackTrace(false)
+public class FrameSentEvent extends Event {
+
+    @Label("Protocol Id")
+    public int protocolId;
+
+    @Label("Size")
+    @DataAmount
+    public long size;
+
+    @Label("Client")
+    public String client;
+}
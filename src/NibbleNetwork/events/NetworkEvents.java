@@ -0,0 +1,60 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.events;
+
+import java.util.Arrays;
+import java.util.List;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Recording;
+
+/**
+ * Every NibbleNetwork flight recorder event is disabled by default and costs
+ * next to nothing until a recording turns it on. Use this to enable all of
+ * them on a recording, or enable them by name in a .jfc settings file.
+ *
+ * @author dansb
+ */
+public class NetworkEvents {
+
+    // Checked before an event is created so disabled events are never allocated
+    public static final EventType FRAME_RECEIVED = EventType.getEventType(FrameReceivedEvent.class);
+    public static final EventType FRAME_SENT = EventType.getEventType(FrameSentEvent.class);
+    public static final EventType BACKPRESSURE_STALL = EventType.getEventType(BackpressureStallEvent.class);
+    public static final EventType PROCESSOR_TICK = EventType.getEventType(ProcessorTickEvent.class);
+    public static final EventType DISCONNECT = EventType.getEventType(DisconnectEvent.class);
+
+    private static final List<Class<? extends Event>> EVENTS = Arrays.<Class<? extends Event>>asList(
+            FrameReceivedEvent.class,
+            FrameSentEvent.class,
+            AcceptEvent.class,
+            DisconnectEvent.class,
+            ProcessorTickEvent.class,
+            BackpressureStallEvent.class);
+
+    public static void enableAll(Recording recording) {
+        for (Class<? extends Event> event : EVENTS) {
+            recording.enable(event);
+        }
+    }
+
+    public static void disableAll(Recording recording) {
+        for (Class<? extends Event> event : EVENTS) {
+            recording.disable(event);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Recorded for every iteration of a network processor thread, the duration is
+ * the time spent processing all of its clients.
+ *
+ * @author dansb
+ */
+@Name("NibbleNetwork.ProcessorTick")
+@Label("Processor Tick")
+@Category("NibbleNetwork")
+@Description("One iteration of a network processor over its clients")
+@Enabled(false)
+@StackTrace(false)
+public class ProcessorTickEvent extends Event {
+
+    @Label("Processor")
+    public String processor;
+
+    @Label("Clients")
+    public int clients;
+
+    @Label("Lateness")
+    @Description("How long after its deadline a fixed rate tick started")
+    @Timespan(Timespan.NANOSECONDS)
+    public long lateness;
+}
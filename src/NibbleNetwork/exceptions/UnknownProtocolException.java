@@ -0,0 +1,44 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.exceptions;
+
+/**
+ *
+ * @author dansb
+ */
+public class UnknownProtocolException extends NetworkException {
+
+    private final int protocol_id;
+
+    public UnknownProtocolException(int protocol_id) {
+        super("No protocol could be found with the id: " + protocol_id);
+        this.protocol_id = protocol_id;
+    }
+
+    /**
+     * A client sending garbage is not a bug in our code, the stack trace
+     * would only cost time
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+
+    public int getProtocolId() {
+        return this.protocol_id;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.idle;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spins, then yields, then parks for twice as long after each empty iteration
+ * up to a maximum. Traffic gets low latency while it keeps coming and an idle
+ * processor ends up costing next to nothing. Any iteration that does work
+ * starts the backoff again.
+ *
+ * @author dansb
+ */
+public class BackoffIdleStrategy implements IdleStrategy {
+
+    public static final int DEFAULT_SPINS = 100;
+    public static final int DEFAULT_YIELDS = 10;
+    public static final long DEFAULT_MIN_PARK = 1000;
+    public static final long DEFAULT_MAX_PARK = 1000000;
+
+    private final int max_spins;
+    private final int max_yields;
+    private final long min_park;
+    private final long max_park;
+    private int spins;
+    private int yields;
+    private long park;
+
+    public BackoffIdleStrategy() {
+        this(DEFAULT_SPINS, DEFAULT_YIELDS, DEFAULT_MIN_PARK, DEFAULT_MAX_PARK);
+    }
+
+    /**
+     * @param max_spins Empty iterations to spin for before yielding
+     * @param max_yields Empty iterations to yield for before parking
+     * @param min_park Nanoseconds of the first park
+     * @param max_park Nanoseconds the park doubles up to
+     */
+    public BackoffIdleStrategy(int max_spins, int max_yields, long min_park, long max_park) {
+        if (max_spins < 0 || max_yields < 0) {
+            throw new IllegalArgumentException("The spins and yields can not be negative");
+        }
+        if (min_park < 1 || max_park < min_park) {
+            throw new IllegalArgumentException("The park times must be above zero with the maximum no less than the minimum");
+        }
+        this.max_spins = max_spins;
+        this.max_yields = max_yields;
+        this.min_park = min_park;
+        this.max_park = max_park;
+        reset();
+    }
+
+    private void reset() {
+        spins = 0;
+        yields = 0;
+        park = min_park;
+    }
+
+    @Override
+    public void idle(int work_count) {
+        if (work_count != 0) {
+            reset();
+            return;
+        }
+
+        if (spins < max_spins) {
+            spins++;
+            Thread.onSpinWait();
+        } else if (yields < max_yields) {
+            yields++;
+            Thread.yield();
+        } else {
+            // Anything that wakes the processor cuts the park short
+            LockSupport.parkNanos(this, park);
+            park = Math.min(park * 2, max_park);
+        }
+    }
+}
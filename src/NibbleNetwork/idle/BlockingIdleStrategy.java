@@ -0,0 +1,58 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.idle;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs again straight away while there is work and otherwise parks until the
+ * processor is woken, see {@link NibbleNetwork.NetworkProcessor#wake()}.
+ * Submitted commands, datagrams arriving, frames queued for scheduled outbound
+ * and publisher demand all wake the processor. Stream connections are polled
+ * rather than signalled so the park is bounded by the poll interval, which is
+ * how late input on them may be noticed.
+ *
+ * @author dansb
+ */
+public class BlockingIdleStrategy implements IdleStrategy {
+
+    public static final long DEFAULT_POLL_INTERVAL = 10000000;
+
+    private final long poll_interval;
+
+    public BlockingIdleStrategy() {
+        this(DEFAULT_POLL_INTERVAL);
+    }
+
+    /**
+     * @param poll_interval Nanoseconds the processor may park for without
+     * being woken
+     */
+    public BlockingIdleStrategy(long poll_interval) {
+        if (poll_interval < 1) {
+            throw new IllegalArgumentException("The poll interval must be above zero");
+        }
+        this.poll_interval = poll_interval;
+    }
+
+    @Override
+    public void idle(int work_count) {
+        if (work_count == 0) {
+            LockSupport.parkNanos(this, poll_interval);
+        }
+    }
+}
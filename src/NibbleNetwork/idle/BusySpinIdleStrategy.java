@@ -0,0 +1,34 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.idle;
+
+/**
+ * Never gives up the processor's core. The lowest latency there is, at the
+ * cost of a whole core per processor, only worth it when the processor has a
+ * core to itself.
+ *
+ * @author dansb
+ */
+public class BusySpinIdleStrategy implements IdleStrategy {
+
+    @Override
+    public void idle(int work_count) {
+        if (work_count == 0) {
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.idle;
+
+/**
+ * Decides what a network processor thread does between iterations when it
+ * runs freely rather than at a fixed tick rate. Called on the processor thread
+ * after every iteration with how much work the iteration did, so a strategy
+ * can stay hot while there is traffic and back off once there is none.
+ *
+ * Strategies may keep state between calls, give each processor its own
+ * instance.
+ *
+ * @author dansb
+ */
+public interface IdleStrategy {
+
+    /**
+     * @param work_count Frames and commands handled by the iteration, zero if
+     * it found nothing to do
+     */
+    public void idle(int work_count);
+}
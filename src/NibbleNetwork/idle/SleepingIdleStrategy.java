@@ -0,0 +1,53 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.idle;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parks for the same time after every iteration, busy or not. Cheap and
+ * steady for bulk processors where a few milliseconds of latency do not
+ * matter. This is what a processor does unless told otherwise.
+ *
+ * @author dansb
+ */
+public class SleepingIdleStrategy implements IdleStrategy {
+
+    public static final long DEFAULT_PARK = 10000000;
+
+    private final long park;
+
+    public SleepingIdleStrategy() {
+        this(DEFAULT_PARK);
+    }
+
+    /**
+     * @param park Nanoseconds to park for after each iteration
+     */
+    public SleepingIdleStrategy(long park) {
+        if (park < 1) {
+            throw new IllegalArgumentException("The park time must be above zero");
+        }
+        this.park = park;
+    }
+
+    @Override
+    public void idle(int work_count) {
+        // Anything that wakes the processor cuts the park short
+        LockSupport.parkNanos(this, park);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.idle;
+
+/**
+ * Spins for a number of empty iterations and then yields the core on every
+ * empty iteration after that, so other threads can run but the processor is
+ * never parked.
+ *
+ * @author dansb
+ */
+public class YieldingIdleStrategy implements IdleStrategy {
+
+    public static final int DEFAULT_SPINS = 100;
+
+    private final int max_spins;
+    private int spins;
+
+    public YieldingIdleStrategy() {
+        this(DEFAULT_SPINS);
+    }
+
+    public YieldingIdleStrategy(int max_spins) {
+        if (max_spins < 0) {
+            throw new IllegalArgumentException("The spins can not be negative");
+        }
+        this.max_spins = max_spins;
+        this.spins = 0;
+    }
+
+    @Override
+    public void idle(int work_count) {
+        if (work_count != 0) {
+            spins = 0;
+            return;
+        }
+
+        if (spins < max_spins) {
+            spins++;
+            Thread.onSpinWait();
+        } else {
+            Thread.yield();
+        }
+    }
+}
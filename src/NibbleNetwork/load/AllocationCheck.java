@@ -0,0 +1,234 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.load;
+
+import NibbleNetwork.ClientConnectionHandler;
+import NibbleNetwork.InputNetworkProtocol;
+import NibbleNetwork.InputNetworkStream;
+import NibbleNetwork.NetworkClient;
+import NibbleNetwork.NetworkProcessor;
+import NibbleNetwork.OutputNetworkStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Allocation regression check for the steady state frame path. Two clients
+ * are joined by a loopback socket and both processors are driven from the
+ * main thread: one side sends a frame, the other side receives, decodes and
+ * dispatches it and sends a reply, which is then received and dispatched on
+ * the first side. After warming up, the bytes allocated by the main thread
+ * over a run of frames are measured with ThreadMXBean and the check exits
+ * with a failure if the frame path allocated.
+ *
+ * Run with "ant check-allocation".
+ *
+ * @author dansb
+ */
+public class AllocationCheck {
+
+    private static final int PROTOCOL = 1;
+    private static final String PAYLOAD = "The quick brown fox";
+
+    public static void main(String[] args) throws Exception {
+        int warmup = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        // Allow for the odd one-off allocation, anything per frame blows well past this
+        long budget = args.length > 2 ? Long.parseLong(args[2]) : frames / 10;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.err.println("This JVM cannot measure per thread allocations");
+            System.exit(2);
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        AllocationCheck check = new AllocationCheck();
+        check.setup();
+        try {
+            check.run(warmup);
+            long thread_id = Thread.currentThread().getId();
+            long before = threads.getThreadAllocatedBytes(thread_id);
+            check.run(frames);
+            long allocated = threads.getThreadAllocatedBytes(thread_id) - before;
+
+            System.out.println(String.format("Allocated %d bytes over %d frames (%.3f bytes per frame, budget %d bytes)",
+                    allocated, frames, (double) allocated / frames, budget));
+            if (allocated > budget) {
+                System.out.println("FAILED: the frame path allocates");
+                System.exit(1);
+            }
+            System.out.println("OK: the frame path is allocation free");
+        } finally {
+            check.close();
+        }
+        System.exit(0);
+    }
+
+    private LoadProcessor sending_processor;
+    private LoadProcessor receiving_processor;
+    private CheckClient sender;
+    private CheckClient receiver;
+    private EchoProtocol echo;
+    private EchoProtocol reply;
+    private int sequence;
+
+    private void setup() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        Socket sending_socket;
+        Socket receiving_socket;
+        try (ServerSocket listener = new ServerSocket(0, 1, loopback)) {
+            sending_socket = new Socket(loopback, listener.getLocalPort());
+            receiving_socket = listener.accept();
+        }
+        sending_socket.setTcpNoDelay(true);
+        receiving_socket.setTcpNoDelay(true);
+
+        sending_processor = new LoadProcessor();
+        receiving_processor = new LoadProcessor();
+        reply = new EchoProtocol(false);
+        echo = new EchoProtocol(true);
+        sending_processor.addInputProtocol(reply);
+        receiving_processor.addInputProtocol(echo);
+
+        sender = new CheckClient(sending_processor, sending_socket);
+        receiver = new CheckClient(receiving_processor, receiving_socket);
+        sender.setProcessor(sending_processor);
+        receiver.setProcessor(receiving_processor);
+
+        // Adding the clients started the processor threads, we drive the processors ourselves
+        stop(sending_processor);
+        stop(receiving_processor);
+        sequence = 0;
+    }
+
+    private static void stop(NetworkProcessor processor) throws InterruptedException {
+        if (processor.isRunning()) {
+            processor.stopThread();
+        }
+        if (processor.getThread() != null) {
+            processor.getThread().join();
+        }
+    }
+
+    private void run(int frames) throws Exception {
+        for (int i = 0; i < frames; i++) {
+            sequence++;
+            OutputNetworkStream output_stream = sender.getOutputStream();
+            synchronized (output_stream) {
+                output_stream.createFrame(PROTOCOL);
+                output_stream.write32(sequence);
+                output_stream.writeString(PAYLOAD);
+                output_stream.finishFrame();
+            }
+
+            while (echo.getLastSequence() != sequence) {
+                receiving_processor.process();
+                assertConnected();
+            }
+            while (reply.getLastSequence() != sequence) {
+                sending_processor.process();
+                assertConnected();
+            }
+        }
+    }
+
+    private void assertConnected() throws Exception {
+        if (!sender.isConnected() || !receiver.isConnected()) {
+            throw new Exception("A client disconnected during the allocation check");
+        }
+    }
+
+    private void close() throws Exception {
+        sender.disconnect();
+        receiver.disconnect();
+    }
+
+    private static class EchoProtocol extends InputNetworkProtocol {
+
+        private final boolean reply;
+        private final StringBuilder builder;
+        private int last_sequence;
+
+        public EchoProtocol(boolean reply) {
+            this.reply = reply;
+            this.builder = new StringBuilder(64);
+            this.last_sequence = 0;
+        }
+
+        public int getLastSequence() {
+            return this.last_sequence;
+        }
+
+        @Override
+        public void process_input(NetworkClient networkClient, InputNetworkStream input_stream) throws Exception {
+            int sequence = input_stream.read32();
+            builder.setLength(0);
+            input_stream.readString(builder);
+            if (reply) {
+                OutputNetworkStream output_stream = networkClient.getOutputStream();
+                synchronized (output_stream) {
+                    output_stream.createFrame(PROTOCOL);
+                    output_stream.write32(sequence);
+                    output_stream.writeString(PAYLOAD);
+                    output_stream.finishFrame();
+                }
+            }
+            this.last_sequence = sequence;
+        }
+
+        @Override
+        public int getId() {
+            return PROTOCOL;
+        }
+    }
+
+    private static class CheckClient extends NetworkClient {
+
+        public CheckClient(NetworkProcessor processor, Socket socket) throws Exception {
+            super(processor, socket);
+            setConnected(true);
+            setConnectionHandler(new ClientConnectionHandler() {
+                @Override
+                public void connection(NetworkClient client) throws Exception {
+
+                }
+
+                @Override
+                public void connection_problem(Exception ex) {
+                    ex.printStackTrace();
+                }
+
+                @Override
+                public void disconnection(NetworkClient client) {
+
+                }
+            });
+        }
+
+        @Override
+        public void Init() throws Exception {
+
+        }
+
+        @Override
+        public void priorDisconnection() {
+
+        }
+    }
+}
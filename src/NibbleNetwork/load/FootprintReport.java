@@ -0,0 +1,168 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.load;
+
+import NibbleNetwork.ClientConnectionHandler;
+import NibbleNetwork.NetworkClient;
+import NibbleNetwork.NetworkProcessor;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reports how much heap an idle connection costs. Loopback socket pairs are
+ * opened first and measured on their own, then both ends of every pair are
+ * wrapped in a network client and left idle, only pinging, on a handful of
+ * shared processors. The difference is what NibbleNetwork adds on top of the
+ * JDK socket, per client, and the total is projected out to a million idle
+ * connections.
+ *
+ * Each connection uses two file descriptors per end in this process, raise
+ * the open file limit for large runs. Run with "ant footprint".
+ *
+ * @author dansb
+ */
+public class FootprintReport {
+
+    private static final long PROJECTED_CONNECTIONS = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int processors = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        // Long enough for every client to have pinged and gone idle again
+        long idle = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+
+        List<NetworkProcessor> pool = new ArrayList<NetworkProcessor>();
+        for (int i = 0; i < processors; i++) {
+            pool.add(new LoadProcessor());
+        }
+
+        long empty = usedHeap();
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        List<Socket> sockets = new ArrayList<Socket>(connections * 2);
+        try (ServerSocket listener = new ServerSocket(0, connections, loopback)) {
+            for (int i = 0; i < connections; i++) {
+                Socket connecting = new Socket(loopback, listener.getLocalPort());
+                sockets.add(connecting);
+                sockets.add(listener.accept());
+            }
+        }
+        for (Socket socket : sockets) {
+            socket.setTcpNoDelay(true);
+        }
+        long with_sockets = usedHeap();
+
+        List<NetworkClient> clients = new ArrayList<NetworkClient>(sockets.size());
+        for (int i = 0; i < sockets.size(); i++) {
+            NetworkClient client = new IdleClient(pool.get(i % processors), sockets.get(i));
+            client.setProcessor(client.getNetworkProcessor());
+            clients.add(client);
+        }
+        awaitClients(pool, clients.size());
+        Thread.sleep(idle);
+        long with_clients = usedHeap();
+
+        int disconnected = 0;
+        for (NetworkClient client : clients) {
+            if (!client.isConnected()) {
+                disconnected++;
+            }
+        }
+
+        double socket_bytes = (double) (with_sockets - empty) / sockets.size();
+        double client_bytes = (double) (with_clients - with_sockets) / clients.size();
+        System.out.println(String.format("Idle connections     %d (%d clients, %d processors, %d disconnected)",
+                connections, clients.size(), processors, disconnected));
+        System.out.println(String.format("JDK socket           %.0f bytes per end", socket_bytes));
+        System.out.println(String.format("Network client       %.0f bytes per client", client_bytes));
+        System.out.println(String.format("Total                %.0f bytes per idle connection", socket_bytes + client_bytes));
+        System.out.println(String.format("Projected heap       %.0f MB for %d idle connections",
+                (socket_bytes + client_bytes) * PROJECTED_CONNECTIONS / (1024 * 1024), PROJECTED_CONNECTIONS));
+
+        for (NetworkClient client : clients) {
+            if (client.isConnected()) {
+                client.disconnect();
+            }
+        }
+        System.exit(disconnected == 0 ? 0 : 1);
+    }
+
+    private static void awaitClients(List<NetworkProcessor> pool, int total) throws Exception {
+        long deadline = System.currentTimeMillis() + 60000;
+        while (true) {
+            int added = 0;
+            for (NetworkProcessor processor : pool) {
+                added += processor.getTotalClients();
+            }
+            if (added == total) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new Exception("Only " + added + " of " + total + " clients reached their processors");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        // A few rounds so objects waiting on finalization or reference processing are gone too
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static class IdleClient extends NetworkClient {
+
+        public IdleClient(NetworkProcessor processor, Socket socket) throws Exception {
+            super(processor, socket);
+            setConnected(true);
+            setConnectionHandler(new ClientConnectionHandler() {
+                @Override
+                public void connection(NetworkClient client) throws Exception {
+
+                }
+
+                @Override
+                public void connection_problem(Exception ex) {
+                    ex.printStackTrace();
+                }
+
+                @Override
+                public void disconnection(NetworkClient client) {
+
+                }
+            });
+        }
+
+        @Override
+        public void Init() throws Exception {
+
+        }
+
+        @Override
+        public void priorDisconnection() {
+
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.load;
+
+import NibbleNetwork.NetworkClient;
+import NibbleNetwork.NetworkProcessor;
+
+/**
+ * A client driven by the load generator, it remembers when its next frame is
+ * due so sender threads can pace it.
+ *
+ * @author dansb
+ */
+public class LoadClient extends NetworkClient {
+
+    private long next_send;
+
+    public LoadClient(NetworkProcessor processor) throws Exception {
+        super(processor);
+        this.next_send = 0;
+    }
+
+    public long getNextSend() {
+        return this.next_send;
+    }
+
+    public void setNextSend(long next_send) {
+        this.next_send = next_send;
+    }
+
+    @Override
+    public void Init() throws Exception {
+
+    }
+
+    @Override
+    public void priorDisconnection() {
+
+    }
+}
@@ -0,0 +1,269 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.load;
+
+import NibbleNetwork.idle.BackoffIdleStrategy;
+import NibbleNetwork.idle.BlockingIdleStrategy;
+import NibbleNetwork.idle.BusySpinIdleStrategy;
+import NibbleNetwork.idle.IdleStrategy;
+import NibbleNetwork.idle.SleepingIdleStrategy;
+import NibbleNetwork.idle.YieldingIdleStrategy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Settings for a load generator run, parsed from the command line.
+ *
+ * @author dansb
+ */
+public class LoadConfig {
+
+    public int port = 0;
+    public int clients = 1000;
+    // Connections opened per second, zero opens them all at once
+    public int connect_rate = 0;
+    public int connect_threads = 16;
+    // Open every connection with NetworkClient.connectAll instead of a blocking connect per thread
+    public boolean bulk_connect = false;
+    public int duration = 30;
+    public double frame_rate = 10;
+    public int sender_threads = 4;
+    public int server_processors = 4;
+    public int client_processors = 4;
+    public int report_interval = 1;
+    public int client_timeout = 1000;
+    public int backlog = 50;
+    public int acceptors = 1;
+    public int max_connections = 0;
+    public double accept_rate = 0;
+    public boolean scheduled_outbound = false;
+    public String idle = "sleep";
+    // Null for TCP, otherwise the path of a Unix domain socket
+    public String unix_path = null;
+    // Null unless the run stays inside this JVM
+    public String loopback_name = null;
+    // Null unless the run goes through shared memory rings
+    public String shm_path = null;
+    public String csv = null;
+    public final List<MixEntry> mix = new ArrayList<MixEntry>();
+    private int total_weight = 0;
+
+    public static LoadConfig parse(String[] args) {
+        LoadConfig config = new LoadConfig();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--help")) {
+                throw new IllegalArgumentException(usage());
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg + "\n" + usage());
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--backlog":
+                    config.backlog = Integer.parseInt(value);
+                    break;
+                case "--acceptors":
+                    config.acceptors = Integer.parseInt(value);
+                    break;
+                case "--max-connections":
+                    config.max_connections = Integer.parseInt(value);
+                    break;
+                case "--accept-rate":
+                    config.accept_rate = Double.parseDouble(value);
+                    break;
+                case "--outbound":
+                    if (!value.equals("direct") && !value.equals("scheduled")) {
+                        throw new IllegalArgumentException("Outbound must be direct or scheduled\n" + usage());
+                    }
+                    config.scheduled_outbound = value.equals("scheduled");
+                    break;
+                case "--idle":
+                    if (!value.equals("spin") && !value.equals("yield") && !value.equals("backoff") && !value.equals("sleep") && !value.equals("block")) {
+                        throw new IllegalArgumentException("Idle must be spin, yield, backoff, sleep or block\n" + usage());
+                    }
+                    config.idle = value;
+                    break;
+                case "--unix":
+                    config.unix_path = value;
+                    break;
+                case "--loopback":
+                    config.loopback_name = value;
+                    break;
+                case "--shm":
+                    config.shm_path = value;
+                    break;
+                case "--port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "--clients":
+                    config.clients = Integer.parseInt(value);
+                    break;
+                case "--connect-rate":
+                    config.connect_rate = Integer.parseInt(value);
+                    break;
+                case "--connect-threads":
+                    config.connect_threads = Integer.parseInt(value);
+                    break;
+                case "--connect":
+                    if (!value.equals("threads") && !value.equals("bulk")) {
+                        throw new IllegalArgumentException("Connect must be threads or bulk\n" + usage());
+                    }
+                    config.bulk_connect = value.equals("bulk");
+                    break;
+                case "--duration":
+                    config.duration = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    config.frame_rate = Double.parseDouble(value);
+                    break;
+                case "--sender-threads":
+                    config.sender_threads = Integer.parseInt(value);
+                    break;
+                case "--server-processors":
+                    config.server_processors = Integer.parseInt(value);
+                    break;
+                case "--client-processors":
+                    config.client_processors = Integer.parseInt(value);
+                    break;
+                case "--report-interval":
+                    config.report_interval = Integer.parseInt(value);
+                    break;
+                case "--client-timeout":
+                    config.client_timeout = Integer.parseInt(value);
+                    break;
+                case "--csv":
+                    config.csv = value;
+                    break;
+                case "--mix":
+                    for (String entry : value.split(",")) {
+                        config.addMix(MixEntry.parse(entry));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg + "\n" + usage());
+            }
+        }
+
+        if (config.mix.isEmpty()) {
+            config.addMix(new MixEntry(1, 1, 16));
+        }
+        return config;
+    }
+
+    public static String usage() {
+        return "Usage: LoadGenerator [options]\n"
+                + "  --clients N            clients to connect (1000)\n"
+                + "  --connect-rate N       connections per second, 0 for a storm (0)\n"
+                + "  --connect-threads N    threads opening connections (16)\n"
+                + "  --connect MODE         threads or bulk non blocking connects, bulk ignores the rate (threads)\n"
+                + "  --duration S           seconds of steady state traffic (30)\n"
+                + "  --rate F               frames per second per client (10)\n"
+                + "  --mix id:weight:bytes  comma separated protocol mix (1:1:16)\n"
+                + "  --sender-threads N     threads pacing outbound frames (4)\n"
+                + "  --server-processors N  shared processors on the server (4)\n"
+                + "  --client-processors N  shared processors for the clients (4)\n"
+                + "  --report-interval S    seconds between samples (1)\n"
+                + "  --client-timeout MS    server side socket timeout (1000)\n"
+                + "  --backlog N            server accept backlog (50)\n"
+                + "  --acceptors N          server acceptor threads (1)\n"
+                + "  --max-connections N    server connection limit, 0 for none (0)\n"
+                + "  --accept-rate F        server accepts per second, 0 for no limit (0)\n"
+                + "  --outbound MODE        direct or scheduled frame sending (direct)\n"
+                + "  --idle STRATEGY        spin, yield, backoff, sleep or block between iterations (sleep)\n"
+                + "  --port N               port to listen on, 0 picks one (0)\n"
+                + "  --unix PATH            run over a Unix domain socket at PATH instead of TCP\n"
+                + "  --loopback NAME        run over in memory loopback connections instead of TCP\n"
+                + "  --shm PATH             run over shared memory rings handed out at PATH instead of TCP\n"
+                + "  --csv FILE             also write samples as CSV";
+    }
+
+    /**
+     * @return A new instance of the configured idle strategy, one per processor
+     */
+    public IdleStrategy newIdleStrategy() {
+        switch (idle) {
+            case "spin":
+                return new BusySpinIdleStrategy();
+            case "yield":
+                return new YieldingIdleStrategy();
+            case "backoff":
+                return new BackoffIdleStrategy();
+            case "block":
+                return new BlockingIdleStrategy();
+            default:
+                return new SleepingIdleStrategy();
+        }
+    }
+
+    public void addMix(MixEntry entry) {
+        if (entry.id <= 0 || entry.id > 255) {
+            throw new IllegalArgumentException("Mix protocol ids must be between 1 and 255");
+        }
+        for (MixEntry existing : this.mix) {
+            if (existing.id == entry.id) {
+                throw new IllegalArgumentException("Protocol " + entry.id + " appears twice in the mix");
+            }
+        }
+        this.mix.add(entry);
+        this.total_weight += entry.weight;
+    }
+
+    public MixEntry pick(Random random) {
+        int roll = random.nextInt(total_weight);
+        for (MixEntry entry : this.mix) {
+            roll -= entry.weight;
+            if (roll < 0) {
+                return entry;
+            }
+        }
+        return this.mix.get(this.mix.size() - 1);
+    }
+
+    /**
+     * A protocol in the traffic mix. Every frame carries an eight byte send
+     * timestamp followed by padding up to the configured size.
+     */
+    public static class MixEntry {
+
+        public final int id;
+        public final int weight;
+        public final int bytes;
+
+        public MixEntry(int id, int weight, int bytes) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Mix weights must be above zero");
+            }
+            this.id = id;
+            this.weight = weight;
+            this.bytes = Math.max(8, bytes);
+        }
+
+        public static MixEntry parse(String entry) {
+            String[] parts = entry.split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Mix entries are id:weight:bytes, got " + entry);
+            }
+            return new MixEntry(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        }
+
+        public int getPadding() {
+            return this.bytes - 8;
+        }
+    }
+}
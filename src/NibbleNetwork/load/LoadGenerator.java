@@ -0,0 +1,462 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.load;
+
+import NibbleNetwork.AdmissionController;
+import NibbleNetwork.ClientConnectionHandler;
+import NibbleNetwork.NetworkClient;
+import NibbleNetwork.NetworkProcessor;
+import NibbleNetwork.NetworkServer;
+import NibbleNetwork.ServerConnectionHandler;
+import NibbleNetwork.ServerNetworkClient;
+import NibbleNetwork.transport.LoopbackAddress;
+import NibbleNetwork.transport.SharedMemoryAddress;
+import NibbleNetwork.transport.TransportConnection;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * Reproduces production load against a NetworkServer over 127.0.0.1. A run
+ * has three phases: a connect storm, steady state traffic with a configurable
+ * protocol mix and rate, and a disconnect storm. Connect latency, frame
+ * latency percentiles, throughput, heap and thread counts are sampled over
+ * the whole run so capacity limits and regressions can be measured locally.
+ * Give it a long duration to use it as a soak test.
+ *
+ * Run with "ant load -Dload.args=..." or directly with java, see
+ * LoadConfig.usage() for the options.
+ *
+ * @author dansb
+ */
+public class LoadGenerator {
+
+    private static final String HOST = "127.0.0.1";
+
+    private final LoadConfig config;
+    private final List<NetworkProcessor> server_processors;
+    private final List<NetworkProcessor> client_processors;
+    private final List<LoadClient> clients;
+    private final LatencyHistogram interval_latency;
+    private final LatencyHistogram total_latency;
+    private final LatencyHistogram connect_latency;
+    private final AtomicLong sent;
+    private final AtomicLong received;
+    private final AtomicLong send_errors;
+    private final AtomicLong connect_failures;
+    private final AtomicLong server_problems;
+    private final AtomicInteger next_server_processor;
+    private NetworkServer server;
+    private SocketAddress address;
+    private volatile String phase;
+    private volatile boolean reporting;
+    private long started;
+    private long peak_heap;
+    private int peak_threads;
+    private PrintStream csv;
+
+    public LoadGenerator(LoadConfig config) {
+        this.config = config;
+        this.server_processors = new ArrayList<NetworkProcessor>();
+        this.client_processors = new ArrayList<NetworkProcessor>();
+        this.clients = new CopyOnWriteArrayList<LoadClient>();
+        this.interval_latency = new LatencyHistogram();
+        this.total_latency = new LatencyHistogram();
+        this.connect_latency = new LatencyHistogram();
+        this.sent = new AtomicLong();
+        this.received = new AtomicLong();
+        this.send_errors = new AtomicLong();
+        this.connect_failures = new AtomicLong();
+        this.server_problems = new AtomicLong();
+        this.next_server_processor = new AtomicInteger();
+        this.phase = "setup";
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadConfig config;
+        try {
+            config = LoadConfig.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        new LoadGenerator(config).run();
+        System.exit(0);
+    }
+
+    public void run() throws Exception {
+        if (config.csv != null) {
+            csv = new PrintStream(new FileOutputStream(config.csv));
+            csv.println("elapsed_s,phase,server_clients,client_connections,sent_per_s,received_per_s,p50_us,p99_us,p999_us,max_us,heap_mb,threads");
+        }
+
+        startServer();
+        started = System.nanoTime();
+        Thread reporter = startReporter();
+        try {
+            connectStorm();
+            steadyState();
+            disconnectStorm();
+        } finally {
+            reporting = false;
+            reporter.join();
+            server.close();
+            if (csv != null) {
+                csv.close();
+            }
+        }
+        printSummary();
+    }
+
+    private void startServer() throws Exception {
+        server = new NetworkServer();
+        for (int i = 0; i < config.server_processors; i++) {
+            NetworkProcessor processor = NetworkProcessor.Create(LoadProcessor.class, server);
+            for (LoadConfig.MixEntry entry : config.mix) {
+                processor.addInputProtocol(new LoadProtocol(entry, interval_latency, total_latency, received));
+            }
+            processor.setScheduledOutbound(config.scheduled_outbound);
+            processor.setIdleStrategy(config.newIdleStrategy());
+            server_processors.add(processor);
+        }
+        for (int i = 0; i < config.client_processors; i++) {
+            NetworkProcessor processor = NetworkProcessor.Create(LoadProcessor.class, server);
+            processor.setScheduledOutbound(config.scheduled_outbound);
+            processor.setIdleStrategy(config.newIdleStrategy());
+            client_processors.add(processor);
+        }
+
+        server.setConnectionHandler(new ServerConnectionHandler() {
+            @Override
+            public ServerNetworkClient connection(TransportConnection connection) throws Exception {
+                int index = Math.floorMod(next_server_processor.getAndIncrement(), server_processors.size());
+                return new LoadServerClient(server_processors.get(index), connection, server);
+            }
+
+            @Override
+            public void connection_problem(Exception ex) {
+                server_problems.incrementAndGet();
+            }
+
+            @Override
+            public void disconnection(NetworkClient client) {
+
+            }
+        });
+        if (config.max_connections != 0 || config.accept_rate != 0) {
+            AdmissionController admission = new AdmissionController();
+            admission.setMaxConnections(config.max_connections);
+            // Allow a second's worth of connections to arrive at once
+            admission.setGlobalRate(config.accept_rate, Math.max(1, config.accept_rate));
+            server.setAdmissionController(admission);
+        }
+        server.setBacklog(config.backlog);
+        server.setAcceptorCount(config.acceptors);
+        if (config.loopback_name != null) {
+            address = new LoopbackAddress(config.loopback_name);
+            server.listen(address, false, config.client_timeout);
+        } else if (config.shm_path != null) {
+            Path path = Path.of(config.shm_path);
+            Files.deleteIfExists(path);
+            address = new SharedMemoryAddress(path);
+            server.listen(address, false, config.client_timeout);
+        } else if (config.unix_path != null) {
+            Path path = Path.of(config.unix_path);
+            // Left behind by a run that was killed
+            Files.deleteIfExists(path);
+            address = UnixDomainSocketAddress.of(path);
+            server.listen(address, false, config.client_timeout);
+        } else {
+            server.listen(config.port, false, config.client_timeout);
+            address = new InetSocketAddress(HOST, server.getPort());
+        }
+        System.out.println("Listening on " + address + " with " + config.server_processors + " server processors");
+    }
+
+    private void connectStorm() throws Exception {
+        phase = "connect";
+        final ClientConnectionHandler handler = new ClientConnectionHandler() {
+            @Override
+            public void connection(NetworkClient client) throws Exception {
+
+            }
+
+            @Override
+            public void connection_problem(Exception ex) {
+                connect_failures.incrementAndGet();
+            }
+
+            @Override
+            public void disconnection(NetworkClient client) {
+
+            }
+        };
+
+        final long storm_started = System.nanoTime();
+        if (config.bulk_connect) {
+            bulkConnect(handler, storm_started);
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(config.connect_threads);
+        for (int i = 0; i < config.clients; i++) {
+            final int index = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (config.connect_rate > 0) {
+                        long due = storm_started + index * 1000000000L / config.connect_rate;
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    try {
+                        LoadClient client = new LoadClient(client_processors.get(index % client_processors.size()));
+                        client.setConnectionHandler(handler);
+                        long connect_started = System.nanoTime();
+                        client.connect(address, 5000, false);
+                        if (client.isConnected()) {
+                            connect_latency.record(System.nanoTime() - connect_started);
+                            clients.add(client);
+                        }
+                    } catch (Exception ex) {
+                        connect_failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+        System.out.println("Connected " + clients.size() + " of " + config.clients + " clients in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - storm_started) + "ms");
+    }
+
+    /**
+     * Opens every connection at once with non blocking connects, connect
+     * latency is measured from the start of the storm
+     */
+    private void bulkConnect(ClientConnectionHandler handler, final long storm_started) throws Exception {
+        List<CompletableFuture<NetworkClient>> futures = new ArrayList<CompletableFuture<NetworkClient>>();
+        for (int i = 0; i < config.clients; i++) {
+            final LoadClient client = new LoadClient(client_processors.get(i % client_processors.size()));
+            client.setConnectionHandler(handler);
+            futures.add(client.connectAsync(address, 5000).whenComplete(new BiConsumer<NetworkClient, Throwable>() {
+                @Override
+                public void accept(NetworkClient connected, Throwable problem) {
+                    if (connected != null) {
+                        connect_latency.record(System.nanoTime() - storm_started);
+                        clients.add(client);
+                    }
+                }
+            }));
+        }
+        for (CompletableFuture<NetworkClient> future : futures) {
+            try {
+                future.join();
+            } catch (CompletionException ex) {
+                // Counted by the connection handler
+            }
+        }
+        System.out.println("Connected " + clients.size() + " of " + config.clients + " clients in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - storm_started) + "ms with bulk connects");
+    }
+
+    private void steadyState() throws Exception {
+        phase = "steady";
+        final long interval = (long) (1000000000L / config.frame_rate);
+        final long ends = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.duration);
+        final List<LoadClient> connected = new ArrayList<LoadClient>(clients);
+        Thread[] senders = new Thread[config.sender_threads];
+        for (int i = 0; i < senders.length; i++) {
+            final int slice = i;
+            senders[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(slice);
+                    long now = System.nanoTime();
+                    for (int c = slice; c < connected.size(); c += senders.length) {
+                        // Spread the first frames so clients do not all send in lock step
+                        connected.get(c).setNextSend(now + (long) (random.nextDouble() * interval));
+                    }
+
+                    while ((now = System.nanoTime()) < ends) {
+                        for (int c = slice; c < connected.size(); c += senders.length) {
+                            LoadClient client = connected.get(c);
+                            if (!client.isConnected()) {
+                                continue;
+                            }
+                            if (now - client.getNextSend() > TimeUnit.SECONDS.toNanos(1)) {
+                                // Too far behind to catch up, drop the backlog rather than burst it
+                                client.setNextSend(now);
+                            }
+                            while (client.getNextSend() <= now) {
+                                try {
+                                    LoadProtocol.send(config.pick(random), client);
+                                    sent.incrementAndGet();
+                                } catch (Exception ex) {
+                                    send_errors.incrementAndGet();
+                                }
+                                client.setNextSend(client.getNextSend() + interval);
+                            }
+                        }
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    }
+                }
+            }, "NibbleNetwork load sender " + i);
+            senders[i].start();
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+    }
+
+    private void disconnectStorm() throws Exception {
+        phase = "disconnect";
+        long storm_started = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(config.connect_threads);
+        for (final LoadClient client : clients) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (client.isConnected()) {
+                            client.setDisconnectReason("Load test finished");
+                            client.disconnect();
+                        }
+                    } catch (Exception ex) {
+                        // The server may have dropped the client already
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.DAYS);
+        long closed = System.nanoTime();
+
+        // The server only notices a peer leaving when it next tries to use it, wait for it to drain
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (server.getTotalClients() != 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        System.out.println("Closed " + clients.size() + " clients in " + TimeUnit.NANOSECONDS.toMillis(closed - storm_started)
+                + "ms, server drained in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - storm_started) + "ms with "
+                + server.getTotalClients() + " left");
+    }
+
+    private Thread startReporter() {
+        reporting = true;
+        System.out.println(String.format("%8s %-10s %8s %8s %10s %10s %9s %9s %9s %9s %8s %7s",
+                "elapsed", "phase", "server", "clients", "sent/s", "recv/s", "p50 us", "p99 us", "p99.9 us", "max us", "heap mb", "threads"));
+        Thread reporter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                long last_sent = 0;
+                long last_received = 0;
+                long last_sample = System.nanoTime();
+                while (reporting) {
+                    try {
+                        Thread.sleep(TimeUnit.SECONDS.toMillis(config.report_interval));
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+
+                    long now = System.nanoTime();
+                    double seconds = (now - last_sample) / 1e9;
+                    long total_sent = sent.get();
+                    long total_received = received.get();
+                    Runtime runtime = Runtime.getRuntime();
+                    long heap = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+                    int thread_count = threads.getThreadCount();
+                    peak_heap = Math.max(peak_heap, heap);
+                    peak_threads = Math.max(peak_threads, thread_count);
+                    int connected = 0;
+                    for (LoadClient client : clients) {
+                        if (client.isConnected()) {
+                            connected++;
+                        }
+                    }
+
+                    Object[] sample = new Object[]{
+                        (now - started) / 1e9, phase, server.getTotalClients(), connected,
+                        (long) ((total_sent - last_sent) / seconds), (long) ((total_received - last_received) / seconds),
+                        interval_latency.getPercentile(50) / 1000, interval_latency.getPercentile(99) / 1000,
+                        interval_latency.getPercentile(99.9) / 1000, interval_latency.getMax() / 1000,
+                        heap, thread_count
+                    };
+                    interval_latency.reset();
+                    System.out.println(String.format("%8.1f %-10s %8d %8d %10d %10d %9d %9d %9d %9d %8d %7d", sample));
+                    if (csv != null) {
+                        csv.println(String.format("%.1f,%s,%d,%d,%d,%d,%d,%d,%d,%d,%d,%d", sample));
+                    }
+                    last_sent = total_sent;
+                    last_received = total_received;
+                    last_sample = now;
+                }
+            }
+        }, "NibbleNetwork load reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+        return reporter;
+    }
+
+    private void printSummary() {
+        System.out.println();
+        System.out.println("Summary");
+        System.out.println("  clients connected   " + clients.size() + " of " + config.clients + " (" + connect_failures.get() + " failures)");
+        System.out.println("  connect latency ms  p50 " + millis(connect_latency.getPercentile(50))
+                + " p99 " + millis(connect_latency.getPercentile(99)) + " max " + millis(connect_latency.getMax()));
+        System.out.println("  frames sent         " + sent.get() + " (" + send_errors.get() + " errors)");
+        System.out.println("  frames received     " + received.get());
+        System.out.println("  frame latency us    p50 " + total_latency.getPercentile(50) / 1000
+                + " p99 " + total_latency.getPercentile(99) / 1000
+                + " p99.9 " + total_latency.getPercentile(99.9) / 1000
+                + " max " + total_latency.getMax() / 1000
+                + " mean " + (long) (total_latency.getMean() / 1000));
+        System.out.println("  peak heap mb        " + peak_heap);
+        System.out.println("  peak threads        " + peak_threads);
+        System.out.println("  server problems     " + server_problems.get());
+        if (server.getAdmissionController() != null) {
+            System.out.println("  server rejected     " + server.getAdmissionController().getTotalRejected());
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+}
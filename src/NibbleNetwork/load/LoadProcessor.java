@@ -0,0 +1,62 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.load;
+
+import NibbleNetwork.NetworkClient;
+import NibbleNetwork.NetworkServer;
+import NibbleNetwork.SharedNetworkProcessor;
+
+/**
+ * Shared processor used on both sides of a load run, it accepts every client.
+ *
+ * @author dansb
+ */
+public class LoadProcessor extends SharedNetworkProcessor {
+
+    public LoadProcessor() throws Exception {
+        this(null);
+    }
+
+    public LoadProcessor(NetworkServer server) throws Exception {
+        super(server);
+    }
+
+    @Override
+    protected void InitProtocols() throws Exception {
+
+    }
+
+    @Override
+    protected void Init() throws Exception {
+
+    }
+
+    @Override
+    public void welcome(NetworkClient client) throws Exception {
+
+    }
+
+    @Override
+    public boolean shouldAllowClient(NetworkClient client) throws Exception {
+        return true;
+    }
+
+    @Override
+    public void clientRemoved(NetworkClient client) throws Exception {
+
+    }
+}
@@ -0,0 +1,85 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.load;
+
+import NibbleNetwork.InputNetworkProtocol;
+import NibbleNetwork.InputNetworkStream;
+import NibbleNetwork.NetworkClient;
+import NibbleNetwork.OutputNetworkStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server side of a protocol in the load mix. The client and server share a
+ * JVM so the send timestamp in the frame gives the one way frame latency
+ * directly.
+ *
+ * @author dansb
+ */
+public class LoadProtocol extends InputNetworkProtocol {
+
+    private final LoadConfig.MixEntry entry;
+    private final LatencyHistogram interval_latency;
+    private final LatencyHistogram total_latency;
+    private final AtomicLong received;
+
+    public LoadProtocol(LoadConfig.MixEntry entry, LatencyHistogram interval_latency, LatencyHistogram total_latency, AtomicLong received) {
+        this.entry = entry;
+        this.interval_latency = interval_latency;
+        this.total_latency = total_latency;
+        this.received = received;
+    }
+
+    /**
+     * Writes one frame of this protocol to the client
+     *
+     * @param entry
+     * @param client
+     * @throws Exception
+     */
+    public static void send(LoadConfig.MixEntry entry, NetworkClient client) throws Exception {
+        OutputNetworkStream output_stream = client.getOutputStream();
+        synchronized (output_stream) {
+            output_stream.createFrame(entry.id);
+            long now = System.nanoTime();
+            output_stream.write32((int) now);
+            output_stream.write32((int) (now >>> 32));
+            for (int i = entry.getPadding(); i > 0; i--) {
+                output_stream.write8(i);
+            }
+            output_stream.finishFrame();
+        }
+    }
+
+    @Override
+    public void process_input(NetworkClient networkClient, InputNetworkStream input_stream) throws Exception {
+        long low = input_stream.read32() & 0xffffffffL;
+        long high = input_stream.read32();
+        long sent = (high << 32) | low;
+        for (int i = entry.getPadding(); i > 0; i--) {
+            input_stream.read8();
+        }
+        long latency = System.nanoTime() - sent;
+        interval_latency.record(latency);
+        total_latency.record(latency);
+        received.incrementAndGet();
+    }
+
+    @Override
+    public int getId() {
+        return entry.id;
+    }
+}
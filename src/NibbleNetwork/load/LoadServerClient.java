@@ -0,0 +1,43 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.load;
+
+import NibbleNetwork.NetworkProcessor;
+import NibbleNetwork.NetworkServer;
+import NibbleNetwork.ServerNetworkClient;
+import NibbleNetwork.transport.TransportConnection;
+
+/**
+ *
+ * @author dansb
+ */
+public class LoadServerClient extends ServerNetworkClient {
+
+    public LoadServerClient(NetworkProcessor processor, TransportConnection connection, NetworkServer server) throws Exception {
+        super(processor, connection, server);
+    }
+
+    @Override
+    public void Init() throws Exception {
+
+    }
+
+    @Override
+    public void priorDisconnection() {
+
+    }
+}
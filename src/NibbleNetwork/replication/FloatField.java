@@ -0,0 +1,59 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.replication;
+
+import NibbleNetwork.InputNetworkStream;
+import NibbleNetwork.OutputNetworkStream;
+
+/**
+ *
+ * @author dansb
+ */
+public class FloatField extends SyncField {
+
+    private volatile float value;
+
+    public FloatField() {
+        this(0);
+    }
+
+    public FloatField(float value) {
+        this.value = value;
+    }
+
+    public float get() {
+        return this.value;
+    }
+
+    public void set(float value) {
+        // Compared by bits so NaN does not count as a change every time
+        if (Float.floatToIntBits(this.value) != Float.floatToIntBits(value)) {
+            this.value = value;
+            changed();
+        }
+    }
+
+    @Override
+    public void write(OutputNetworkStream output_stream) throws Exception {
+        output_stream.write32(Float.floatToIntBits(this.value));
+    }
+
+    @Override
+    public void read(InputNetworkStream input_stream) throws Exception {
+        this.value = Float.intBitsToFloat(input_stream.read32());
+    }
+}
@@ -0,0 +1,58 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.replication;
+
+import NibbleNetwork.InputNetworkStream;
+import NibbleNetwork.OutputNetworkStream;
+
+/**
+ *
+ * @author dansb
+ */
+public class IntField extends SyncField {
+
+    private volatile int value;
+
+    public IntField() {
+        this(0);
+    }
+
+    public IntField(int value) {
+        this.value = value;
+    }
+
+    public int get() {
+        return this.value;
+    }
+
+    public void set(int value) {
+        if (this.value != value) {
+            this.value = value;
+            changed();
+        }
+    }
+
+    @Override
+    public void write(OutputNetworkStream output_stream) throws Exception {
+        output_stream.write32(this.value);
+    }
+
+    @Override
+    public void read(InputNetworkStream input_stream) throws Exception {
+        this.value = input_stream.read32();
+    }
+}
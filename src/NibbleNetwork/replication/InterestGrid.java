@@ -0,0 +1,378 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.replication;
+
+import NibbleNetwork.NetworkClient;
+import NibbleNetwork.NetworkObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Interest by distance on a plane. Objects and viewing clients are placed on
+ * a uniform grid of cells, an object becomes relevant to a client once it is
+ * within the radius and stops being relevant once it is further than the
+ * radius plus the hysteresis, so objects on the edge do not flicker in and
+ * out.
+ *
+ * Only the cells around a client are looked at, and a client is only looked
+ * at again when it has moved or something in or near its relevant set has
+ * changed, so the work per tick grows with how crowded each client's
+ * surroundings are rather than with the size of the world. Pick a cell size
+ * around the radius. An object that is not registered with the replicator
+ * yet, or a client that has not been added to it, is looked at again once
+ * something is registered or added.
+ *
+ * The same sets can target other sends, getInterestedClients gives the
+ * clients an object is relevant to for a {@link NibbleNetwork.NetworkPacket}.
+ *
+ * @author dansb
+ */
+public class InterestGrid implements InterestPolicy {
+
+    private final float cell_size;
+    private float radius;
+    private float hysteresis;
+    private final Map<Long, Cell> cells;
+    private final Map<NetworkObject, Entity> entities;
+    private final Map<NetworkClient, Viewer> viewers;
+    // Bumped by every change so a viewer can tell whether anything happened since it last looked
+    private long version;
+    // The replicator's registrations as of the last update
+    private int registrations;
+
+    /**
+     * @param cell_size The width of a grid cell
+     * @param radius How close an object has to be to become relevant
+     * @param hysteresis How much further than the radius an object has to go
+     * before it stops being relevant
+     */
+    public InterestGrid(float cell_size, float radius, float hysteresis) {
+        if (cell_size <= 0) {
+            throw new IllegalArgumentException("The cell size must be above zero");
+        }
+        this.cell_size = cell_size;
+        this.cells = new HashMap<Long, Cell>();
+        this.entities = new HashMap<NetworkObject, Entity>();
+        this.viewers = new HashMap<NetworkClient, Viewer>();
+        this.version = 0;
+        this.registrations = 0;
+        setRange(radius, hysteresis);
+    }
+
+    public synchronized void setRange(float radius, float hysteresis) {
+        if (radius <= 0 || hysteresis < 0) {
+            throw new IllegalArgumentException("The radius must be above zero and the hysteresis can not be negative");
+        }
+        this.radius = radius;
+        this.hysteresis = hysteresis;
+        for (Viewer viewer : this.viewers.values()) {
+            viewer.moved = true;
+        }
+    }
+
+    public synchronized float getRadius() {
+        return this.radius;
+    }
+
+    public synchronized float getHysteresis() {
+        return this.hysteresis;
+    }
+
+    /**
+     * Places the object or moves it
+     *
+     * @param object
+     * @param x
+     * @param y
+     */
+    public synchronized void update(NetworkObject object, float x, float y) {
+        Entity entity = this.entities.get(object);
+        if (entity == null) {
+            entity = new Entity(object);
+            this.entities.put(object, entity);
+        }
+        this.version++;
+        entity.x = x;
+        entity.y = y;
+        entity.version = this.version;
+        Cell cell = getCell(x, y);
+        if (cell != entity.cell) {
+            if (entity.cell != null) {
+                leaveCell(entity);
+            }
+            entity.cell = cell;
+            cell.entities.add(entity);
+        }
+        cell.version = this.version;
+    }
+
+    /**
+     * Takes the object off the grid, clients it was relevant to lose it on
+     * the next tick
+     *
+     * @param object
+     */
+    public synchronized void remove(NetworkObject object) {
+        Entity entity = this.entities.remove(object);
+        if (entity == null) {
+            return;
+        }
+        this.version++;
+        entity.removed = true;
+        entity.version = this.version;
+        leaveCell(entity);
+    }
+
+    private void leaveCell(Entity entity) {
+        Cell cell = entity.cell;
+        cell.entities.remove(entity);
+        cell.version = this.version;
+        if (cell.entities.isEmpty()) {
+            this.cells.remove(cell.key);
+        }
+        entity.cell = null;
+    }
+
+    /**
+     * Places the client's point of view or moves it
+     *
+     * @param client
+     * @param x
+     * @param y
+     */
+    public synchronized void setViewer(NetworkClient client, float x, float y) {
+        Viewer viewer = this.viewers.get(client);
+        if (viewer == null) {
+            viewer = new Viewer(client);
+            this.viewers.put(client, viewer);
+        }
+        viewer.x = x;
+        viewer.y = y;
+        viewer.moved = true;
+    }
+
+    public synchronized void removeViewer(NetworkClient client) {
+        Viewer viewer = this.viewers.remove(client);
+        if (viewer != null) {
+            for (Entity entity : viewer.relevant) {
+                entity.viewers.remove(viewer);
+            }
+            viewer.relevant.clear();
+        }
+    }
+
+    /**
+     * @param object
+     * @return The clients the object is relevant to
+     */
+    public synchronized List<NetworkClient> getInterestedClients(NetworkObject object) {
+        List<NetworkClient> clients = new ArrayList<NetworkClient>();
+        Entity entity = this.entities.get(object);
+        if (entity != null) {
+            for (Viewer viewer : entity.viewers) {
+                clients.add(viewer.client);
+            }
+        }
+        return clients;
+    }
+
+    /**
+     * @param client
+     * @return The objects relevant to the client
+     */
+    public synchronized List<NetworkObject> getRelevantObjects(NetworkClient client) {
+        List<NetworkObject> objects = new ArrayList<NetworkObject>();
+        Viewer viewer = this.viewers.get(client);
+        if (viewer != null) {
+            for (Entity entity : viewer.relevant) {
+                objects.add(entity.object);
+            }
+        }
+        return objects;
+    }
+
+    public synchronized int getTotalObjects() {
+        return this.entities.size();
+    }
+
+    @Override
+    public synchronized void update(Replicator replicator) throws Exception {
+        int registrations = replicator.getRegistrations();
+        boolean registered = registrations != this.registrations;
+        this.registrations = registrations;
+        Iterator<Viewer> iterator = this.viewers.values().iterator();
+        while (iterator.hasNext()) {
+            Viewer viewer = iterator.next();
+            if (!viewer.client.isConnected()) {
+                for (Entity entity : viewer.relevant) {
+                    entity.viewers.remove(viewer);
+                }
+                iterator.remove();
+                continue;
+            }
+            if (viewer.moved || (registered && viewer.refused) || hasChanged(viewer)) {
+                scan(viewer, replicator);
+            }
+        }
+    }
+
+    private boolean hasChanged(Viewer viewer) {
+        for (Entity entity : viewer.relevant) {
+            if (entity.version > viewer.scanned_version) {
+                return true;
+            }
+        }
+        float reach = this.radius;
+        int min_x = cellIndex(viewer.x - reach);
+        int max_x = cellIndex(viewer.x + reach);
+        int min_y = cellIndex(viewer.y - reach);
+        int max_y = cellIndex(viewer.y + reach);
+        for (int cell_x = min_x; cell_x <= max_x; cell_x++) {
+            for (int cell_y = min_y; cell_y <= max_y; cell_y++) {
+                Cell cell = this.cells.get(key(cell_x, cell_y));
+                if (cell != null && cell.version > viewer.scanned_version) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void scan(Viewer viewer, Replicator replicator) {
+        viewer.moved = false;
+        viewer.refused = false;
+        viewer.scanned_version = this.version;
+
+        float keep = this.radius + this.hysteresis;
+        float keep_squared = keep * keep;
+        Iterator<Entity> relevant = viewer.relevant.iterator();
+        while (relevant.hasNext()) {
+            Entity entity = relevant.next();
+            if (entity.removed || distanceSquared(viewer, entity) > keep_squared) {
+                relevant.remove();
+                entity.viewers.remove(viewer);
+                replicator.removeInterest(viewer.client, entity.object);
+            }
+        }
+
+        float radius_squared = this.radius * this.radius;
+        int min_x = cellIndex(viewer.x - this.radius);
+        int max_x = cellIndex(viewer.x + this.radius);
+        int min_y = cellIndex(viewer.y - this.radius);
+        int max_y = cellIndex(viewer.y + this.radius);
+        for (int cell_x = min_x; cell_x <= max_x; cell_x++) {
+            for (int cell_y = min_y; cell_y <= max_y; cell_y++) {
+                Cell cell = this.cells.get(key(cell_x, cell_y));
+                if (cell == null) {
+                    continue;
+                }
+                for (Entity entity : cell.entities) {
+                    if (distanceSquared(viewer, entity) > radius_squared || viewer.relevant.contains(entity)) {
+                        continue;
+                    }
+                    if (replicator.addInterest(viewer.client, entity.object)) {
+                        viewer.relevant.add(entity);
+                        entity.viewers.add(viewer);
+                    } else {
+                        viewer.refused = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private static float distanceSquared(Viewer viewer, Entity entity) {
+        float dx = entity.x - viewer.x;
+        float dy = entity.y - viewer.y;
+        return dx * dx + dy * dy;
+    }
+
+    private int cellIndex(float position) {
+        return (int) Math.floor(position / this.cell_size);
+    }
+
+    private static long key(int cell_x, int cell_y) {
+        return (long) cell_x << 32 | (cell_y & 0xffffffffL);
+    }
+
+    private Cell getCell(float x, float y) {
+        long key = key(cellIndex(x), cellIndex(y));
+        Cell cell = this.cells.get(key);
+        if (cell == null) {
+            cell = new Cell(key);
+            this.cells.put(key, cell);
+        }
+        return cell;
+    }
+
+    private static class Cell {
+
+        private final long key;
+        private final List<Entity> entities;
+        private long version;
+
+        private Cell(long key) {
+            this.key = key;
+            this.entities = new ArrayList<Entity>();
+            this.version = 0;
+        }
+    }
+
+    private static class Entity {
+
+        private final NetworkObject object;
+        private final Set<Viewer> viewers;
+        private Cell cell;
+        private float x;
+        private float y;
+        private long version;
+        private boolean removed;
+
+        private Entity(NetworkObject object) {
+            this.object = object;
+            this.viewers = new HashSet<Viewer>();
+            this.cell = null;
+            this.version = 0;
+            this.removed = false;
+        }
+    }
+
+    private static class Viewer {
+
+        private final NetworkClient client;
+        private final Set<Entity> relevant;
+        private float x;
+        private float y;
+        private boolean moved;
+        // Whether the replicator turned down an object on the last scan
+        private boolean refused;
+        private long scanned_version;
+
+        private Viewer(NetworkClient client) {
+            this.client = client;
+            this.relevant = new HashSet<Entity>();
+            this.moved = true;
+            this.refused = false;
+            this.scanned_version = -1;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.replication;
+
+/**
+ * Decides which objects a replicator sends to which clients, see
+ * {@link Replicator#setInterestPolicy}. Asked at the start of every tick with
+ * the replicator locked, the policy calls addInterest and removeInterest for
+ * whatever changed since the last tick.
+ *
+ * @author dansb
+ */
+public interface InterestPolicy {
+
+    public void update(Replicator replicator) throws Exception;
+}
@@ -0,0 +1,62 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.replication;
+
+import NibbleNetwork.InputNetworkStream;
+import NibbleNetwork.OutputNetworkStream;
+
+/**
+ *
+ * @author dansb
+ */
+public class LongField extends SyncField {
+
+    private volatile long value;
+
+    public LongField() {
+        this(0);
+    }
+
+    public LongField(long value) {
+        this.value = value;
+    }
+
+    public long get() {
+        return this.value;
+    }
+
+    public void set(long value) {
+        if (this.value != value) {
+            this.value = value;
+            changed();
+        }
+    }
+
+    @Override
+    public void write(OutputNetworkStream output_stream) throws Exception {
+        long current = this.value;
+        output_stream.write32((int) (current >> 32));
+        output_stream.write32((int) current);
+    }
+
+    @Override
+    public void read(InputNetworkStream input_stream) throws Exception {
+        long high = input_stream.read32();
+        long low = input_stream.read32() & 0xffffffffL;
+        this.value = high << 32 | low;
+    }
+}
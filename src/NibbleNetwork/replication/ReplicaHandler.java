@@ -0,0 +1,39 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.replication;
+
+import NibbleNetwork.NetworkObject;
+
+/**
+ * Creates and throws away the objects a {@link ReplicaSet} is told about.
+ * Called on the processor thread reading the snapshots.
+ *
+ * @author dansb
+ */
+public interface ReplicaHandler {
+
+    /**
+     * @param object_type The type the server's object gave
+     * @param object_id
+     * @return A new object with the same fields registered in the same order
+     * as the server's object
+     * @throws Exception
+     */
+    public NetworkObject spawn(int object_type, int object_id) throws Exception;
+
+    public void despawn(NetworkObject object) throws Exception;
+}
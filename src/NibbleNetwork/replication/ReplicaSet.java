@@ -0,0 +1,190 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.replication;
+
+import NibbleNetwork.InputNetworkProtocol;
+import NibbleNetwork.InputNetworkStream;
+import NibbleNetwork.NetworkClient;
+import NibbleNetwork.NetworkObject;
+import NibbleNetwork.OutputNetworkStream;
+import NibbleNetwork.datagram.DatagramSession;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The receiving side of a {@link Replicator}, add it as an input protocol on
+ * the processor of the client that connects to the replicating server.
+ * Objects are created and removed through the replica handler and their
+ * fields are set as snapshots arrive. Once every frame of a tick has arrived
+ * the tick is acknowledged on the stream the snapshot came on. A snapshot
+ * that resets the set despawns every object it did not spawn once all of it
+ * has arrived.
+ *
+ * @author dansb
+ */
+public class ReplicaSet extends InputNetworkProtocol {
+
+    private final int snapshot_protocol_id;
+    private final int ack_protocol_id;
+    private final ReplicaHandler handler;
+    private final Map<Integer, NetworkObject> objects;
+    // Only touched by the processor thread
+    private int receiving_tick;
+    private int next_part;
+    // The objects spawned by the reset being received, null when the tick is not a reset
+    private Set<Integer> kept;
+    private volatile int last_tick;
+
+    public ReplicaSet(int snapshot_protocol_id, int ack_protocol_id, ReplicaHandler handler) {
+        this.snapshot_protocol_id = snapshot_protocol_id;
+        this.ack_protocol_id = ack_protocol_id;
+        this.handler = handler;
+        this.objects = new ConcurrentHashMap<Integer, NetworkObject>();
+        this.receiving_tick = 0;
+        this.next_part = 0;
+        this.kept = null;
+        this.last_tick = 0;
+    }
+
+    @Override
+    public void process_input(NetworkClient client, InputNetworkStream input_stream) throws Exception {
+        int tick = input_stream.read32();
+        int part = input_stream.read16();
+        if (tick != this.receiving_tick) {
+            this.receiving_tick = tick;
+            this.next_part = 0;
+            this.kept = null;
+        }
+        // A part that went missing means this tick can never be acknowledged
+        this.next_part = part == this.next_part ? this.next_part + 1 : -1;
+
+        while (true) {
+            int operation = input_stream.read8();
+            switch (operation) {
+                case Replicator.END:
+                    return;
+                case Replicator.END_TICK:
+                    if (this.next_part != -1) {
+                        if (this.kept != null) {
+                            despawnOthers();
+                        }
+                        acknowledge(client, input_stream, tick);
+                    }
+                    return;
+                case Replicator.RESET:
+                    this.kept = new HashSet<Integer>();
+                    break;
+                case Replicator.SPAWN:
+                    spawn(input_stream);
+                    break;
+                case Replicator.UPDATE:
+                    int object_id = input_stream.read32();
+                    NetworkObject object = this.objects.get(object_id);
+                    if (object == null) {
+                        throw new Exception("Update for object " + object_id + " which was never spawned");
+                    }
+                    readFields(object, input_stream);
+                    break;
+                case Replicator.DESPAWN:
+                    NetworkObject removed = this.objects.remove(input_stream.read32());
+                    if (removed != null) {
+                        this.handler.despawn(removed);
+                    }
+                    break;
+                default:
+                    throw new Exception("Unknown snapshot entry " + operation);
+            }
+        }
+    }
+
+    private void spawn(InputNetworkStream input_stream) throws Exception {
+        int object_id = input_stream.read32();
+        int object_type = input_stream.read16();
+        NetworkObject object = this.objects.get(object_id);
+        if (object == null) {
+            object = this.handler.spawn(object_type, object_id);
+            if (object == null) {
+                throw new Exception("The replica handler did not spawn object " + object_id + " of type " + object_type);
+            }
+            this.objects.put(object_id, object);
+        }
+        if (this.kept != null) {
+            this.kept.add(object_id);
+        }
+        readFields(object, input_stream);
+    }
+
+    private void despawnOthers() throws Exception {
+        Iterator<Map.Entry<Integer, NetworkObject>> iterator = this.objects.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, NetworkObject> entry = iterator.next();
+            if (!this.kept.contains(entry.getKey())) {
+                iterator.remove();
+                this.handler.despawn(entry.getValue());
+            }
+        }
+        this.kept = null;
+    }
+
+    private void readFields(NetworkObject object, InputNetworkStream input_stream) throws Exception {
+        long low = input_stream.read32() & 0xffffffffL;
+        long high = input_stream.read32();
+        long mask = high << 32 | low;
+        ReplicationState state = object.getReplication();
+        for (int i = 0; i < ReplicationState.MAX_FIELDS && mask != 0; i++) {
+            if ((mask & 1) != 0) {
+                state.getField(i).read(input_stream);
+            }
+            mask >>>= 1;
+        }
+    }
+
+    private void acknowledge(NetworkClient client, InputNetworkStream input_stream, int tick) throws Exception {
+        this.last_tick = tick;
+        DatagramSession session = client.getDatagramSession();
+        OutputNetworkStream output_stream = session != null && session.getInputStream() == input_stream ? session.getOutputStream() : client.getOutputStream();
+        synchronized (output_stream) {
+            output_stream.createFrame(this.ack_protocol_id);
+            output_stream.write32(tick);
+            output_stream.finishFrame();
+        }
+    }
+
+    public NetworkObject getObject(int object_id) {
+        return this.objects.get(object_id);
+    }
+
+    public Collection<NetworkObject> getObjects() {
+        return this.objects.values();
+    }
+
+    /**
+     * @return The last tick received in full
+     */
+    public int getLastTick() {
+        return this.last_tick;
+    }
+
+    @Override
+    public int getId() {
+        return this.snapshot_protocol_id;
+    }
+}
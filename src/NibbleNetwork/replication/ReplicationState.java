@@ -0,0 +1,172 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.replication;
+
+import NibbleNetwork.NetworkObject;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * The replication side of a network object, its synced fields and which of
+ * them have changed since the replicator last looked. Created by the first
+ * field an object syncs so objects that are never replicated, clients among
+ * them, do not pay for it.
+ *
+ * Fields may be changed from any thread, the dirty mask is updated atomically
+ * and the first change after a tick hands the object to its replicator.
+ * Everything else is only touched by the replicator.
+ *
+ * @author dansb
+ */
+public class ReplicationState {
+
+    // One bit of the dirty mask per field
+    public static final int MAX_FIELDS = 64;
+
+    private static final VarHandle DIRTY;
+
+    static {
+        try {
+            DIRTY = MethodHandles.lookup().findVarHandle(ReplicationState.class, "dirty", long.class);
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private final NetworkObject owner;
+    private SyncField[] fields;
+    private int field_count;
+    private volatile long dirty;
+    private volatile Replicator replicator;
+    private volatile int object_id;
+    // Only touched by the replicator
+    private int spawn_tick;
+    private int changed_tick;
+    private int stamp;
+
+    public ReplicationState(NetworkObject owner) {
+        this.owner = owner;
+        this.fields = new SyncField[4];
+        this.field_count = 0;
+        this.dirty = 0;
+        this.replicator = null;
+        this.object_id = -1;
+        this.spawn_tick = 0;
+        this.changed_tick = 0;
+        this.stamp = 0;
+    }
+
+    public synchronized void add(SyncField field) {
+        if (this.replicator != null) {
+            throw new IllegalStateException("Fields can not be added once the object is replicated");
+        }
+        if (this.field_count == MAX_FIELDS) {
+            throw new IllegalStateException("An object can not sync more than " + MAX_FIELDS + " fields");
+        }
+        field.attach(this, this.field_count);
+        if (this.field_count == this.fields.length) {
+            this.fields = Arrays.copyOf(this.fields, this.fields.length * 2);
+        }
+        this.fields[this.field_count++] = field;
+    }
+
+    void markDirty(int index) {
+        long bit = 1L << index;
+        long current;
+        do {
+            current = this.dirty;
+            if ((current & bit) != 0) {
+                return;
+            }
+        } while (!DIRTY.compareAndSet(this, current, current | bit));
+
+        Replicator current_replicator = this.replicator;
+        if (current == 0 && current_replicator != null) {
+            current_replicator.dirty(this);
+        }
+    }
+
+    long takeDirty() {
+        return (long) DIRTY.getAndSet(this, 0L);
+    }
+
+    public NetworkObject getOwner() {
+        return this.owner;
+    }
+
+    public int getFieldCount() {
+        return this.field_count;
+    }
+
+    public SyncField getField(int index) {
+        if (index < 0 || index >= this.field_count) {
+            throw new IndexOutOfBoundsException("The object has no field " + index);
+        }
+        return this.fields[index];
+    }
+
+    /**
+     * @return A mask with a bit set for every field
+     */
+    public long getAllFields() {
+        return this.field_count == MAX_FIELDS ? -1L : (1L << this.field_count) - 1;
+    }
+
+    /**
+     * @return The id the object is replicated under or -1 if it is not
+     */
+    public int getObjectId() {
+        return this.object_id;
+    }
+
+    void setObjectId(int object_id) {
+        this.object_id = object_id;
+    }
+
+    Replicator getReplicator() {
+        return this.replicator;
+    }
+
+    void setReplicator(Replicator replicator) {
+        this.replicator = replicator;
+    }
+
+    int getSpawnTick() {
+        return this.spawn_tick;
+    }
+
+    void setSpawnTick(int spawn_tick) {
+        this.spawn_tick = spawn_tick;
+    }
+
+    int getChangedTick() {
+        return this.changed_tick;
+    }
+
+    void setChangedTick(int changed_tick) {
+        this.changed_tick = changed_tick;
+    }
+
+    int getStamp() {
+        return this.stamp;
+    }
+
+    void setStamp(int stamp) {
+        this.stamp = stamp;
+    }
+}
@@ -0,0 +1,748 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.replication;
+
+import NibbleNetwork.InputNetworkProtocol;
+import NibbleNetwork.InputNetworkStream;
+import NibbleNetwork.NetworkClient;
+import NibbleNetwork.NetworkObject;
+import NibbleNetwork.NetworkProcessor;
+import NibbleNetwork.OutputNetworkStream;
+import NibbleNetwork.TickListener;
+import NibbleNetwork.datagram.DatagramSession;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the state of network objects to clients, once per tick and only what
+ * changed. Add the replicator to a processor as a tick listener and add its
+ * ack protocol to the processors of the clients it replicates to, the other
+ * side reads the snapshots with a {@link ReplicaSet}.
+ *
+ * Each tick the fields marked dirty since the last tick are stamped with the
+ * tick number and the objects are put in that tick's change list. A client's
+ * snapshot is encoded against the last tick it acknowledged, it holds every
+ * object in the change lists since then with only the fields that changed
+ * after that tick, and the objects removed since. A client that has
+ * acknowledged nothing is sent every object in full. Removals are only kept
+ * for as long as the history, so a client that falls further behind than
+ * that is reset, it is sent every object in full and drops whatever else it
+ * has until it acknowledges one of those snapshots. Nothing needs to be kept
+ * per client other than the tick it acknowledged.
+ *
+ * Snapshots are split into frames of about the max frame bytes. A client only
+ * acknowledges a tick once it has every frame of it, so a lost datagram just
+ * means the next snapshot carries the same changes. Snapshots go over the
+ * client's datagram session if it has one and over its connection otherwise.
+ * Every frame counts against the receiving client's weight, so a client
+ * whose weight is below the frames in a snapshot falls behind.
+ *
+ * With an interest policy each client is only sent the objects the policy
+ * has made relevant to it. An object is spawned on a client when it becomes
+ * relevant and despawned when it stops being relevant, and a snapshot costs
+ * the size of the client's relevant set rather than the whole world.
+ *
+ * @author dansb
+ */
+public class Replicator implements TickListener {
+
+    public static final int DEFAULT_HISTORY = 64;
+    public static final int DEFAULT_MAX_FRAME_BYTES = 1024;
+
+    // What follows in a snapshot frame
+    static final int END = 0;
+    static final int SPAWN = 1;
+    static final int UPDATE = 2;
+    static final int DESPAWN = 3;
+    static final int END_TICK = 4;
+    static final int RESET = 5;
+
+    private final int snapshot_protocol_id;
+    private final AckProtocol ack_protocol;
+    private final Queue<ReplicationState> dirty_objects;
+    private final Map<NetworkClient, ClientView> views;
+    // Held for the whole of replicate so snapshots go out in tick order
+    private final Object send_lock;
+    // The clients with a snapshot to send this tick, guarded by the send lock
+    private final ArrayList<ClientView> sending;
+    private volatile int max_frame_bytes;
+    private volatile InterestPolicy interest_policy;
+
+    // Guarded by this
+    private final Map<Integer, ReplicationState> objects;
+    private final ArrayList<ReplicationState> spawned;
+    private final ArrayDeque<Removal> removals;
+    private final ArrayList<ReplicationState>[] changes;
+    private final int history_mask;
+    private int tick;
+    private int next_object_id;
+    private int stamp;
+    // Bumped when an object or client is added so a policy can retry what addInterest turned down
+    private int registrations;
+
+    public Replicator(int snapshot_protocol_id, int ack_protocol_id) {
+        this(snapshot_protocol_id, ack_protocol_id, DEFAULT_HISTORY);
+    }
+
+    /**
+     * @param snapshot_protocol_id The protocol snapshots are sent with
+     * @param ack_protocol_id The protocol clients acknowledge snapshots with
+     * @param history How many ticks of changes are kept to encode snapshots
+     * against, rounded up to a power of two. A client further behind than
+     * this is sent everything.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Replicator(int snapshot_protocol_id, int ack_protocol_id, int history) {
+        if (history < 1) {
+            throw new IllegalArgumentException("The history must be at least one tick");
+        }
+        int size = Integer.highestOneBit(Math.max(history, 2) - 1) << 1;
+        this.snapshot_protocol_id = snapshot_protocol_id;
+        this.ack_protocol = new AckProtocol(ack_protocol_id);
+        this.dirty_objects = new ConcurrentLinkedQueue<ReplicationState>();
+        this.views = new ConcurrentHashMap<NetworkClient, ClientView>();
+        this.send_lock = new Object();
+        this.sending = new ArrayList<ClientView>();
+        this.max_frame_bytes = DEFAULT_MAX_FRAME_BYTES;
+        this.interest_policy = null;
+        this.objects = new LinkedHashMap<Integer, ReplicationState>();
+        this.spawned = new ArrayList<ReplicationState>();
+        this.removals = new ArrayDeque<Removal>();
+        this.changes = new ArrayList[size];
+        for (int i = 0; i < size; i++) {
+            this.changes[i] = new ArrayList<ReplicationState>();
+        }
+        this.history_mask = size - 1;
+        this.tick = 0;
+        this.next_object_id = 0;
+        this.stamp = 0;
+        this.registrations = 0;
+    }
+
+    /**
+     * Starts replicating the object, every client gets it in full with its
+     * next snapshot
+     *
+     * @param object
+     * @return The id the object is replicated under
+     * @throws Exception
+     */
+    public synchronized int register(NetworkObject object) throws Exception {
+        ReplicationState state = object.getReplication();
+        if (state.getReplicator() != null) {
+            throw new Exception("The object is already being replicated");
+        }
+        int object_id = ++this.next_object_id;
+        state.setObjectId(object_id);
+        state.setSpawnTick(this.tick + 1);
+        state.setChangedTick(this.tick + 1);
+        for (int i = 0; i < state.getFieldCount(); i++) {
+            state.getField(i).setChangedTick(this.tick + 1);
+        }
+        state.setReplicator(this);
+        // The spawn carries every field
+        state.takeDirty();
+        this.objects.put(object_id, state);
+        this.spawned.add(state);
+        this.registrations++;
+        return object_id;
+    }
+
+    /**
+     * Stops replicating the object, clients that have it are told to remove
+     * it
+     *
+     * @param object
+     */
+    public synchronized void unregister(NetworkObject object) {
+        ReplicationState state = object.getReplication();
+        if (state.getReplicator() != this) {
+            return;
+        }
+        int object_id = state.getObjectId();
+        this.objects.remove(object_id);
+        this.spawned.remove(state);
+        state.setReplicator(null);
+        state.setObjectId(-1);
+        this.removals.add(new Removal(this.tick + 1, object_id));
+    }
+
+    public synchronized NetworkObject getObject(int object_id) {
+        ReplicationState state = this.objects.get(object_id);
+        return state == null ? null : state.getOwner();
+    }
+
+    public synchronized int getTotalObjects() {
+        return this.objects.size();
+    }
+
+    /**
+     * Starts sending snapshots to the client, disconnected clients are
+     * dropped by themselves
+     *
+     * @param client
+     */
+    public synchronized void addClient(NetworkClient client) {
+        if (!this.views.containsKey(client)) {
+            this.views.put(client, new ClientView(client, this.tick));
+            this.registrations++;
+        }
+    }
+
+    public void removeClient(NetworkClient client) {
+        this.views.remove(client);
+    }
+
+    public int getTotalClients() {
+        return this.views.size();
+    }
+
+    /**
+     * @param client
+     * @return The last tick the client acknowledged, zero if it has not
+     * acknowledged any or is not being replicated to
+     */
+    public int getAckedTick(NetworkClient client) {
+        ClientView view = this.views.get(client);
+        return view == null ? 0 : view.acked_tick.get();
+    }
+
+    public synchronized int getTick() {
+        return this.tick;
+    }
+
+    /**
+     * @return A count that changes whenever an object is registered or a
+     * client is added
+     */
+    synchronized int getRegistrations() {
+        return this.registrations;
+    }
+
+    /**
+     * @return The protocol to add to the processors of replicated clients so
+     * their acknowledgements are read
+     */
+    public InputNetworkProtocol getAckProtocol() {
+        return this.ack_protocol;
+    }
+
+    /**
+     * @param max_frame_bytes Roughly how big a snapshot frame may grow before
+     * the snapshot carries on in another frame. Keep it below the datagram
+     * MTU when snapshots go over datagram sessions.
+     */
+    public void setMaxFrameBytes(int max_frame_bytes) {
+        if (max_frame_bytes <= 0) {
+            throw new IllegalArgumentException("The max frame bytes must be above zero");
+        }
+        this.max_frame_bytes = max_frame_bytes;
+    }
+
+    public int getMaxFrameBytes() {
+        return this.max_frame_bytes;
+    }
+
+    /**
+     * Sets the policy that decides which objects each client is sent, null
+     * sends every object to every client. The policy is asked at the start of
+     * every tick.
+     *
+     * @param interest_policy
+     */
+    public synchronized void setInterestPolicy(InterestPolicy interest_policy) {
+        this.interest_policy = interest_policy;
+    }
+
+    public InterestPolicy getInterestPolicy() {
+        return this.interest_policy;
+    }
+
+    /**
+     * Makes the object relevant to the client, it is spawned on the client
+     * with the next snapshot. Only used while there is an interest policy.
+     *
+     * @param client
+     * @param object
+     * @return False if nothing was recorded because the object is not
+     * registered or the client has not been added
+     */
+    public synchronized boolean addInterest(NetworkClient client, NetworkObject object) {
+        ClientView view = this.views.get(client);
+        ReplicationState state = object.getReplication();
+        if (view == null || state.getReplicator() != this) {
+            return false;
+        }
+        if (!view.relevant.containsKey(state)) {
+            view.relevant.put(state, new Interest(this.tick + 1));
+        }
+        return true;
+    }
+
+    /**
+     * The object stops being relevant to the client and is despawned on it
+     *
+     * @param client
+     * @param object
+     */
+    public synchronized void removeInterest(NetworkClient client, NetworkObject object) {
+        ClientView view = this.views.get(client);
+        ReplicationState state = object.getReplication();
+        if (view == null || view.relevant.remove(state) == null || state.getReplicator() != this) {
+            return;
+        }
+        view.leaves.add(new Removal(this.tick + 1, state.getObjectId()));
+    }
+
+    /**
+     * @param client
+     * @return How many objects are relevant to the client
+     */
+    public synchronized int getTotalInterests(NetworkClient client) {
+        ClientView view = this.views.get(client);
+        return view == null ? 0 : view.relevant.size();
+    }
+
+    void dirty(ReplicationState state) {
+        this.dirty_objects.add(state);
+    }
+
+    @Override
+    public void tick(NetworkProcessor processor) throws Exception {
+        replicate();
+    }
+
+    /**
+     * Advances the tick and sends every client its snapshot. Called for you
+     * when the replicator is a processor's tick listener. What each client is
+     * sent is worked out with the replicator locked, the frames are written
+     * after it is unlocked so a slow client does not hold up registering
+     * objects and the like.
+     *
+     * @throws Exception
+     */
+    public void replicate() throws Exception {
+        synchronized (this.send_lock) {
+            int current = prepare();
+            for (ClientView view : this.sending) {
+                try {
+                    send(view, current);
+                } catch (Exception ex) {
+                    // Part of a snapshot may have gone out so the client can not make sense of the stream any more
+                    Logger.getLogger(Replicator.class.getName()).log(Level.WARNING, "Could not replicate to " + view.client, ex);
+                    this.views.remove(view.client, view);
+                    try {
+                        if (view.client.isConnected()) {
+                            view.client.setDisconnectReason("Replication failed: " + ex);
+                            view.client.disconnect();
+                        }
+                    } catch (Exception ex2) {
+                        Logger.getLogger(Replicator.class.getName()).log(Level.SEVERE, null, ex2);
+                    }
+                }
+            }
+            this.sending.clear();
+        }
+    }
+
+    /**
+     * Advances the tick and takes the snapshot of every client that has
+     * something to be sent
+     *
+     * @return The new tick
+     * @throws Exception
+     */
+    private synchronized int prepare() throws Exception {
+        InterestPolicy policy = this.interest_policy;
+        if (policy != null) {
+            // Before the tick moves on so interest changes land in this tick
+            policy.update(this);
+        }
+        int current = ++this.tick;
+        if (current == 0) {
+            // Zero means nothing acknowledged
+            current = ++this.tick;
+        }
+        ArrayList<ReplicationState> changed = this.changes[current & this.history_mask];
+        changed.clear();
+        changed.addAll(this.spawned);
+        this.spawned.clear();
+
+        ReplicationState state;
+        while ((state = this.dirty_objects.poll()) != null) {
+            if (state.getReplicator() != this) {
+                continue;
+            }
+            long mask = state.takeDirty();
+            if (mask == 0) {
+                continue;
+            }
+            for (int i = 0; i < state.getFieldCount(); i++) {
+                if ((mask & (1L << i)) != 0) {
+                    state.getField(i).setChangedTick(current);
+                }
+            }
+            if (state.getChangedTick() != current) {
+                state.setChangedTick(current);
+                changed.add(state);
+            }
+        }
+
+        int removal_floor = current;
+        Iterator<ClientView> iterator = this.views.values().iterator();
+        while (iterator.hasNext()) {
+            ClientView view = iterator.next();
+            if (!view.client.isConnected()) {
+                iterator.remove();
+                continue;
+            }
+            if (current - view.getFloor() > this.history_mask + 1) {
+                // The removals it is missing may be gone, a client that never acks would otherwise keep them all
+                view.reset(current);
+            }
+            snapshot(view, current);
+            if (view.entries == 0) {
+                // Nothing changed since the acknowledged tick so the client is already up to date
+                view.acknowledge(current);
+            } else {
+                this.sending.add(view);
+            }
+            int floor = view.getFloor();
+            if (floor - removal_floor < 0) {
+                removal_floor = floor;
+            }
+        }
+
+        // Every client has seen these removals, or was never sent the objects
+        while (!this.removals.isEmpty() && this.removals.peekFirst().tick - removal_floor <= 0) {
+            this.removals.pollFirst();
+        }
+        return current;
+    }
+
+    /**
+     * Works out the entries of the client's snapshot, the objects' field
+     * values are only read once the snapshot is sent
+     *
+     * @param view
+     * @param current
+     */
+    private void snapshot(ClientView view, int current) {
+        int acked = view.acked_tick.get();
+        boolean filtered = this.interest_policy != null;
+        boolean reset = view.isResetting();
+        boolean full = acked == 0 || reset;
+        view.entries = 0;
+        if (reset) {
+            // The client drops every object the snapshot does not spawn so no despawns are needed
+            view.addEntry(RESET, 0, 0, 0, null);
+        } else {
+            // Despawns go first so an object that left and came back ends up spawned
+            int floor = view.getFloor();
+            for (Removal removal : this.removals) {
+                if (removal.tick - floor > 0) {
+                    view.addEntry(DESPAWN, removal.object_id, 0, 0, null);
+                }
+            }
+            for (Removal leave : view.leaves) {
+                if (leave.tick - floor > 0) {
+                    view.addEntry(DESPAWN, leave.object_id, 0, 0, null);
+                }
+            }
+        }
+
+        if (filtered) {
+            Iterator<Map.Entry<ReplicationState, Interest>> iterator = view.relevant.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<ReplicationState, Interest> entry = iterator.next();
+                ReplicationState state = entry.getKey();
+                if (state.getReplicator() != this) {
+                    // Unregistered, the despawn is already in the removals
+                    iterator.remove();
+                    continue;
+                }
+                boolean spawn = full || entry.getValue().enter_tick - acked > 0 || state.getSpawnTick() - acked > 0;
+                if (spawn || state.getChangedTick() - acked > 0) {
+                    addObject(view, state, spawn, acked);
+                }
+            }
+        } else if (full) {
+            for (ReplicationState state : this.objects.values()) {
+                addObject(view, state, true, acked);
+            }
+        } else {
+            int stamp = ++this.stamp;
+            for (int tick = acked + 1; tick - current <= 0; tick++) {
+                for (ReplicationState state : this.changes[tick & this.history_mask]) {
+                    if (state.getStamp() == stamp || state.getReplicator() != this) {
+                        continue;
+                    }
+                    state.setStamp(stamp);
+                    addObject(view, state, state.getSpawnTick() - acked > 0, acked);
+                }
+            }
+        }
+
+        // Leaves the client has acknowledged are done with
+        while (acked != 0 && !view.leaves.isEmpty() && view.leaves.peekFirst().tick - acked <= 0) {
+            view.leaves.pollFirst();
+        }
+    }
+
+    private void addObject(ClientView view, ReplicationState state, boolean spawn, int acked) {
+        long mask;
+        if (spawn) {
+            mask = state.getAllFields();
+        } else {
+            mask = 0;
+            for (int i = 0; i < state.getFieldCount(); i++) {
+                if (state.getField(i).getChangedTick() - acked > 0) {
+                    mask |= 1L << i;
+                }
+            }
+            if (mask == 0) {
+                return;
+            }
+        }
+        // The id and type are taken now, the object may be unregistered before it is written
+        view.addEntry(spawn ? SPAWN : UPDATE, state.getObjectId(), state.getOwner().getObjectType(), mask, state);
+    }
+
+    /**
+     * Writes the client's snapshot in frames of about the max frame bytes,
+     * each frame is written whole with the stream locked like any other
+     * sender's
+     *
+     * @param view
+     * @param current
+     * @throws Exception
+     */
+    private void send(ClientView view, int current) throws Exception {
+        DatagramSession session = view.client.getDatagramSession();
+        OutputNetworkStream output_stream = session != null ? session.getOutputStream() : view.client.getOutputStream();
+        int index = 0;
+        int part = 0;
+        try {
+            while (index < view.entries) {
+                synchronized (output_stream) {
+                    output_stream.createFrame(this.snapshot_protocol_id);
+                    try {
+                        long frame_start = output_stream.getBytesWritten();
+                        output_stream.write32(current);
+                        output_stream.write16(part);
+                        do {
+                            writeEntry(output_stream, view.snapshot.get(index++));
+                        } while (index < view.entries && output_stream.getBytesWritten() - frame_start < this.max_frame_bytes);
+                        output_stream.write8(index < view.entries ? END : END_TICK);
+                    } catch (Exception ex) {
+                        try {
+                            // Lets go of the stream, the frame is lost either way
+                            output_stream.finishFrame();
+                        } catch (Exception ex2) {
+                        }
+                        throw ex;
+                    }
+                    output_stream.finishFrame();
+                }
+                part++;
+            }
+        } finally {
+            // Do not keep unregistered objects around until the next snapshot
+            for (int i = 0; i < view.entries; i++) {
+                view.snapshot.get(i).state = null;
+            }
+            view.entries = 0;
+        }
+        if (session != null) {
+            // Do not leave the snapshot waiting for the processor's next iteration
+            session.flush();
+        }
+    }
+
+    private void writeEntry(OutputNetworkStream output_stream, Entry entry) throws Exception {
+        output_stream.write8(entry.operation);
+        if (entry.operation == RESET) {
+            return;
+        }
+        output_stream.write32(entry.object_id);
+        if (entry.operation == DESPAWN) {
+            return;
+        }
+        if (entry.operation == SPAWN) {
+            output_stream.write16(entry.object_type);
+        }
+        output_stream.write32((int) entry.mask);
+        output_stream.write32((int) (entry.mask >>> 32));
+        ReplicationState state = entry.state;
+        for (int i = 0; i < state.getFieldCount(); i++) {
+            if ((entry.mask & (1L << i)) != 0) {
+                state.getField(i).write(output_stream);
+            }
+        }
+    }
+
+    private static class ClientView {
+
+        private final NetworkClient client;
+        private final int joined_tick;
+        private final AtomicInteger acked_tick;
+        // Only used with an interest policy, guarded by the replicator
+        private final Map<ReplicationState, Interest> relevant;
+        private final ArrayDeque<Removal> leaves;
+        // Guarded by the replicator, zero while the client is not being reset
+        private int reset_tick;
+        // The snapshot being sent, only touched while the send lock is held
+        private final ArrayList<Entry> snapshot;
+        private int entries;
+
+        private ClientView(NetworkClient client, int joined_tick) {
+            this.client = client;
+            this.joined_tick = joined_tick;
+            this.acked_tick = new AtomicInteger(0);
+            this.relevant = new HashMap<ReplicationState, Interest>();
+            this.leaves = new ArrayDeque<Removal>();
+            this.reset_tick = 0;
+            this.snapshot = new ArrayList<Entry>();
+            this.entries = 0;
+        }
+
+        private void addEntry(int operation, int object_id, int object_type, long mask, ReplicationState state) {
+            if (this.entries == this.snapshot.size()) {
+                this.snapshot.add(new Entry());
+            }
+            Entry entry = this.snapshot.get(this.entries++);
+            entry.operation = operation;
+            entry.object_id = object_id;
+            entry.object_type = object_type;
+            entry.mask = mask;
+            entry.state = state;
+        }
+
+        private void acknowledge(int tick) {
+            int current;
+            do {
+                current = this.acked_tick.get();
+                if (current != 0 && tick - current <= 0) {
+                    return;
+                }
+            } while (!this.acked_tick.compareAndSet(current, tick));
+        }
+
+        /**
+         * Sends the client everything from this tick on, until it
+         * acknowledges one of those snapshots
+         *
+         * @param tick
+         */
+        private void reset(int tick) {
+            this.reset_tick = tick;
+            // The reset drops these as well
+            this.leaves.clear();
+        }
+
+        /**
+         * @return True until the client acknowledges a snapshot sent since it
+         * was reset
+         */
+        private boolean isResetting() {
+            if (this.reset_tick != 0) {
+                int acked = this.acked_tick.get();
+                if (acked != 0 && acked - this.reset_tick >= 0) {
+                    this.reset_tick = 0;
+                }
+            }
+            return this.reset_tick != 0;
+        }
+
+        /**
+         * @return The tick after which removals still matter to this client
+         */
+        private int getFloor() {
+            if (isResetting()) {
+                return this.reset_tick;
+            }
+            int acked = this.acked_tick.get();
+            return acked == 0 ? this.joined_tick : acked;
+        }
+    }
+
+    /**
+     * One spawn, update, despawn or reset in a snapshot, reused from tick to
+     * tick
+     */
+    private static class Entry {
+
+        private int operation;
+        private int object_id;
+        private int object_type;
+        private long mask;
+        private ReplicationState state;
+    }
+
+    private static class Interest {
+
+        private final int enter_tick;
+
+        private Interest(int enter_tick) {
+            this.enter_tick = enter_tick;
+        }
+    }
+
+    private static class Removal {
+
+        private final int tick;
+        private final int object_id;
+
+        private Removal(int tick, int object_id) {
+            this.tick = tick;
+            this.object_id = object_id;
+        }
+    }
+
+    private class AckProtocol extends InputNetworkProtocol {
+
+        private final int protocol_id;
+
+        private AckProtocol(int protocol_id) {
+            this.protocol_id = protocol_id;
+        }
+
+        @Override
+        public void process_input(NetworkClient client, InputNetworkStream input_stream) throws Exception {
+            int tick = input_stream.read32();
+            ClientView view = views.get(client);
+            if (view != null) {
+                view.acknowledge(tick);
+            }
+        }
+
+        @Override
+        public int getId() {
+            return this.protocol_id;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.replication;
+
+import NibbleNetwork.InputNetworkStream;
+import NibbleNetwork.OutputNetworkStream;
+
+/**
+ * A value of a network object that is sent to clients when it changes.
+ * Fields are registered in the object's constructor with
+ * {@link NibbleNetwork.NetworkObject#sync}, in the same order on both sides.
+ * Setting a field to a new value marks it dirty, the replicator turns that
+ * into the tick it changed on and only sends it to clients that have not
+ * acknowledged that tick.
+ *
+ * @author dansb
+ */
+public abstract class SyncField {
+
+    private ReplicationState owner;
+    private int index;
+    // Only touched by the replicating thread
+    private int changed_tick;
+
+    public SyncField() {
+        this.owner = null;
+        this.index = -1;
+        this.changed_tick = 0;
+    }
+
+    void attach(ReplicationState owner, int index) {
+        if (this.owner != null) {
+            throw new IllegalStateException("The field already belongs to an object");
+        }
+        this.owner = owner;
+        this.index = index;
+    }
+
+    /**
+     * Subclasses call this after their value changes
+     */
+    protected void changed() {
+        if (this.owner != null) {
+            this.owner.markDirty(this.index);
+        }
+    }
+
+    public int getIndex() {
+        return this.index;
+    }
+
+    int getChangedTick() {
+        return this.changed_tick;
+    }
+
+    void setChangedTick(int changed_tick) {
+        this.changed_tick = changed_tick;
+    }
+
+    public abstract void write(OutputNetworkStream output_stream) throws Exception;
+
+    /**
+     * Reads a value sent by the other side, it is not marked dirty
+     *
+     * @param input_stream
+     * @throws Exception
+     */
+    public abstract void read(InputNetworkStream input_stream) throws Exception;
+}
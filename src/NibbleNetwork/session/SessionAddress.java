@@ -0,0 +1,63 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.session;
+
+import java.net.SocketAddress;
+
+/**
+ * Connects to or listens on another address with a resumable session on top
+ * of it, see {@link SessionTransport}. A client that loses its connection to
+ * a session address reconnects to the same address and carries on where it
+ * left off.
+ *
+ * @author dansb
+ */
+public class SessionAddress extends SocketAddress {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SocketAddress address;
+
+    /**
+     * @param address The address of the transport underneath the session
+     */
+    public SessionAddress(SocketAddress address) {
+        if (address == null || address instanceof SessionAddress) {
+            throw new IllegalArgumentException("A session address needs an address of another transport under it");
+        }
+        this.address = address;
+    }
+
+    public SocketAddress getAddress() {
+        return this.address;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SessionAddress && ((SessionAddress) o).address.equals(this.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.address.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "session:" + this.address;
+    }
+}
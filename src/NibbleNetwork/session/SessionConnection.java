@@ -0,0 +1,1060 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.session;
+
+import NibbleNetwork.transport.TransportConnection;
+import NibbleNetwork.transport.Transports;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A connection that outlives the link under it. Every write is a numbered
+ * record, kept in the {@link SessionJournal} until the other side says it has
+ * it, and each side regularly acknowledges how many records it has received.
+ * When the link drops the session detaches and keeps taking writes into the
+ * journal. The client reconnects in the background with backoff and sends its
+ * token and how many records it has received, the server answers with its own
+ * count and both sides replay only the records after that. A record cut off
+ * part way through is replayed whole and the part already read is skipped.
+ *
+ * On a new link, before any record, the client sends a hello of its token,
+ * zero for a new session, and the records it has received. The server
+ * answers with a welcome holding the new token, resumed with the records it
+ * has received, or rejected if it does not know the token. Records are a type
+ * byte followed by a length and data, an acknowledged count, or nothing for
+ * the end of the session.
+ *
+ * A write only has to get into the journal. Whichever thread holds the link
+ * writes every record the link has not had yet, so a thread never waits for
+ * the link behind another one, such as the processor thread behind a replay,
+ * and can carry on reading what the other side is replaying to it.
+ *
+ * Closing the connection ends the session on both sides. A writer that finds
+ * the journal full waits for acknowledgements for up to the read timeout, as
+ * it would for a full socket, but fails straight away while detached. A
+ * session that is not resumed within the resume timeout fails its next read.
+ * Either way its client is disconnected.
+ *
+ * @author dansb
+ */
+public class SessionConnection implements TransportConnection {
+
+    // Sent on a new link before any record
+    private static final int HELLO = 1;
+    private static final int WELCOME = 2;
+    private static final int RESUMED = 3;
+    private static final int REJECTED = 4;
+    private static final int HELLO_SIZE = 17;
+    // Record types
+    private static final int DATA = 1;
+    private static final int ACK = 2;
+    private static final int END = 3;
+    private static final int DATA_HEADER = 5;
+    private static final int ACK_SIZE = 9;
+    // Acknowledge after this many records or once the oldest unacknowledged one is this old
+    private static final int ACK_RECORDS = 32;
+    private static final long ACK_DELAY = 50000000;
+    private static final long MIN_RESUME_INTERVAL = 100;
+    private static final long MAX_RESUME_INTERVAL = 2000;
+    // How often a writer waiting for journal space checks for acknowledgements
+    private static final long JOURNAL_WAIT = 100000;
+    // Records are copied out of the journal and written to the link in batches of about this many bytes
+    private static final int WRITE_BATCH = 65536;
+
+    private final SessionTransport transport;
+    // Where to reconnect to, null on the server side
+    private final SessionAddress address;
+    private final int connect_timeout;
+    // Guards the reader state below, can be taken while holding the write lock
+    private final Object read_lock;
+    // Guards writes to the link, only ever tried for so a blocked write never holds up another thread
+    private final ReentrantLock write_lock;
+    // Guards the journal, taken last and never held while doing IO
+    private final Object journal_lock;
+    // Null while detached
+    private volatile TransportConnection link;
+    private volatile long token;
+    private SessionJournal journal;
+    private volatile int read_timeout;
+    private volatile SocketAddress remote_address;
+    // When the link was lost in milliseconds, zero while attached
+    private volatile long detached_at;
+    private volatile boolean closed;
+    // Why the session can no longer be used, null while it can
+    private volatile String end_reason;
+    private volatile long total_resumes;
+    // Guarded by this
+    private boolean resuming;
+
+    // Reader state
+    private final byte[] header;
+    private int header_filled;
+    private boolean in_record;
+    private int record_length;
+    private int consumed;
+    // Bytes at the start of the next record that were read before the link dropped
+    private int skip;
+    private volatile long received;
+    private byte[] discard;
+    // Records the other side has acknowledged, released from the journal by the writer
+    private volatile long peer_acknowledged;
+
+    // Writer state
+    private byte[] scratch;
+    // The last record added to the journal
+    private volatile long sent;
+    // The last record written to the current link
+    private volatile long written;
+    // What we last told the other side we have received
+    private volatile long acknowledged;
+    private long acknowledged_at;
+
+    private SessionConnection(SessionTransport transport, SessionAddress address, int connect_timeout, TransportConnection link) {
+        this.transport = transport;
+        this.address = address;
+        this.connect_timeout = connect_timeout;
+        this.read_lock = new Object();
+        this.write_lock = new ReentrantLock();
+        this.journal_lock = new Object();
+        this.link = link;
+        this.token = 0;
+        this.journal = null;
+        this.read_timeout = 0;
+        this.remote_address = link != null ? link.getRemoteAddress() : null;
+        this.detached_at = 0;
+        this.closed = false;
+        this.end_reason = null;
+        this.total_resumes = 0;
+        this.resuming = false;
+        this.header = new byte[ACK_SIZE];
+        this.header_filled = 0;
+        this.in_record = false;
+        this.skip = 0;
+        this.received = 0;
+        this.peer_acknowledged = 0;
+        this.scratch = new byte[0];
+        this.sent = 0;
+        this.written = 0;
+        this.acknowledged = 0;
+        this.acknowledged_at = 0;
+    }
+
+    /**
+     * A connection accepted by a server, its session is decided by
+     * {@link #handshake()}
+     *
+     * @param transport
+     * @param link
+     */
+    SessionConnection(SessionTransport transport, TransportConnection link) {
+        this(transport, null, 0, link);
+    }
+
+    /**
+     * A client side session, opened by {@link #open()}
+     *
+     * @param transport
+     * @param address
+     * @param connect_timeout
+     */
+    SessionConnection(SessionTransport transport, SessionAddress address, int connect_timeout) {
+        this(transport, address, connect_timeout, null);
+        this.read_timeout = connect_timeout;
+    }
+
+    /**
+     * Connects and starts a new session
+     *
+     * @throws IOException
+     */
+    void open() throws IOException {
+        TransportConnection new_link = connectLink();
+        try {
+            sendHello(new_link, 0, 0);
+            if (readByte(new_link) != WELCOME) {
+                throw new IOException("The server at " + this.address + " did not start a session");
+            }
+            byte[] reply = new byte[8];
+            readFully(new_link, reply, reply.length);
+            this.journal = this.transport.createJournal();
+            this.token = getLong(reply, 0);
+            this.remote_address = new_link.getRemoteAddress();
+            this.link = new_link;
+        } catch (IOException ex) {
+            closeQuietly(new_link);
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads the hello of a connection accepted by the server. A new session
+     * is started for a token of zero, otherwise the link is handed to the
+     * session being resumed and this connection is left with nothing.
+     *
+     * @return False if the link resumed an existing session
+     * @throws IOException
+     */
+    @Override
+    public boolean handshake() throws IOException {
+        if (this.address != null || this.token != 0) {
+            return true;
+        }
+
+        TransportConnection current = this.link;
+        current.setReadTimeout(this.transport.getHandshakeTimeout());
+        byte[] hello = new byte[HELLO_SIZE];
+        readFully(current, hello, HELLO_SIZE);
+        if (hello[0] != HELLO) {
+            throw new IOException("Expected a session hello from " + current.getRemoteAddress());
+        }
+        long peer_token = getLong(hello, 1);
+        long peer_received = getLong(hello, 9);
+        if (peer_token == 0) {
+            this.journal = this.transport.createJournal();
+            this.token = this.transport.register(this);
+            byte[] welcome = new byte[9];
+            welcome[0] = WELCOME;
+            putLong(welcome, 1, this.token);
+            current.write(welcome, 0, welcome.length);
+            current.flush();
+            return true;
+        }
+
+        this.link = null;
+        SessionConnection session = this.transport.getSession(peer_token);
+        if (session == null || session.isClosed()) {
+            reject(current);
+            throw new IOException("There is no session to resume for " + current.getRemoteAddress());
+        }
+        try {
+            session.attach(current, peer_received, true);
+        } catch (IOException ex) {
+            if (session.isClosed()) {
+                reject(current);
+            } else {
+                closeQuietly(current);
+            }
+            throw ex;
+        }
+        return false;
+    }
+
+    private static void reject(TransportConnection current) {
+        try {
+            current.write(new byte[]{REJECTED}, 0, 1);
+            current.flush();
+        } catch (IOException ex) {
+            Logger.getLogger(SessionConnection.class.getName()).log(Level.FINE, null, ex);
+        }
+        closeQuietly(current);
+    }
+
+    /**
+     * Makes the link the session's, replacing any link it still had, and
+     * replays whatever the other side has not received
+     *
+     * @param new_link
+     * @param peer_received Records the other side has received
+     * @param reply True to tell the other side how many we have received
+     * first
+     * @throws IOException If the link failed, which is left for the caller to
+     * close, or the session can not be resumed
+     */
+    private void attach(TransportConnection new_link, long peer_received, boolean reply) throws IOException {
+        TransportConnection old_link;
+        synchronized (this) {
+            old_link = this.link;
+            this.link = null;
+            if (old_link != null) {
+                this.detached_at = System.currentTimeMillis();
+            }
+        }
+        // Any read blocked on the old link fails and lets go of the read lock
+        closeQuietly(old_link);
+
+        long current_received;
+        synchronized (this.read_lock) {
+            // A record part way through arriving comes again whole
+            this.header_filled = 0;
+            if (this.in_record) {
+                this.skip = Math.max(this.skip, this.consumed);
+                this.in_record = false;
+            }
+            // Nothing more is received until there is a link again
+            current_received = this.received;
+        }
+
+        // The read lock is not held while replaying, the other side may be replaying to us at the same time
+        this.write_lock.lock();
+        try {
+            synchronized (this.journal_lock) {
+                if (this.closed || this.end_reason != null) {
+                    throw new IOException("The session has ended");
+                }
+                if (peer_received < this.journal.getFirstSequence() - 1 || peer_received > this.journal.getLastSequence()) {
+                    this.end_reason = "The other side has received " + peer_received + " records but the journal holds "
+                            + this.journal.getFirstSequence() + " to " + this.journal.getLastSequence();
+                    throw new IOException(this.end_reason);
+                }
+                if (peer_received > this.peer_acknowledged) {
+                    this.peer_acknowledged = peer_received;
+                }
+                this.journal.release(peer_received);
+            }
+            new_link.setReadTimeout(this.read_timeout);
+            if (reply) {
+                byte[] resumed = new byte[9];
+                resumed[0] = RESUMED;
+                putLong(resumed, 1, current_received);
+                new_link.write(resumed, 0, resumed.length);
+            }
+            // Both sides have just told each other what they have
+            this.acknowledged = current_received;
+            this.acknowledged_at = System.nanoTime();
+            this.written = peer_received;
+
+            // Readers can start on the new link straight away, writers leave their records to the replay
+            synchronized (this.read_lock) {
+                synchronized (this) {
+                    this.link = new_link;
+                    this.detached_at = 0;
+                    this.remote_address = new_link.getRemoteAddress();
+                }
+                this.read_lock.notifyAll();
+            }
+            try {
+                writePending(new_link);
+            } catch (IOException ex) {
+                detach(new_link);
+                throw ex;
+            }
+            this.total_resumes++;
+        } finally {
+            this.write_lock.unlock();
+        }
+        // Anything added after the replay finished
+        drain();
+    }
+
+    /**
+     * Drops the link, keeping the session so it can be resumed. For a link
+     * that looks alive but has stopped delivering, such as after a ping
+     * timeout.
+     *
+     * @return False if the session had no link to drop
+     */
+    public boolean detach() {
+        TransportConnection current = this.link;
+        if (current == null) {
+            return false;
+        }
+        detach(current);
+        return true;
+    }
+
+    private void detach(TransportConnection current) {
+        boolean resume = false;
+        synchronized (this) {
+            if (current == null || this.link != current) {
+                // Already replaced or dropped
+                return;
+            }
+            this.link = null;
+            this.detached_at = System.currentTimeMillis();
+            if (this.address != null && !this.closed && this.end_reason == null && !this.resuming) {
+                this.resuming = true;
+                resume = true;
+            }
+        }
+        closeQuietly(current);
+        if (resume) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    resume();
+                }
+            }, "NibbleNetwork session resume");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Reconnects until the session is resumed, rejected or the resume timeout
+     * passes. Runs on its own thread, the client side only.
+     */
+    private void resume() {
+        long interval = MIN_RESUME_INTERVAL;
+        while (true) {
+            synchronized (this) {
+                if (this.link != null || this.closed || this.end_reason != null) {
+                    this.resuming = false;
+                    return;
+                }
+            }
+            if (System.currentTimeMillis() - this.detached_at >= this.transport.getResumeTimeout()) {
+                end("The session was not resumed within " + this.transport.getResumeTimeout() + "ms");
+                continue;
+            }
+
+            TransportConnection new_link = null;
+            try {
+                new_link = connectLink();
+                long current_received;
+                synchronized (this.read_lock) {
+                    current_received = this.received;
+                }
+                sendHello(new_link, this.token, current_received);
+                if (readByte(new_link) != RESUMED) {
+                    closeQuietly(new_link);
+                    end("The server at " + this.address + " no longer has the session");
+                    continue;
+                }
+                byte[] reply = new byte[8];
+                readFully(new_link, reply, reply.length);
+                attach(new_link, getLong(reply, 0), false);
+                continue;
+            } catch (IOException ex) {
+                closeQuietly(new_link);
+                Logger.getLogger(SessionConnection.class.getName()).log(Level.FINE, null, ex);
+            }
+
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                end("Interrupted while resuming the session");
+                continue;
+            }
+            interval = Math.min(interval * 2, MAX_RESUME_INTERVAL);
+        }
+    }
+
+    private TransportConnection connectLink() throws IOException {
+        SocketAddress link_address = this.address.getAddress();
+        TransportConnection new_link = Transports.forAddress(link_address).connect(link_address, this.connect_timeout);
+        new_link.setReadTimeout(this.connect_timeout);
+        return new_link;
+    }
+
+    private void sendHello(TransportConnection new_link, long hello_token, long hello_received) throws IOException {
+        byte[] hello = new byte[HELLO_SIZE];
+        hello[0] = HELLO;
+        putLong(hello, 1, hello_token);
+        putLong(hello, 9, hello_received);
+        new_link.write(hello, 0, hello.length);
+        new_link.flush();
+    }
+
+    /**
+     * Ends the session for good, whatever is waiting on it fails
+     *
+     * @param reason
+     */
+    private void end(String reason) {
+        TransportConnection current;
+        synchronized (this) {
+            if (this.end_reason == null) {
+                this.end_reason = reason;
+            }
+            current = this.link;
+            this.link = null;
+        }
+        closeQuietly(current);
+        synchronized (this.read_lock) {
+            this.read_lock.notifyAll();
+        }
+    }
+
+    private void checkEnded() throws IOException {
+        String reason = this.end_reason;
+        if (reason != null) {
+            throw new IOException(reason);
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        synchronized (this.read_lock) {
+            while (true) {
+                TransportConnection current = awaitLink();
+                if (current == null) {
+                    return -1;
+                }
+                int amount;
+                try {
+                    if (!this.in_record) {
+                        readHeader(current, true);
+                        continue;
+                    }
+                    if (this.consumed < this.skip) {
+                        skip(current, this.skip - this.consumed);
+                        continue;
+                    }
+                    amount = current.read(buffer, offset, Math.min(length, this.record_length - this.consumed));
+                    if (amount < 0) {
+                        throw new EOFException("The session link closed");
+                    }
+                    this.consumed += amount;
+                    if (this.consumed == this.record_length) {
+                        finishRecord();
+                    }
+                } catch (SocketTimeoutException ex) {
+                    throw ex;
+                } catch (IOException ex) {
+                    detach(current);
+                    continue;
+                }
+                // The data is counted as received so it has to be returned even if the link has just gone
+                try {
+                    acknowledge(current);
+                } catch (IOException ex) {
+                    detach(current);
+                }
+                return amount;
+            }
+        }
+    }
+
+    /**
+     * Waits for the session to have a link, for no longer than the read
+     * timeout. Called holding the read lock, which waiting lets go of.
+     *
+     * @return The link or null if the session has been closed
+     * @throws IOException
+     */
+    private TransportConnection awaitLink() throws IOException {
+        long deadline = 0;
+        while (true) {
+            checkEnded();
+            if (this.closed) {
+                return null;
+            }
+            TransportConnection current = this.link;
+            if (current != null) {
+                return current;
+            }
+            long now = System.currentTimeMillis();
+            if (deadline == 0) {
+                int timeout = this.read_timeout;
+                deadline = now + (timeout != 0 ? timeout : this.transport.getResumeTimeout());
+            }
+            if (now >= deadline) {
+                throw new SocketTimeoutException("The session is waiting to be resumed");
+            }
+            try {
+                this.read_lock.wait(deadline - now);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the session to be resumed");
+            }
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        checkEnded();
+        TransportConnection current = this.link;
+        if (current == null) {
+            return 0;
+        }
+        synchronized (this.read_lock) {
+            if (current != this.link) {
+                return 0;
+            }
+            try {
+                int ready = availableData(current);
+                acknowledge(current);
+                return ready;
+            } catch (IOException ex) {
+                detach(current);
+                checkEnded();
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Reads headers and skips replayed bytes without blocking until data can
+     * be read
+     *
+     * @param current
+     * @return Bytes of record data that can be read without blocking
+     * @throws IOException
+     */
+    private int availableData(TransportConnection current) throws IOException {
+        while (true) {
+            if (!this.in_record) {
+                if (!readHeader(current, false)) {
+                    return 0;
+                }
+                continue;
+            }
+            int ready = current.available();
+            if (ready == 0) {
+                return 0;
+            }
+            if (this.consumed < this.skip) {
+                skip(current, Math.min(this.skip - this.consumed, ready));
+                continue;
+            }
+            return Math.min(this.record_length - this.consumed, ready);
+        }
+    }
+
+    /**
+     * Reads the next record header, acknowledgements are handled here and
+     * reading carries on
+     *
+     * @param current
+     * @param block False to only read what has already arrived
+     * @return True once the header of a data record has been read
+     * @throws IOException
+     */
+    private boolean readHeader(TransportConnection current, boolean block) throws IOException {
+        while (true) {
+            int needed = 1;
+            if (this.header_filled > 0) {
+                switch (this.header[0]) {
+                    case DATA:
+                        needed = DATA_HEADER;
+                        break;
+                    case ACK:
+                        needed = ACK_SIZE;
+                        break;
+                    case END:
+                        end("The other side ended the session");
+                        checkEnded();
+                        break;
+                    default:
+                        throw new IOException("Unknown session record " + this.header[0]);
+                }
+            }
+
+            if (this.header_filled == needed) {
+                this.header_filled = 0;
+                if (this.header[0] == ACK) {
+                    acknowledged(getLong(this.header, 1));
+                    continue;
+                }
+                this.record_length = getInt(this.header, 1);
+                if (this.record_length <= 0) {
+                    throw new IOException("Bad session record length " + this.record_length);
+                }
+                this.consumed = 0;
+                this.in_record = true;
+                return true;
+            }
+
+            int amount = needed - this.header_filled;
+            if (!block) {
+                int ready = current.available();
+                if (ready == 0) {
+                    return false;
+                }
+                amount = Math.min(amount, ready);
+            }
+            int read = current.read(this.header, this.header_filled, amount);
+            if (read < 0) {
+                throw new EOFException("The session link closed");
+            }
+            this.header_filled += read;
+        }
+    }
+
+    private void skip(TransportConnection current, int amount) throws IOException {
+        if (this.discard == null) {
+            this.discard = new byte[512];
+        }
+        int read = current.read(this.discard, 0, Math.min(amount, this.discard.length));
+        if (read < 0) {
+            throw new EOFException("The session link closed");
+        }
+        this.consumed += read;
+        if (this.consumed == this.record_length) {
+            finishRecord();
+        }
+    }
+
+    private void finishRecord() {
+        this.in_record = false;
+        this.skip = 0;
+        this.received++;
+    }
+
+    /**
+     * Tells the other side what we have received once enough records or time
+     * have gone by. Called holding the read lock, if a writer has the link the
+     * acknowledgement goes out with its next record instead.
+     *
+     * @param current
+     * @throws IOException
+     */
+    private void acknowledge(TransportConnection current) throws IOException {
+        if (this.received == this.acknowledged || !this.write_lock.tryLock()) {
+            return;
+        }
+        try {
+            if (current == this.link && isAcknowledgementDue()) {
+                ensureScratch(ACK_SIZE);
+                putAcknowledgement(0);
+                current.write(this.scratch, 0, ACK_SIZE);
+                current.flush();
+            }
+        } finally {
+            this.write_lock.unlock();
+        }
+    }
+
+    /**
+     * Called holding the write lock
+     */
+    private boolean isAcknowledgementDue() {
+        long unacknowledged = this.received - this.acknowledged;
+        return unacknowledged != 0 && (unacknowledged >= ACK_RECORDS || System.nanoTime() - this.acknowledged_at >= ACK_DELAY);
+    }
+
+    /**
+     * Puts an acknowledgement of everything received so far in the scratch
+     * buffer. Called holding the write lock.
+     */
+    private void putAcknowledgement(int offset) {
+        long current_received = this.received;
+        this.scratch[offset] = ACK;
+        putLong(this.scratch, offset + 1, current_received);
+        this.acknowledged = current_received;
+        this.acknowledged_at = System.nanoTime();
+    }
+
+    private void acknowledged(long peer_received) throws IOException {
+        if (peer_received > this.sent) {
+            throw new IOException("The other side acknowledged " + peer_received + " records but only " + this.sent + " were sent");
+        }
+        if (peer_received > this.peer_acknowledged) {
+            this.peer_acknowledged = peer_received;
+        }
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        long deadline = 0;
+        while (!hasRoom(length)) {
+            long now = System.nanoTime();
+            if (deadline == 0) {
+                int timeout = this.read_timeout;
+                deadline = now + (timeout != 0 ? timeout : this.transport.getHandshakeTimeout()) * 1000000L;
+            }
+            if (this.link == null || now - deadline >= 0) {
+                // Append fails with why
+                break;
+            }
+            // We may be the thread that would read the acknowledgements, so read any that have arrived
+            available();
+            if (!hasRoom(length)) {
+                LockSupport.parkNanos(this, JOURNAL_WAIT);
+            }
+        }
+
+        synchronized (this.journal_lock) {
+            checkEnded();
+            if (this.closed) {
+                throw new IOException("The session is closed");
+            }
+            this.journal.release(this.peer_acknowledged);
+            this.sent = this.journal.append(buffer, offset, length);
+        }
+        drain();
+    }
+
+    private boolean hasRoom(int length) throws IOException {
+        synchronized (this.journal_lock) {
+            checkEnded();
+            if (this.closed) {
+                return true;
+            }
+            this.journal.release(this.peer_acknowledged);
+            return this.journal.hasRoom(length);
+        }
+    }
+
+    /**
+     * Writes the records the link has not had yet unless another thread
+     * already is, that thread then writes ours as well. Records that can not
+     * be written while detached are replayed once resumed.
+     */
+    private void drain() {
+        // Checked again after letting go of the lock as a record added meanwhile may have been left to us
+        while (this.written < this.sent && this.write_lock.tryLock()) {
+            TransportConnection failed = null;
+            try {
+                TransportConnection current = this.link;
+                if (current == null) {
+                    return;
+                }
+                try {
+                    writePending(current);
+                } catch (IOException ex) {
+                    failed = current;
+                }
+            } finally {
+                this.write_lock.unlock();
+            }
+            if (failed != null) {
+                detach(failed);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies records out of the journal in batches and writes them to the
+     * link, along with an acknowledgement if one is due. Called holding the
+     * write lock.
+     *
+     * @param current
+     * @throws IOException
+     */
+    private void writePending(TransportConnection current) throws IOException {
+        while (this.written < this.sent) {
+            int used = 0;
+            if (isAcknowledgementDue()) {
+                ensureScratch(ACK_SIZE);
+                putAcknowledgement(0);
+                used = ACK_SIZE;
+            }
+            long sequence = this.written + 1;
+            synchronized (this.journal_lock) {
+                if (this.closed) {
+                    return;
+                }
+                long last = this.journal.getLastSequence();
+                while (sequence <= last) {
+                    int length = this.journal.getLength(sequence);
+                    if (sequence > this.written + 1 && used + DATA_HEADER + length > WRITE_BATCH) {
+                        break;
+                    }
+                    ensureScratch(used + DATA_HEADER + length);
+                    this.scratch[used] = DATA;
+                    putInt(this.scratch, used + 1, length);
+                    this.journal.get(sequence, this.scratch, used + DATA_HEADER);
+                    used += DATA_HEADER + length;
+                    sequence++;
+                }
+            }
+            current.write(this.scratch, 0, used);
+            this.written = sequence - 1;
+        }
+        current.flush();
+    }
+
+    private void ensureScratch(int length) {
+        if (this.scratch.length < length) {
+            this.scratch = new byte[Math.max(length, this.scratch.length * 2)];
+        }
+    }
+
+    /**
+     * Everything written has already been flushed by whichever thread wrote it
+     * to the link
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void setReadTimeout(int timeout) throws IOException {
+        this.read_timeout = timeout;
+        TransportConnection current = this.link;
+        if (current != null) {
+            current.setReadTimeout(timeout);
+        }
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return this.remote_address;
+    }
+
+    /**
+     * @return The token the client resumes the session with, zero until the
+     * session has started
+     */
+    public long getToken() {
+        return this.token;
+    }
+
+    public boolean isAttached() {
+        return this.link != null;
+    }
+
+    /**
+     * @return True if the session has lost its link and can still be resumed
+     */
+    public boolean isResumable() {
+        long detached = this.detached_at;
+        return this.link == null && detached != 0 && !this.closed && this.end_reason == null
+                && System.currentTimeMillis() - detached < this.transport.getResumeTimeout();
+    }
+
+    /**
+     * @return How many times the session has been resumed on a new link
+     */
+    public long getTotalResumes() {
+        return this.total_resumes;
+    }
+
+    /**
+     * @return Bytes sent that the other side has not yet acknowledged
+     */
+    public long getUnacknowledgedBytes() {
+        synchronized (this.journal_lock) {
+            if (this.journal == null) {
+                return 0;
+            }
+            this.journal.release(this.peer_acknowledged);
+            return this.journal.getUsed();
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.closed || this.end_reason != null;
+    }
+
+    /**
+     * Ends the session, telling the other side so it does not wait for a
+     * resume that will never come
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        TransportConnection current;
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            current = this.link;
+        }
+        if (this.token != 0 && this.address == null) {
+            this.transport.removeSession(this.token, this);
+        }
+
+        // A writer stuck on a full link would hold us up, the other side then finds out by timing out
+        if (current != null && this.end_reason == null && this.write_lock.tryLock()) {
+            try {
+                current.write(new byte[]{END}, 0, 1);
+                current.flush();
+            } catch (IOException ex) {
+                Logger.getLogger(SessionConnection.class.getName()).log(Level.FINE, null, ex);
+            } finally {
+                this.write_lock.unlock();
+            }
+        }
+        synchronized (this) {
+            this.link = null;
+        }
+        closeQuietly(current);
+        synchronized (this.journal_lock) {
+            if (this.journal != null) {
+                this.journal.close();
+            }
+        }
+        synchronized (this.read_lock) {
+            this.read_lock.notifyAll();
+        }
+    }
+
+    private static void closeQuietly(TransportConnection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (IOException ex) {
+            Logger.getLogger(SessionConnection.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    private static int readByte(TransportConnection connection) throws IOException {
+        byte[] value = new byte[1];
+        readFully(connection, value, 1);
+        return value[0];
+    }
+
+    private static void readFully(TransportConnection connection, byte[] buffer, int length) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            int read = connection.read(buffer, filled, length - filled);
+            if (read < 0) {
+                throw new EOFException("The connection closed during the session handshake");
+            }
+            filled += read;
+        }
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            buffer[offset + i] = (byte) (value >>> (24 - i * 8));
+        }
+    }
+
+    private static int getInt(byte[] buffer, int offset) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void putLong(byte[] buffer, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            buffer[offset + i] = (byte) (value >>> (56 - i * 8));
+        }
+    }
+
+    private static long getLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        TransportConnection current = this.link;
+        return "session " + Long.toHexString(this.token) + " over " + (current != null ? current : "nothing, waiting to resume");
+    }
+}
@@ -0,0 +1,236 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.session;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The records one side of a session has sent and the other side has not yet
+ * acknowledged, kept in a ring in a memory mapped file so a large backlog
+ * for a client that has dropped off does not sit on the heap. Records are
+ * numbered from one in the order they were added and are released in that
+ * order once acknowledged.
+ *
+ * The file is removed once the journal is closed. Not thread safe, the
+ * session guards it with its journal lock.
+ *
+ * @author dansb
+ */
+public class SessionJournal implements Closeable {
+
+    // Each record is its length followed by its bytes
+    private static final int RECORD_HEADER = 4;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    // Byte positions only ever grow, the index into the ring is the position modulo the capacity
+    private long head;
+    private long tail;
+    // Sequence of the record at the head
+    private long first_sequence;
+    private long next_sequence;
+    // The last record looked up, records are nearly always read in order
+    private long cursor_sequence;
+    private long cursor_position;
+
+    /**
+     * @param directory Where to create the journal file
+     * @param capacity Bytes of records and their headers the journal can hold
+     * @throws IOException
+     */
+    public SessionJournal(Path directory, int capacity) throws IOException {
+        if (capacity <= RECORD_HEADER) {
+            throw new IllegalArgumentException("The journal capacity must be more than " + RECORD_HEADER + " bytes");
+        }
+        Path file = Files.createTempFile(directory, "nibble-session-", ".journal");
+        try {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+        try {
+            this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException ex) {
+            this.channel.close();
+            throw ex;
+        }
+        this.capacity = capacity;
+        this.head = 0;
+        this.tail = 0;
+        this.first_sequence = 1;
+        this.next_sequence = 1;
+        this.cursor_sequence = 1;
+        this.cursor_position = 0;
+    }
+
+    /**
+     * @param length
+     * @return True if a record of this length fits beside the records not yet
+     * acknowledged
+     */
+    public boolean hasRoom(int length) {
+        return RECORD_HEADER + (long) length <= this.capacity - (this.tail - this.head);
+    }
+
+    /**
+     * @param data
+     * @param offset
+     * @param length
+     * @return The sequence of the new record
+     * @throws IOException If the record does not fit beside the records not
+     * yet acknowledged
+     */
+    public long append(byte[] data, int offset, int length) throws IOException {
+        if (!this.channel.isOpen()) {
+            throw new IOException("The session journal is closed");
+        }
+        if (!hasRoom(length)) {
+            throw new IOException("The session journal is full, " + (this.tail - this.head) + " of " + this.capacity
+                    + " bytes are waiting to be acknowledged");
+        }
+        putInt(this.tail, length);
+        put(this.tail + RECORD_HEADER, data, offset, length);
+        this.tail += RECORD_HEADER + length;
+        return this.next_sequence++;
+    }
+
+    /**
+     * Forgets every record up to and including the sequence
+     *
+     * @param sequence
+     */
+    public void release(long sequence) {
+        while (this.first_sequence <= sequence && this.head != this.tail) {
+            this.head += RECORD_HEADER + getInt(this.head);
+            this.first_sequence++;
+        }
+    }
+
+    /**
+     * @param sequence A record still held
+     * @return Length of the record's data
+     */
+    public int getLength(long sequence) {
+        return getInt(locate(sequence));
+    }
+
+    /**
+     * Copies the data of a record still held
+     *
+     * @param sequence
+     * @param data Has to have room for {@link #getLength(long)} bytes from the
+     * offset
+     * @param offset
+     */
+    public void get(long sequence, byte[] data, int offset) {
+        long position = locate(sequence);
+        get(position + RECORD_HEADER, data, offset, getInt(position));
+    }
+
+    private long locate(long sequence) {
+        if (sequence < this.first_sequence || sequence >= this.next_sequence) {
+            throw new IllegalArgumentException("Record " + sequence + " is not in the journal, it holds "
+                    + this.first_sequence + " to " + (this.next_sequence - 1));
+        }
+        if (this.cursor_sequence < this.first_sequence || this.cursor_sequence > sequence) {
+            this.cursor_sequence = this.first_sequence;
+            this.cursor_position = this.head;
+        }
+        while (this.cursor_sequence < sequence) {
+            this.cursor_position += RECORD_HEADER + getInt(this.cursor_position);
+            this.cursor_sequence++;
+        }
+        return this.cursor_position;
+    }
+
+    /**
+     * @return The sequence of the oldest record still held, one more than the
+     * last sequence if the journal is empty
+     */
+    public long getFirstSequence() {
+        return this.first_sequence;
+    }
+
+    /**
+     * @return The sequence of the newest record, zero if none has been added
+     */
+    public long getLastSequence() {
+        return this.next_sequence - 1;
+    }
+
+    /**
+     * @return Bytes held for records not yet acknowledged
+     */
+    public long getUsed() {
+        return this.tail - this.head;
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    private int index(long position) {
+        return (int) (position % this.capacity);
+    }
+
+    private void put(long position, byte[] data, int offset, int length) {
+        int index = index(position);
+        int first = Math.min(length, this.capacity - index);
+        this.buffer.put(index, data, offset, first);
+        if (first < length) {
+            this.buffer.put(0, data, offset + first, length - first);
+        }
+    }
+
+    private void get(long position, byte[] data, int offset, int length) {
+        int index = index(position);
+        int first = Math.min(length, this.capacity - index);
+        this.buffer.get(index, data, offset, first);
+        if (first < length) {
+            this.buffer.get(0, data, offset + first, length - first);
+        }
+    }
+
+    private void putInt(long position, int value) {
+        for (int i = 0; i < RECORD_HEADER; i++) {
+            this.buffer.put(index(position + i), (byte) (value >>> (24 - i * 8)));
+        }
+    }
+
+    private int getInt(long position) {
+        int value = 0;
+        for (int i = 0; i < RECORD_HEADER; i++) {
+            value = (value << 8) | (this.buffer.get(index(position + i)) & 0xff);
+        }
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.head = this.tail;
+        this.first_sequence = this.next_sequence;
+        this.channel.close();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.session;
+
+import NibbleNetwork.transport.Transport;
+import NibbleNetwork.transport.TransportConnection;
+import NibbleNetwork.transport.TransportListener;
+import NibbleNetwork.transport.Transports;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SelectableChannel;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resumable sessions over any other transport, used for SessionAddress. A
+ * client that loses its connection reconnects in the background and resumes
+ * its session with the token the server gave it, both sides then replay only
+ * what the other did not receive and the network client never notices. See
+ * {@link SessionConnection}.
+ *
+ * The server keeps a session whose client has dropped off for the resume
+ * timeout. A session the server no longer knows can not be resumed and the
+ * client is disconnected as usual.
+ *
+ * @author dansb
+ */
+public class SessionTransport implements Transport {
+
+    public static final int DEFAULT_JOURNAL_CAPACITY = 1048576;
+    public static final int DEFAULT_RESUME_TIMEOUT = 30000;
+    public static final int DEFAULT_HANDSHAKE_TIMEOUT = 5000;
+
+    private static final SessionTransport shared = new SessionTransport();
+
+    // Server side sessions by token
+    private final ConcurrentHashMap<Long, SessionConnection> sessions;
+    private final SecureRandom random;
+    private volatile Path journal_directory;
+    private volatile int journal_capacity;
+    private volatile int resume_timeout;
+    private volatile int handshake_timeout;
+
+    public SessionTransport() {
+        this.sessions = new ConcurrentHashMap<Long, SessionConnection>();
+        this.random = new SecureRandom();
+        this.journal_directory = Path.of(System.getProperty("java.io.tmpdir"));
+        this.journal_capacity = DEFAULT_JOURNAL_CAPACITY;
+        this.resume_timeout = DEFAULT_RESUME_TIMEOUT;
+        this.handshake_timeout = DEFAULT_HANDSHAKE_TIMEOUT;
+    }
+
+    public static SessionTransport getShared() {
+        return SessionTransport.shared;
+    }
+
+    /**
+     * Sets where journal files are created, a memory backed file system keeps
+     * them off the disk
+     *
+     * @param journal_directory
+     */
+    public void setJournalDirectory(Path journal_directory) {
+        if (journal_directory == null) {
+            throw new IllegalArgumentException("The journal directory may not be null");
+        }
+        this.journal_directory = journal_directory;
+    }
+
+    public Path getJournalDirectory() {
+        return this.journal_directory;
+    }
+
+    /**
+     * Sets the bytes each new session can hold for the other side until they
+     * are acknowledged. A session that sends more than this while the other
+     * side is away fails its next write and its client is disconnected.
+     *
+     * @param journal_capacity
+     */
+    public void setJournalCapacity(int journal_capacity) {
+        if (journal_capacity <= 0) {
+            throw new IllegalArgumentException("The journal capacity must be above zero");
+        }
+        this.journal_capacity = journal_capacity;
+    }
+
+    public int getJournalCapacity() {
+        return this.journal_capacity;
+    }
+
+    /**
+     * @param resume_timeout Milliseconds a session waits to be resumed after
+     * losing its connection
+     */
+    public void setResumeTimeout(int resume_timeout) {
+        if (resume_timeout <= 0) {
+            throw new IllegalArgumentException("The resume timeout must be above zero");
+        }
+        this.resume_timeout = resume_timeout;
+    }
+
+    public int getResumeTimeout() {
+        return this.resume_timeout;
+    }
+
+    /**
+     * @param handshake_timeout Milliseconds the server waits for a new
+     * connection to say which session it wants
+     */
+    public void setHandshakeTimeout(int handshake_timeout) {
+        if (handshake_timeout <= 0) {
+            throw new IllegalArgumentException("The handshake timeout must be above zero");
+        }
+        this.handshake_timeout = handshake_timeout;
+    }
+
+    public int getHandshakeTimeout() {
+        return this.handshake_timeout;
+    }
+
+    /**
+     * @return How many server side sessions are open, connected or waiting to
+     * be resumed
+     */
+    public int getTotalSessions() {
+        return this.sessions.size();
+    }
+
+    @Override
+    public boolean supports(SocketAddress address) {
+        return address instanceof SessionAddress;
+    }
+
+    @Override
+    public TransportConnection connect(SocketAddress address, int timeout) throws IOException {
+        SessionAddress session_address = (SessionAddress) address;
+        SessionConnection connection = new SessionConnection(this, session_address, timeout);
+        connection.open();
+        return connection;
+    }
+
+    @Override
+    public TransportListener listen(SocketAddress address, int backlog, boolean share_address) throws IOException {
+        SocketAddress inner_address = ((SessionAddress) address).getAddress();
+        final TransportListener listener = Transports.forAddress(inner_address).listen(inner_address, backlog, false);
+        return new TransportListener() {
+            @Override
+            public TransportConnection accept() throws IOException {
+                TransportConnection connection = listener.accept();
+                // Which session it belongs to is read on a handshake thread, not here
+                return connection == null ? null : new SessionConnection(SessionTransport.this, connection);
+            }
+
+            @Override
+            public SelectableChannel getSelectableChannel() {
+                return listener.getSelectableChannel();
+            }
+
+            @Override
+            public SocketAddress getLocalAddress() throws IOException {
+                return new SessionAddress(listener.getLocalAddress());
+            }
+
+            @Override
+            public boolean isOpen() {
+                return listener.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                listener.close();
+            }
+        };
+    }
+
+    @Override
+    public boolean canShareAddress() {
+        return false;
+    }
+
+    SessionJournal createJournal() throws IOException {
+        return new SessionJournal(this.journal_directory, this.journal_capacity);
+    }
+
+    long register(SessionConnection session) {
+        while (true) {
+            long token = this.random.nextLong();
+            // Zero asks for a new session
+            if (token != 0 && this.sessions.putIfAbsent(token, session) == null) {
+                return token;
+            }
+        }
+    }
+
+    SessionConnection getSession(long token) {
+        return this.sessions.get(token);
+    }
+
+    void removeSession(long token, SessionConnection session) {
+        this.sessions.remove(token, session);
+    }
+}
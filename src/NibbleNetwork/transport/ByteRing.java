@@ -0,0 +1,204 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A single producer, single consumer ring of bytes laid over a ByteBuffer.
+ * The read and write positions live in a header at the front of the buffer
+ * so the ring works the same whether the buffer is private to this JVM or a
+ * file mapped by two processes. Positions only ever grow, they are published
+ * with release and read with acquire so the bytes behind a position are
+ * always visible before the position is.
+ *
+ * Neither side ever blocks, waiting is left to the connection using the
+ * ring. A consumer about to sleep can say so in the header so a producer in
+ * another process knows it has to wake it.
+ *
+ * @author dansb
+ */
+public class ByteRing {
+
+    // Each position gets its own cache line so the two sides do not fight over one
+    private static final int WRITE_POSITION = 0;
+    private static final int READ_POSITION = 64;
+    private static final int WRITER_CLOSED = 128;
+    private static final int READER_CLOSED = 192;
+    private static final int READER_WAITING = 256;
+    public static final int HEADER_SIZE = 512;
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+
+    /**
+     * @param buffer A direct buffer of the header size plus a power of two
+     */
+    public ByteRing(ByteBuffer buffer) {
+        int capacity = buffer.capacity() - HEADER_SIZE;
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("A ring needs a power of two bytes after its header, got " + capacity);
+        }
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @param capacity Bytes the ring can hold, rounded up to a power of two
+     * @return A new empty ring in direct memory
+     */
+    public static ByteRing allocate(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        return new ByteRing(ByteBuffer.allocateDirect(HEADER_SIZE + size));
+    }
+
+    public static int sizeFor(int capacity) {
+        return HEADER_SIZE + (Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1);
+    }
+
+    public int getCapacity() {
+        return this.capacity;
+    }
+
+    /**
+     * Copies as much as fits, only called by the producer
+     *
+     * @param source
+     * @param offset
+     * @param length
+     * @return How many bytes were written
+     */
+    public int write(byte[] source, int offset, int length) {
+        long write_position = (long) LONGS.getOpaque(this.buffer, WRITE_POSITION);
+        long read_position = (long) LONGS.getAcquire(this.buffer, READ_POSITION);
+        int amount = (int) Math.min(length, this.capacity - (write_position - read_position));
+        if (amount <= 0) {
+            return 0;
+        }
+
+        int index = (int) (write_position & this.mask);
+        int first = Math.min(amount, this.capacity - index);
+        this.buffer.put(HEADER_SIZE + index, source, offset, first);
+        if (first < amount) {
+            this.buffer.put(HEADER_SIZE, source, offset + first, amount - first);
+        }
+        LONGS.setRelease(this.buffer, WRITE_POSITION, write_position + amount);
+        return amount;
+    }
+
+    /**
+     * Copies out as much as has arrived, only called by the consumer
+     *
+     * @param destination
+     * @param offset
+     * @param length
+     * @return How many bytes were read
+     */
+    public int read(byte[] destination, int offset, int length) {
+        long read_position = (long) LONGS.getOpaque(this.buffer, READ_POSITION);
+        long write_position = (long) LONGS.getAcquire(this.buffer, WRITE_POSITION);
+        int amount = (int) Math.min(length, write_position - read_position);
+        if (amount <= 0) {
+            return 0;
+        }
+
+        int index = (int) (read_position & this.mask);
+        int first = Math.min(amount, this.capacity - index);
+        this.buffer.get(HEADER_SIZE + index, destination, offset, first);
+        if (first < amount) {
+            this.buffer.get(HEADER_SIZE, destination, offset + first, amount - first);
+        }
+        LONGS.setRelease(this.buffer, READ_POSITION, read_position + amount);
+        return amount;
+    }
+
+    /**
+     * @return How many bytes are waiting to be read
+     */
+    public int available() {
+        long write_position = (long) LONGS.getAcquire(this.buffer, WRITE_POSITION);
+        long read_position = (long) LONGS.getAcquire(this.buffer, READ_POSITION);
+        return (int) (write_position - read_position);
+    }
+
+    /**
+     * @return How many bytes can be written before the ring is full
+     */
+    public int remaining() {
+        return this.capacity - available();
+    }
+
+    /**
+     * The producer will write nothing more, the consumer sees the end once it
+     * has read what is left
+     */
+    public void closeWriter() {
+        LONGS.setRelease(this.buffer, WRITER_CLOSED, 1L);
+    }
+
+    public boolean isWriterClosed() {
+        return (long) LONGS.getAcquire(this.buffer, WRITER_CLOSED) != 0;
+    }
+
+    /**
+     * The consumer will read nothing more, further writes are pointless
+     */
+    public void closeReader() {
+        LONGS.setRelease(this.buffer, READER_CLOSED, 1L);
+    }
+
+    public boolean isReaderClosed() {
+        return (long) LONGS.getAcquire(this.buffer, READER_CLOSED) != 0;
+    }
+
+    /**
+     * Marks whether the consumer is asleep waiting for data. The consumer
+     * must look at the ring again after saying it is waiting, the producer
+     * must look at this after writing, with a full fence in between on both
+     * sides.
+     *
+     * @param waiting
+     */
+    public void setReaderWaiting(boolean waiting) {
+        LONGS.setVolatile(this.buffer, READER_WAITING, waiting ? 1L : 0L);
+    }
+
+    public boolean isReaderWaiting() {
+        return (long) LONGS.getVolatile(this.buffer, READER_WAITING) != 0;
+    }
+
+    /**
+     * @return The position the producer has written up to, grows forever
+     */
+    public long getWritePosition() {
+        return (long) LONGS.getAcquire(this.buffer, WRITE_POSITION);
+    }
+
+    /**
+     * @return The position the consumer has read up to, grows forever
+     */
+    public long getReadPosition() {
+        return (long) LONGS.getAcquire(this.buffer, READ_POSITION);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Listens on a non blocking server socket channel, the network server waits
+ * on the channel with a selector and then accepts until nothing is left.
+ *
+ * @author dansb
+ */
+public abstract class ChannelListener implements TransportListener {
+
+    private final ServerSocketChannel channel;
+
+    public ChannelListener(ServerSocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(false);
+    }
+
+    /**
+     * Turns a freshly accepted channel into a connection
+     *
+     * @param socket_channel
+     * @return
+     * @throws IOException
+     */
+    protected abstract TransportConnection connection(SocketChannel socket_channel) throws IOException;
+
+    @Override
+    public TransportConnection accept() throws IOException {
+        SocketChannel socket_channel = this.channel.accept();
+        if (socket_channel == null) {
+            return null;
+        }
+        try {
+            return connection(socket_channel);
+        } catch (IOException ex) {
+            socket_channel.close();
+            throw ex;
+        }
+    }
+
+    public ServerSocketChannel getChannel() {
+        return this.channel;
+    }
+
+    @Override
+    public SelectableChannel getSelectableChannel() {
+        return this.channel;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException {
+        return this.channel.getLocalAddress();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
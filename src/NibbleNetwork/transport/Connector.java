@@ -0,0 +1,564 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opens connections without a thread per connect. Transports that connect a
+ * socket channel do it non blocking, a handful of selector threads finish the
+ * connects and fail any that go past their timeout. Other transports connect
+ * on a small pool. The futures are completed on the pool and never on a
+ * selector thread, whatever is chained on to them can take its time without
+ * holding up other connects.
+ *
+ * Only so many connects are in flight at once, the rest wait their turn
+ * rather than flooding the listen backlog of the other side. Threads are
+ * daemons and started on first use.
+ *
+ * @author dansb
+ */
+public class Connector implements Closeable {
+
+    public static final int DEFAULT_SELECTOR_THREADS = 1;
+    public static final int DEFAULT_MAX_PENDING = 1024;
+
+    private static final Connector shared = new Connector(DEFAULT_SELECTOR_THREADS,
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    private final ConnectLoop[] loops;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger next_loop;
+    // Connects not yet started as too many were in flight
+    private final Queue<Attempt> waiting;
+    private final AtomicInteger in_flight;
+    private volatile int max_pending;
+    private volatile boolean closed;
+
+    public static Connector getShared() {
+        return Connector.shared;
+    }
+
+    /**
+     * @param selector_threads Threads finishing non blocking connects
+     * @param worker_threads Threads connecting other transports and completing
+     * the futures
+     */
+    public Connector(int selector_threads, int worker_threads) {
+        if (selector_threads < 1 || worker_threads < 1) {
+            throw new IllegalArgumentException("A connector needs at least one selector thread and one worker thread");
+        }
+        this.loops = new ConnectLoop[selector_threads];
+        for (int i = 0; i < selector_threads; i++) {
+            this.loops[i] = new ConnectLoop(i);
+        }
+        final AtomicInteger worker_number = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(worker_threads, worker_threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "NibbleNetwork connect " + worker_number.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.next_loop = new AtomicInteger();
+        this.waiting = new ConcurrentLinkedQueue<Attempt>();
+        this.in_flight = new AtomicInteger();
+        this.max_pending = DEFAULT_MAX_PENDING;
+        this.closed = false;
+    }
+
+    /**
+     * @param max_pending Non blocking connects allowed in flight at once
+     */
+    public void setMaxPending(int max_pending) {
+        if (max_pending < 1) {
+            throw new IllegalArgumentException("At least one connect has to be allowed in flight");
+        }
+        this.max_pending = max_pending;
+        startWaiting();
+    }
+
+    public int getMaxPending() {
+        return this.max_pending;
+    }
+
+    /**
+     * @return Non blocking connects in flight right now
+     */
+    public int getPending() {
+        return this.in_flight.get();
+    }
+
+    /**
+     * @return Non blocking connects waiting for others to finish
+     */
+    public int getWaiting() {
+        return this.waiting.size();
+    }
+
+    /**
+     * Connects over the transport for the type of address, see
+     * {@link Transports}
+     *
+     * @param address
+     * @param timeout Milliseconds to wait for the connection, also used as the
+     * read timeout of the connection, zero to wait for as long as it takes
+     * @return Completed with the connection or with why it failed
+     */
+    public CompletableFuture<TransportConnection> connect(SocketAddress address, int timeout) {
+        try {
+            return Transports.forAddress(address).connectAsync(address, timeout, this);
+        } catch (IllegalArgumentException ex) {
+            CompletableFuture<TransportConnection> future = new CompletableFuture<TransportConnection>();
+            future.completeExceptionally(ex);
+            return future;
+        }
+    }
+
+    /**
+     * Connects a socket channel without blocking, for transports built on
+     * one
+     *
+     * @param channel A channel that has not been connected yet, it is closed
+     * if the connect fails
+     * @param address
+     * @param timeout Milliseconds, zero to wait for as long as it takes
+     * @param finisher Turns the connected channel into a connection, called
+     * on the pool once the channel is back in blocking mode
+     * @return Completed with the connection or with why it failed
+     */
+    public CompletableFuture<TransportConnection> connectChannel(SocketChannel channel, SocketAddress address, int timeout, ChannelFinisher finisher) {
+        Attempt attempt = new Attempt(channel, address, timeout, finisher);
+        if (this.closed) {
+            attempt.fail(new IOException("The connector is closed"));
+            return attempt.future;
+        }
+        this.waiting.add(attempt);
+        startWaiting();
+        return attempt.future;
+    }
+
+    /**
+     * Runs a blocking connect on the pool, for transports that can not connect
+     * any other way
+     *
+     * @param transport
+     * @param address
+     * @param timeout
+     * @return Completed with the connection or with why it failed
+     */
+    public CompletableFuture<TransportConnection> connectBlocking(final Transport transport, final SocketAddress address, final int timeout) {
+        final CompletableFuture<TransportConnection> future = new CompletableFuture<TransportConnection>();
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    TransportConnection connection;
+                    try {
+                        connection = transport.connect(address, timeout);
+                    } catch (Exception ex) {
+                        future.completeExceptionally(ex);
+                        return;
+                    }
+                    if (!future.complete(connection)) {
+                        // Given up on by whoever asked for it
+                        closeQuietly(connection);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(new IOException("The connector is closed", ex));
+        }
+        return future;
+    }
+
+    /**
+     * Starts waiting connects while there is room for them in flight
+     */
+    private void startWaiting() {
+        while (!this.waiting.isEmpty()) {
+            int current = this.in_flight.get();
+            if (current >= this.max_pending) {
+                return;
+            }
+            if (!this.in_flight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+            Attempt attempt = this.waiting.poll();
+            if (attempt == null) {
+                // Someone else took it, give the slot back and look again
+                this.in_flight.decrementAndGet();
+                continue;
+            }
+            ConnectLoop loop = this.loops[Math.floorMod(this.next_loop.getAndIncrement(), this.loops.length)];
+            loop.add(attempt);
+        }
+    }
+
+    private void finished(final Attempt attempt, final Exception problem) {
+        this.in_flight.decrementAndGet();
+        startWaiting();
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (problem != null) {
+                        attempt.fail(problem);
+                    } else {
+                        attempt.complete();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            attempt.fail(new IOException("The connector is closed", ex));
+        }
+    }
+
+    /**
+     * Fails every connect that has not finished and stops the threads. The
+     * shared connector is never closed.
+     */
+    @Override
+    public void close() {
+        if (this == Connector.shared) {
+            throw new IllegalStateException("The shared connector can not be closed");
+        }
+        this.closed = true;
+        Attempt attempt;
+        while ((attempt = this.waiting.poll()) != null) {
+            attempt.fail(new IOException("The connector is closed"));
+        }
+        for (ConnectLoop loop : this.loops) {
+            loop.close();
+        }
+        this.executor.shutdown();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            Logger.getLogger(Connector.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    /**
+     * Turns a connected socket channel into the transport's connection
+     */
+    public interface ChannelFinisher {
+
+        public TransportConnection connection(SocketChannel channel) throws IOException;
+    }
+
+    private static class Attempt implements Comparable<Attempt> {
+
+        private final SocketChannel channel;
+        private final SocketAddress address;
+        private final int timeout;
+        private final ChannelFinisher finisher;
+        private final CompletableFuture<TransportConnection> future;
+        // Nanoseconds, only used when there is a timeout
+        private long deadline;
+        // Only touched by the selector thread
+        private boolean done;
+
+        public Attempt(SocketChannel channel, SocketAddress address, int timeout, ChannelFinisher finisher) {
+            this.channel = channel;
+            this.address = address;
+            this.timeout = timeout;
+            this.finisher = finisher;
+            this.future = new CompletableFuture<TransportConnection>();
+            this.deadline = 0;
+            this.done = false;
+        }
+
+        public void complete() {
+            TransportConnection connection;
+            try {
+                // Connections use blocking streams, the channel was only non blocking for the connect
+                this.channel.configureBlocking(true);
+                connection = this.finisher.connection(this.channel);
+            } catch (Exception ex) {
+                fail(ex);
+                return;
+            }
+            if (!this.future.complete(connection)) {
+                closeQuietly(connection);
+            }
+        }
+
+        public void fail(Exception problem) {
+            closeQuietly(this.channel);
+            this.future.completeExceptionally(problem);
+        }
+
+        @Override
+        public int compareTo(Attempt other) {
+            return Long.compare(this.deadline, other.deadline);
+        }
+    }
+
+    /**
+     * A selector thread finishing connects and timing them out
+     */
+    private class ConnectLoop implements Runnable {
+
+        private final int number;
+        private final Queue<Attempt> added;
+        // Only touched by the selector thread
+        private final Set<Attempt> active;
+        private final PriorityQueue<Attempt> deadlines;
+        private final List<Attempt> connected;
+        private Selector selector;
+        private Thread thread;
+
+        public ConnectLoop(int number) {
+            this.number = number;
+            this.added = new ConcurrentLinkedQueue<Attempt>();
+            this.active = new HashSet<Attempt>();
+            this.deadlines = new PriorityQueue<Attempt>();
+            this.connected = new ArrayList<Attempt>();
+        }
+
+        public void add(Attempt attempt) {
+            Selector current;
+            synchronized (this) {
+                if (Connector.this.closed) {
+                    finished(attempt, new IOException("The connector is closed"));
+                    return;
+                }
+                if (this.thread == null) {
+                    // First use, or the last thread stopped on a selector failure and failed what it had
+                    try {
+                        this.selector = Selector.open();
+                    } catch (IOException ex) {
+                        finished(attempt, ex);
+                        return;
+                    }
+                    this.thread = new Thread(this, "NibbleNetwork connector " + this.number);
+                    this.thread.setDaemon(true);
+                    this.thread.start();
+                }
+                current = this.selector;
+            }
+            this.added.add(attempt);
+            current.wakeup();
+            if (!current.isOpen()) {
+                // The loop has already stopped so nothing else will pick it up
+                failAdded(new IOException("The connector is closed"));
+            }
+        }
+
+        public synchronized void close() {
+            if (this.selector != null) {
+                closeQuietly(this.selector);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (this.selector.isOpen()) {
+                    try {
+                        startAdded();
+                        long wait = expire();
+                        if (wait == 0) {
+                            this.selector.select();
+                        } else {
+                            this.selector.select(wait);
+                        }
+                        for (SelectionKey key : this.selector.selectedKeys()) {
+                            if (key.isValid() && key.isConnectable()) {
+                                finishConnect(key);
+                            }
+                        }
+                        handOver();
+                    } catch (ClosedSelectorException ex) {
+                        // Closed along with the connector
+                        return;
+                    } catch (RuntimeException ex) {
+                        // A bug in one connect must not stop every other connect going through this loop
+                        Logger.getLogger(Connector.class.getName()).log(Level.SEVERE, null, ex);
+                    } finally {
+                        if (this.selector.isOpen()) {
+                            this.selector.selectedKeys().clear();
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(Connector.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                stopped();
+            }
+        }
+
+        /**
+         * Lets the next connect start a new thread and fails everything this
+         * one had
+         */
+        private void stopped() {
+            synchronized (this) {
+                closeQuietly(this.selector);
+                if (this.thread == Thread.currentThread()) {
+                    this.thread = null;
+                }
+            }
+            failAll();
+        }
+
+        private void startAdded() {
+            Attempt attempt;
+            while ((attempt = this.added.poll()) != null) {
+                try {
+                    attempt.channel.configureBlocking(false);
+                    if (attempt.channel.connect(attempt.address)) {
+                        attempt.done = true;
+                        this.connected.add(attempt);
+                        continue;
+                    }
+                    attempt.channel.register(this.selector, SelectionKey.OP_CONNECT, attempt);
+                    this.active.add(attempt);
+                } catch (IOException | RuntimeException ex) {
+                    // An unresolved address throws rather than failing the connect
+                    attempt.done = true;
+                    finished(attempt, ex);
+                    continue;
+                }
+                if (attempt.timeout > 0) {
+                    attempt.deadline = System.nanoTime() + attempt.timeout * 1000000L;
+                    this.deadlines.add(attempt);
+                }
+            }
+        }
+
+        /**
+         * Fails the connects that have gone past their timeout
+         *
+         * @return Milliseconds until the next timeout, zero if there is none
+         */
+        private long expire() {
+            long now = System.nanoTime();
+            Attempt attempt;
+            while ((attempt = this.deadlines.peek()) != null) {
+                if (attempt.done) {
+                    this.deadlines.poll();
+                    continue;
+                }
+                long remaining = attempt.deadline - now;
+                if (remaining > 0) {
+                    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+                }
+                this.deadlines.poll();
+                attempt.done = true;
+                this.active.remove(attempt);
+                SelectionKey key = attempt.channel.keyFor(this.selector);
+                if (key != null) {
+                    key.cancel();
+                }
+                finished(attempt, new SocketTimeoutException("Connecting to " + attempt.address + " timed out after " + attempt.timeout + "ms"));
+            }
+            return 0;
+        }
+
+        private void finishConnect(SelectionKey key) {
+            Attempt attempt = (Attempt) key.attachment();
+            if (attempt.done) {
+                return;
+            }
+            try {
+                if (!attempt.channel.finishConnect()) {
+                    return;
+                }
+            } catch (IOException | RuntimeException ex) {
+                attempt.done = true;
+                this.active.remove(attempt);
+                key.cancel();
+                finished(attempt, ex);
+                return;
+            }
+            attempt.done = true;
+            this.active.remove(attempt);
+            key.cancel();
+            this.connected.add(attempt);
+        }
+
+        /**
+         * Gives the connected channels to the pool once the selector has let
+         * go of them, a channel can not go back to blocking while it is still
+         * registered
+         *
+         * @throws IOException
+         */
+        private void handOver() throws IOException {
+            if (this.connected.isEmpty()) {
+                return;
+            }
+            this.selector.selectNow();
+            for (Attempt attempt : this.connected) {
+                finished(attempt, null);
+            }
+            this.connected.clear();
+        }
+
+        private void failAll() {
+            IOException problem = new IOException("The connector is closed");
+            failAdded(problem);
+            for (Attempt attempt : this.active) {
+                finished(attempt, problem);
+            }
+            this.active.clear();
+            this.deadlines.clear();
+            for (Attempt attempt : this.connected) {
+                finished(attempt, problem);
+            }
+            this.connected.clear();
+        }
+
+        private void failAdded(IOException problem) {
+            Attempt attempt;
+            while ((attempt = this.added.poll()) != null) {
+                finished(attempt, problem);
+            }
+        }
+    }
+}
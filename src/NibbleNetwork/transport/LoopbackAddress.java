@@ -0,0 +1,58 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.net.SocketAddress;
+
+/**
+ * The name of a server listening inside this JVM, see
+ * {@link LoopbackTransport}
+ *
+ * @author dansb
+ */
+public class LoopbackAddress extends SocketAddress {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+
+    public LoopbackAddress(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("A loopback address needs a name");
+        }
+        this.name = name;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof LoopbackAddress && ((LoopbackAddress) o).name.equals(this.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "loopback:" + this.name;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One end of an in memory connection. Each direction is a {@link ByteRing},
+ * a side that has to wait for data or for space parks and is unparked by the
+ * other side once it has moved its position.
+ *
+ * @author dansb
+ */
+public class LoopbackConnection implements TransportConnection {
+
+    private final ByteRing inbound;
+    private final ByteRing outbound;
+    private final SocketAddress remote_address;
+    private LoopbackConnection peer;
+    // Set while a thread is parked waiting on this end
+    private volatile Thread waiting_reader;
+    private volatile Thread waiting_writer;
+    private volatile int read_timeout;
+    private volatile boolean closed;
+
+    private LoopbackConnection(ByteRing inbound, ByteRing outbound, SocketAddress remote_address) {
+        this.inbound = inbound;
+        this.outbound = outbound;
+        this.remote_address = remote_address;
+        this.read_timeout = 0;
+        this.closed = false;
+    }
+
+    /**
+     * Creates both ends of a connection
+     *
+     * @param capacity Bytes each direction can hold
+     * @param client_address The address the server end sees
+     * @param server_address The address the client end sees
+     * @return The client end, the server end is its peer
+     */
+    public static LoopbackConnection pair(int capacity, SocketAddress client_address, SocketAddress server_address) {
+        ByteRing to_server = ByteRing.allocate(capacity);
+        ByteRing to_client = ByteRing.allocate(capacity);
+        LoopbackConnection client = new LoopbackConnection(to_client, to_server, server_address);
+        LoopbackConnection server = new LoopbackConnection(to_server, to_client, client_address);
+        client.peer = server;
+        server.peer = client;
+        return client;
+    }
+
+    public LoopbackConnection getPeer() {
+        return this.peer;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        long deadline = 0;
+        while (true) {
+            int amount = this.inbound.read(buffer, offset, length);
+            if (amount > 0) {
+                this.peer.wakeWriter();
+                return amount;
+            }
+            if (this.closed) {
+                throw new IOException("The connection is closed");
+            }
+            if (this.inbound.isWriterClosed()) {
+                // Nothing can arrive after the other end closed, but what it wrote first has been read
+                if (this.inbound.available() == 0) {
+                    return -1;
+                }
+                continue;
+            }
+
+            int timeout = this.read_timeout;
+            if (timeout != 0 && deadline == 0) {
+                deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            }
+            this.waiting_reader = Thread.currentThread();
+            // Pairs with the fence in wakeReader, either we see the data or the writer sees us waiting
+            VarHandle.fullFence();
+            if (this.inbound.available() == 0 && !this.inbound.isWriterClosed() && !this.closed) {
+                if (deadline == 0) {
+                    LockSupport.park(this);
+                } else {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) {
+                        this.waiting_reader = null;
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                    LockSupport.parkNanos(this, wait);
+                }
+            }
+            this.waiting_reader = null;
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        return this.inbound.available();
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (this.closed) {
+                throw new IOException("The connection is closed");
+            }
+            if (this.outbound.isReaderClosed()) {
+                throw new IOException("Broken pipe");
+            }
+            int amount = this.outbound.write(buffer, offset, length);
+            if (amount > 0) {
+                offset += amount;
+                length -= amount;
+                this.peer.wakeReader();
+                continue;
+            }
+
+            this.waiting_writer = Thread.currentThread();
+            VarHandle.fullFence();
+            if (this.outbound.remaining() == 0 && !this.outbound.isReaderClosed() && !this.closed) {
+                LockSupport.park(this);
+            }
+            this.waiting_writer = null;
+        }
+    }
+
+    @Override
+    public int tryWrite(byte[] buffer, int offset, int length) throws IOException {
+        if (this.closed) {
+            throw new IOException("The connection is closed");
+        }
+        if (this.outbound.isReaderClosed()) {
+            throw new IOException("Broken pipe");
+        }
+        int amount = this.outbound.write(buffer, offset, length);
+        if (amount > 0) {
+            this.peer.wakeReader();
+        }
+        return amount;
+    }
+
+    private void wakeReader() {
+        // Our position has moved, the fence makes sure we see a reader that has just started waiting
+        VarHandle.fullFence();
+        Thread thread = this.waiting_reader;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void wakeWriter() {
+        VarHandle.fullFence();
+        Thread thread = this.waiting_writer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Writes land in the ring straight away
+    }
+
+    @Override
+    public void setReadTimeout(int timeout) throws IOException {
+        this.read_timeout = timeout;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return this.remote_address;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.outbound.closeWriter();
+        this.inbound.closeReader();
+        // Everyone waiting on either end has to notice
+        wakeReader();
+        wakeWriter();
+        this.peer.wakeReader();
+        this.peer.wakeWriter();
+    }
+
+    @Override
+    public String toString() {
+        return "loopback " + this.remote_address;
+    }
+}
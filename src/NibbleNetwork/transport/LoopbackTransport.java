@@ -0,0 +1,191 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketAddress;
+import java.nio.channels.SelectableChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connects a client to a server in the same JVM through a pair of
+ * {@link ByteRing}s, used for LoopbackAddress. Nothing goes near the kernel
+ * so co-located clients, such as test rigs and single player games, run at
+ * memory speed and are not at the mercy of the network stack.
+ *
+ * @author dansb
+ */
+public class LoopbackTransport implements Transport {
+
+    public static final int DEFAULT_RING_CAPACITY = 65536;
+
+    private static final LoopbackTransport shared = new LoopbackTransport();
+
+    private final ConcurrentHashMap<LoopbackAddress, Listener> listeners;
+    private final AtomicLong next_connection;
+    private volatile int ring_capacity;
+
+    public LoopbackTransport() {
+        this.listeners = new ConcurrentHashMap<LoopbackAddress, Listener>();
+        this.next_connection = new AtomicLong();
+        this.ring_capacity = DEFAULT_RING_CAPACITY;
+    }
+
+    public static LoopbackTransport getShared() {
+        return LoopbackTransport.shared;
+    }
+
+    /**
+     * @param ring_capacity Bytes each direction of a new connection can hold
+     */
+    public void setRingCapacity(int ring_capacity) {
+        if (ring_capacity < 1) {
+            throw new IllegalArgumentException("The ring capacity must be at least one byte");
+        }
+        this.ring_capacity = ring_capacity;
+    }
+
+    public int getRingCapacity() {
+        return this.ring_capacity;
+    }
+
+    @Override
+    public boolean supports(SocketAddress address) {
+        return address instanceof LoopbackAddress;
+    }
+
+    @Override
+    public TransportConnection connect(SocketAddress address, int timeout) throws IOException {
+        Listener listener = this.listeners.get((LoopbackAddress) address);
+        if (listener == null || !listener.isOpen()) {
+            throw new ConnectException("Nothing is listening on " + address);
+        }
+        LoopbackAddress client_address = new LoopbackAddress(((LoopbackAddress) address).getName() + "#" + this.next_connection.incrementAndGet());
+        LoopbackConnection connection = LoopbackConnection.pair(this.ring_capacity, client_address, address);
+        connection.setReadTimeout(timeout);
+        if (!listener.offer(connection.getPeer(), timeout)) {
+            connection.close();
+            throw new ConnectException("Connection to " + address + " timed out waiting to be accepted");
+        }
+        return connection;
+    }
+
+    @Override
+    public TransportListener listen(SocketAddress address, int backlog, boolean share_address) throws IOException {
+        LoopbackAddress loopback_address = (LoopbackAddress) address;
+        Listener listener = new Listener(loopback_address, backlog);
+        if (this.listeners.putIfAbsent(loopback_address, listener) != null) {
+            throw new IOException("Something is already listening on " + address);
+        }
+        return listener;
+    }
+
+    @Override
+    public boolean canShareAddress() {
+        return false;
+    }
+
+    private class Listener implements TransportListener {
+
+        private final LoopbackAddress address;
+        // Once closed anything left in here is closed by whoever takes it
+        private final BlockingQueue<LoopbackConnection> waiting;
+        private volatile boolean open;
+
+        public Listener(LoopbackAddress address, int backlog) {
+            this.address = address;
+            this.waiting = new ArrayBlockingQueue<LoopbackConnection>(backlog);
+            this.open = true;
+        }
+
+        /**
+         * Waits like a TCP connect for room in the backlog
+         *
+         * @param connection The server end
+         * @param timeout Milliseconds, zero to wait forever
+         * @return False if the listener closed or the time ran out
+         */
+        public boolean offer(LoopbackConnection connection, int timeout) throws IOException {
+            try {
+                if (timeout == 0) {
+                    this.waiting.put(connection);
+                } else if (!this.waiting.offer(connection, timeout, TimeUnit.MILLISECONDS)) {
+                    return false;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            // Closed while we were queueing, the server end stays behind for an acceptor to close
+            return this.open;
+        }
+
+        @Override
+        public TransportConnection accept() throws IOException {
+            try {
+                LoopbackConnection connection = this.waiting.take();
+                if (!this.open) {
+                    // Put it back for any other acceptor still waiting
+                    this.waiting.offer(connection);
+                    connection.close();
+                    return null;
+                }
+                return connection;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        @Override
+        public SelectableChannel getSelectableChannel() {
+            return null;
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return this.address;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this.open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!this.open) {
+                return;
+            }
+            this.open = false;
+            listeners.remove(this.address, this);
+            LoopbackConnection connection;
+            while ((connection = this.waiting.poll()) != null) {
+                connection.close();
+            }
+            // Wakes acceptors blocked in take, they see we have closed
+            LoopbackConnection marker = LoopbackConnection.pair(1, this.address, this.address);
+            marker.close();
+            this.waiting.offer(marker);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.net.SocketAddress;
+import java.nio.file.Path;
+
+/**
+ * Where a shared memory server listens, see {@link SharedMemoryTransport}.
+ * The path is a Unix domain socket used to hand out ring files and to wake
+ * sleeping readers, the ring files are created next to it. Put it on a
+ * memory backed file system such as /dev/shm so the rings never touch a disk.
+ *
+ * @author dansb
+ */
+public class SharedMemoryAddress extends SocketAddress {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Path path;
+
+    public SharedMemoryAddress(Path path) {
+        if (path == null) {
+            throw new IllegalArgumentException("A shared memory address needs a path");
+        }
+        this.path = path.toAbsolutePath();
+    }
+
+    public Path getPath() {
+        return this.path;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SharedMemoryAddress && ((SharedMemoryAddress) o).path.equals(this.path);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.path.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "shm:" + this.path;
+    }
+}
@@ -0,0 +1,301 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One end of a connection between two processes through a pair of
+ * {@link ByteRing}s in a memory mapped file.
+ *
+ * A reader with nothing to read spins for a while, then yields, then marks
+ * itself as waiting in the ring and sleeps on the doorbell, a Unix domain
+ * socket between the two ends. A writer only rings the doorbell when the
+ * reader has said it is waiting, so while both sides are busy frames never
+ * leave memory. A writer facing a full ring spins, yields and then parks for
+ * growing periods until the reader makes room.
+ *
+ * The doorbell also tells us when the other process has gone, its end of the
+ * socket closes even if the process died without closing the rings.
+ *
+ * @author dansb
+ */
+public class SharedMemoryConnection implements TransportConnection {
+
+    // Spinning only helps when the other side is running on another core
+    private static final int SPIN_TRIES = Runtime.getRuntime().availableProcessors() > 1 ? 2000 : 0;
+    private static final int YIELD_TRIES = 20;
+    private static final long MAX_WRITER_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ByteRing inbound;
+    private final ByteRing outbound;
+    // Keeps the mapping alive for as long as the rings are in use
+    private final MappedByteBuffer mapping;
+    private final SocketChannel doorbell;
+    private final SocketAddress remote_address;
+    // Read side, only touched by the reading thread
+    private final ByteBuffer doorbell_in;
+    private volatile Selector selector;
+    // Write side, guarded by itself as closing also rings
+    private final ByteBuffer doorbell_out;
+    private volatile int read_timeout;
+    // Set once the doorbell can no longer be written, the other process has gone
+    private volatile boolean peer_gone;
+    private volatile boolean closed;
+
+    public SharedMemoryConnection(ByteRing inbound, ByteRing outbound, MappedByteBuffer mapping, SocketChannel doorbell, SocketAddress remote_address) throws IOException {
+        this.inbound = inbound;
+        this.outbound = outbound;
+        this.mapping = mapping;
+        this.doorbell = doorbell;
+        this.doorbell.configureBlocking(false);
+        this.remote_address = remote_address;
+        this.doorbell_in = ByteBuffer.allocate(64);
+        this.doorbell_out = ByteBuffer.allocate(1);
+        this.read_timeout = 0;
+        this.peer_gone = false;
+        this.closed = false;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        long deadline = 0;
+        int idle = 0;
+        while (true) {
+            int amount = this.inbound.read(buffer, offset, length);
+            if (amount > 0) {
+                return amount;
+            }
+            if (this.closed) {
+                throw new IOException("The connection is closed");
+            }
+            if (this.inbound.isWriterClosed()) {
+                if (this.inbound.available() == 0) {
+                    return -1;
+                }
+                continue;
+            }
+            if (idle < SPIN_TRIES) {
+                idle++;
+                Thread.onSpinWait();
+                continue;
+            }
+            if (idle < SPIN_TRIES + YIELD_TRIES) {
+                idle++;
+                Thread.yield();
+                continue;
+            }
+
+            long wait = 0;
+            int timeout = this.read_timeout;
+            if (timeout != 0) {
+                if (deadline == 0) {
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                }
+                wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (wait <= 0) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+            }
+
+            this.inbound.setReaderWaiting(true);
+            try {
+                // Pairs with the fence in ringDoorbell, either we see the data or the writer sees us waiting
+                VarHandle.fullFence();
+                if (this.inbound.available() == 0 && !this.inbound.isWriterClosed()) {
+                    if (!awaitDoorbell(wait) && this.inbound.available() == 0) {
+                        // The other process has gone without closing its ring
+                        return -1;
+                    }
+                }
+            } finally {
+                this.inbound.setReaderWaiting(false);
+            }
+        }
+    }
+
+    /**
+     * @return False if the other end of the doorbell has closed
+     */
+    private boolean awaitDoorbell(long timeout) throws IOException {
+        if (this.selector == null) {
+            Selector opened = Selector.open();
+            try {
+                this.doorbell.register(opened, SelectionKey.OP_READ);
+            } catch (IOException ex) {
+                opened.close();
+                throw ex;
+            }
+            this.selector = opened;
+            if (this.closed) {
+                // Closed while we were opening it, close would not have seen it
+                opened.close();
+            }
+        }
+        try {
+            this.selector.select(timeout);
+            this.selector.selectedKeys().clear();
+        } catch (ClosedSelectorException ex) {
+            throw new IOException("The connection is closed", ex);
+        }
+        int amount;
+        do {
+            this.doorbell_in.clear();
+            amount = this.doorbell.read(this.doorbell_in);
+        } while (amount > 0);
+        return amount != -1;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return this.inbound.available();
+    }
+
+    /**
+     * Waits for room in the ring for as long as the read timeout, a process
+     * that has died without closing its ring is noticed through the doorbell
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        long deadline = 0;
+        int idle = 0;
+        while (length > 0) {
+            if (this.closed) {
+                throw new IOException("The connection is closed");
+            }
+            if (this.outbound.isReaderClosed() || this.peer_gone) {
+                throw new IOException("Broken pipe");
+            }
+            int amount = this.outbound.write(buffer, offset, length);
+            if (amount > 0) {
+                offset += amount;
+                length -= amount;
+                idle = 0;
+                deadline = 0;
+                ringDoorbell(false);
+                continue;
+            }
+
+            if (idle < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else if (idle < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+            } else {
+                int timeout = this.read_timeout;
+                if (timeout != 0) {
+                    if (deadline == 0) {
+                        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                    } else if (System.nanoTime() - deadline >= 0) {
+                        throw new SocketTimeoutException("Write timed out");
+                    }
+                }
+                // Ringing while full wakes a reader that missed it and fails if the reader's process has gone
+                ringDoorbell(true);
+                LockSupport.parkNanos(this, Math.min(MAX_WRITER_PARK, 1000L << Math.min(20, idle - SPIN_TRIES - YIELD_TRIES)));
+            }
+            idle++;
+        }
+    }
+
+    @Override
+    public int tryWrite(byte[] buffer, int offset, int length) throws IOException {
+        if (this.closed) {
+            throw new IOException("The connection is closed");
+        }
+        if (this.outbound.isReaderClosed() || this.peer_gone) {
+            throw new IOException("Broken pipe");
+        }
+        int amount = this.outbound.write(buffer, offset, length);
+        // Ringing when full too wakes a reader that missed it and finds out if its process has gone
+        ringDoorbell(amount == 0);
+        return amount;
+    }
+
+    private void ringDoorbell(boolean always) {
+        VarHandle.fullFence();
+        if (!always && !this.outbound.isReaderWaiting()) {
+            return;
+        }
+        synchronized (this.doorbell_out) {
+            this.doorbell_out.clear();
+            try {
+                // If the socket is full the reader already has a wakeup waiting
+                this.doorbell.write(this.doorbell_out);
+            } catch (IOException ex) {
+                // The reader has gone, the next write finds out
+                this.peer_gone = true;
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Writes land in the ring straight away
+    }
+
+    @Override
+    public void setReadTimeout(int timeout) throws IOException {
+        this.read_timeout = timeout;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return this.remote_address;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.outbound.closeWriter();
+        this.inbound.closeReader();
+        ringDoorbell(true);
+        this.doorbell.close();
+        Selector current = this.selector;
+        if (current != null) {
+            // Wake a reader waiting on it before closing, a selector holds on to the channel until it is closed
+            current.wakeup();
+            current.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "shm " + this.remote_address;
+    }
+}
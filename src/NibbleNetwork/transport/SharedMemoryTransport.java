@@ -0,0 +1,278 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Connections between JVMs on the same host through shared memory, used for
+ * SharedMemoryAddress. The server listens on a Unix domain socket, for every
+ * connection it creates a file holding two rings, one each way, maps it and
+ * sends the client its name. The client maps the same file beside the socket
+ * and removes it, so nothing is left behind once both sides have it mapped.
+ * The socket stays open as the doorbell, see {@link SharedMemoryConnection}.
+ *
+ * @author dansb
+ */
+public class SharedMemoryTransport implements Transport {
+
+    public static final int DEFAULT_RING_CAPACITY = 262144;
+    // Longest ring file name we accept from a server
+    private static final int MAX_NAME_LENGTH = 4096;
+
+    private static final SharedMemoryTransport shared = new SharedMemoryTransport();
+
+    private final AtomicLong next_ring;
+    private volatile int ring_capacity;
+
+    public SharedMemoryTransport() {
+        this.next_ring = new AtomicLong();
+        this.ring_capacity = DEFAULT_RING_CAPACITY;
+    }
+
+    public static SharedMemoryTransport getShared() {
+        return SharedMemoryTransport.shared;
+    }
+
+    /**
+     * Sets the bytes each direction of a new connection can hold, rounded up
+     * to a power of two. The server decides, clients map whatever size the
+     * server created.
+     *
+     * @param ring_capacity
+     */
+    public void setRingCapacity(int ring_capacity) {
+        if (ring_capacity <= 0) {
+            throw new IllegalArgumentException("The ring capacity must be above zero");
+        }
+        this.ring_capacity = ring_capacity;
+    }
+
+    public int getRingCapacity() {
+        return this.ring_capacity;
+    }
+
+    @Override
+    public boolean supports(SocketAddress address) {
+        return address instanceof SharedMemoryAddress;
+    }
+
+    @Override
+    public TransportConnection connect(SocketAddress address, int timeout) throws IOException {
+        SharedMemoryAddress shared_address = (SharedMemoryAddress) address;
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(shared_address.getPath()));
+            channel.configureBlocking(false);
+
+            // The server may still be creating the file, only wait as long as we were told to
+            ByteBuffer header = ByteBuffer.allocate(8);
+            readFully(channel, header, timeout);
+            int capacity = header.getInt(0);
+            int name_length = header.getInt(4);
+            if (name_length <= 0 || name_length > MAX_NAME_LENGTH) {
+                throw new IOException("Bad shared memory handshake from " + shared_address);
+            }
+            ByteBuffer name = ByteBuffer.allocate(name_length);
+            readFully(channel, name, timeout);
+            Path file = ringFile(shared_address, new String(name.array(), StandardCharsets.UTF_8));
+
+            MappedByteBuffer mapping = map(file, capacity);
+            // Mapped, the file is no longer needed. If mapping failed the server removes it when it closes.
+            Files.deleteIfExists(file);
+            int ring_size = ByteRing.sizeFor(capacity);
+            ByteRing to_server = new ByteRing(mapping.slice(0, ring_size));
+            ByteRing to_client = new ByteRing(mapping.slice(ring_size, ring_size));
+            SharedMemoryConnection connection = new SharedMemoryConnection(to_client, to_server, mapping, channel, shared_address);
+            connection.setReadTimeout(timeout);
+            return connection;
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Only a ring file the server could have made for this socket is accepted,
+     * the client removes it so a server must not be able to name any other
+     * file
+     *
+     * @param address
+     * @param name The file name the server sent
+     * @return The ring file beside the socket
+     * @throws IOException If the name is not one of a ring file for the
+     * socket
+     */
+    private static Path ringFile(SharedMemoryAddress address, String name) throws IOException {
+        Path socket_path = address.getPath();
+        if (!name.matches(Pattern.quote(socket_path.getFileName().toString()) + "\\.[0-9]+\\.[0-9]+\\.ring")) {
+            throw new IOException("Bad shared memory ring file name from " + address);
+        }
+        return socket_path.resolveSibling(name);
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer, int timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        Selector selector = null;
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new IOException("The shared memory server closed the connection during the handshake");
+                }
+                if (!buffer.hasRemaining()) {
+                    break;
+                }
+                long wait = 0;
+                if (timeout != 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new SocketTimeoutException("Timed out waiting for the shared memory handshake");
+                    }
+                }
+                if (selector == null) {
+                    selector = Selector.open();
+                    channel.register(selector, SelectionKey.OP_READ);
+                }
+                selector.select(wait);
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            if (selector != null) {
+                selector.close();
+            }
+        }
+    }
+
+    private static MappedByteBuffer map(Path file, int capacity) throws IOException {
+        long size = 2L * ByteRing.sizeFor(capacity);
+        FileChannel file_channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (file_channel.size() != size) {
+                throw new IOException("The ring file " + file + " is " + file_channel.size() + " bytes, expected " + size);
+            }
+            // The mapping outlives the channel
+            return file_channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            file_channel.close();
+        }
+    }
+
+    @Override
+    public TransportListener listen(SocketAddress address, int backlog, boolean share_address) throws IOException {
+        final SharedMemoryAddress shared_address = (SharedMemoryAddress) address;
+        final Path path = shared_address.getPath();
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.bind(UnixDomainSocketAddress.of(path), backlog);
+            return new ChannelListener(channel) {
+                @Override
+                protected TransportConnection connection(SocketChannel socket_channel) throws IOException {
+                    return accepted(shared_address, socket_channel);
+                }
+
+                @Override
+                public SocketAddress getLocalAddress() throws IOException {
+                    return shared_address;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        Files.deleteIfExists(path);
+                    }
+                }
+            };
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private TransportConnection accepted(SharedMemoryAddress address, SocketChannel socket_channel) throws IOException {
+        int capacity = Integer.highestOneBit(Math.max(this.ring_capacity, 2) - 1) << 1;
+        int ring_size = ByteRing.sizeFor(capacity);
+        Path socket_path = address.getPath();
+        String file_name = socket_path.getFileName() + "." + ProcessHandle.current().pid() + "." + this.next_ring.incrementAndGet() + ".ring";
+        Path file = socket_path.resolveSibling(file_name);
+
+        MappedByteBuffer mapping;
+        FileChannel file_channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // A new file reads as zeros so both rings start empty and open
+            mapping = file_channel.map(FileChannel.MapMode.READ_WRITE, 0, 2L * ring_size);
+        } catch (IOException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        } finally {
+            file_channel.close();
+        }
+
+        try {
+            // Only the name, the client finds it beside the socket
+            byte[] name = file_name.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer handshake = ByteBuffer.allocate(8 + name.length);
+            handshake.putInt(capacity).putInt(name.length).put(name).flip();
+            // Accepted channels start blocking and the handshake is tiny
+            socket_channel.configureBlocking(true);
+            while (handshake.hasRemaining()) {
+                socket_channel.write(handshake);
+            }
+        } catch (IOException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+
+        ByteRing to_server = new ByteRing(mapping.slice(0, ring_size));
+        ByteRing to_client = new ByteRing(mapping.slice(ring_size, ring_size));
+        final Path ring_file = file;
+        return new SharedMemoryConnection(to_server, to_client, mapping, socket_channel, address) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // Normally the client removed it already, not if it never got that far
+                    Files.deleteIfExists(ring_file);
+                }
+            }
+        };
+    }
+
+    @Override
+    public boolean canShareAddress() {
+        return false;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection over a plain blocking socket. Sockets of a channel, as
+ * connected and accepted by {@link TcpTransport}, can also be written to
+ * without blocking.
+ *
+ * @author dansb
+ */
+public class TcpConnection implements TransportConnection {
+
+    private final Socket socket;
+    private final InputStream input_stream;
+    private final OutputStream output_stream;
+    // Only touched by the writing thread
+    private byte[] write_array;
+    private ByteBuffer write_buffer;
+
+    public TcpConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.input_stream = socket.getInputStream();
+        this.output_stream = socket.getOutputStream();
+    }
+
+    public Socket getSocket() {
+        return this.socket;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return this.input_stream.read(buffer, offset, length);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return this.input_stream.available();
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        this.output_stream.write(buffer, offset, length);
+    }
+
+    /**
+     * Switches the channel to non blocking just for this write. Reads are
+     * made by the same processor thread so none is waiting on the channel.
+     */
+    @Override
+    public int tryWrite(byte[] buffer, int offset, int length) throws IOException {
+        SocketChannel channel = this.socket.getChannel();
+        if (channel == null) {
+            write(buffer, offset, length);
+            return length;
+        }
+        if (buffer != this.write_array) {
+            this.write_array = buffer;
+            this.write_buffer = ByteBuffer.wrap(buffer);
+        }
+        this.write_buffer.limit(offset + length).position(offset);
+        synchronized (channel.blockingLock()) {
+            channel.configureBlocking(false);
+            try {
+                return channel.write(this.write_buffer);
+            } finally {
+                channel.configureBlocking(true);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        this.output_stream.flush();
+    }
+
+    @Override
+    public void setReadTimeout(int timeout) throws IOException {
+        this.socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        return this.socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.socket.close();
+    }
+
+    @Override
+    public String toString() {
+        return "tcp " + this.socket.getRemoteSocketAddress();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * TCP, used for InetSocketAddress. Connections are blocking sockets, several
+ * listeners can share a port with SO_REUSEPORT where the platform has it.
+ * Connecting asynchronously is non blocking, see {@link Connector}.
+ *
+ * @author dansb
+ */
+public class TcpTransport implements Transport {
+
+    private static final TcpTransport shared = new TcpTransport();
+
+    private volatile Boolean reuse_port;
+
+    public static TcpTransport getShared() {
+        return TcpTransport.shared;
+    }
+
+    @Override
+    public boolean supports(SocketAddress address) {
+        return address instanceof InetSocketAddress;
+    }
+
+    @Override
+    public TransportConnection connect(SocketAddress address, int timeout) throws IOException {
+        // A socket of a channel so it can be written to without blocking, see TcpConnection
+        Socket socket = SocketChannel.open().socket();
+        try {
+            socket.setSoTimeout(timeout);
+            socket.connect(address, timeout);
+            return new TcpConnection(socket);
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public CompletableFuture<TransportConnection> connectAsync(SocketAddress address, final int timeout, Connector connector) {
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open();
+        } catch (IOException ex) {
+            CompletableFuture<TransportConnection> future = new CompletableFuture<TransportConnection>();
+            future.completeExceptionally(ex);
+            return future;
+        }
+        return connector.connectChannel(channel, address, timeout, new Connector.ChannelFinisher() {
+            @Override
+            public TransportConnection connection(SocketChannel socket_channel) throws IOException {
+                Socket socket = socket_channel.socket();
+                socket.setSoTimeout(timeout);
+                return new TcpConnection(socket);
+            }
+        });
+    }
+
+    @Override
+    public TransportListener listen(SocketAddress address, int backlog, boolean share_address) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (share_address) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(address, backlog);
+            return new ChannelListener(channel) {
+                @Override
+                protected TransportConnection connection(SocketChannel socket_channel) throws IOException {
+                    // Clients use blocking streams, the channel was only non blocking for the accept
+                    socket_channel.configureBlocking(true);
+                    return new TcpConnection(socket_channel.socket());
+                }
+            };
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean canShareAddress() {
+        Boolean supported = this.reuse_port;
+        if (supported == null) {
+            try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+                supported = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            } catch (IOException ex) {
+                supported = false;
+            }
+            this.reuse_port = supported;
+        }
+        return supported;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A way of carrying frames between a client and a server, chosen by the type
+ * of address connected or listened to. See {@link Transports}.
+ *
+ * @author dansb
+ */
+public interface Transport {
+
+    /**
+     * @param address
+     * @return True if this transport connects to and listens on addresses of
+     * this type
+     */
+    public boolean supports(SocketAddress address);
+
+    /**
+     * @param address
+     * @param timeout Milliseconds to wait for the connection, also used as
+     * the read timeout of the connection
+     * @return The connected connection
+     * @throws IOException
+     */
+    public TransportConnection connect(SocketAddress address, int timeout) throws IOException;
+
+    /**
+     * Connects without blocking the caller, the default runs
+     * {@link #connect(SocketAddress, int)} on the connector's pool
+     *
+     * @param address
+     * @param timeout Milliseconds to wait for the connection, also used as
+     * the read timeout of the connection
+     * @param connector
+     * @return Completed with the connection or with why it failed
+     */
+    public default CompletableFuture<TransportConnection> connectAsync(SocketAddress address, int timeout, Connector connector) {
+        return connector.connectBlocking(this, address, timeout);
+    }
+
+    /**
+     * @param address
+     * @param backlog How many connections may wait to be accepted
+     * @param share_address True if other listeners will be bound to the same
+     * address, only asked for when {@link #canShareAddress()} is true
+     * @return The bound listener
+     * @throws IOException
+     */
+    public TransportListener listen(SocketAddress address, int backlog, boolean share_address) throws IOException;
+
+    /**
+     * @return True if several listeners can be bound to one address with
+     * connections spread between them
+     */
+    public boolean canShareAddress();
+}
@@ -0,0 +1,107 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * One end of a connection as the network streams see it. Reads are only ever
+ * made by one thread at a time and so are writes, but a read and a write may
+ * happen at the same time.
+ *
+ * @author dansb
+ */
+public interface TransportConnection extends Closeable {
+
+    /**
+     * Blocks until at least one byte arrives, the read timeout passes or the
+     * connection ends
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @return How many bytes were read or -1 if the connection has ended
+     * @throws IOException
+     */
+    public int read(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * @return How many bytes can be read without blocking, it may be less than
+     * what has really arrived but is only zero if nothing has
+     * @throws IOException
+     */
+    public int available() throws IOException;
+
+    /**
+     * Writes all of the bytes, blocking until they have been handed over
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @throws IOException
+     */
+    public void write(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Writes as many of the bytes as can be handed over without blocking,
+     * used by the processor thread so one slow client can not hold up the
+     * others. Transports that can not tell block like write.
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @return How many bytes were written, zero if the connection can take
+     * none right now
+     * @throws IOException
+     */
+    public default int tryWrite(byte[] buffer, int offset, int length) throws IOException {
+        write(buffer, offset, length);
+        return length;
+    }
+
+    public void flush() throws IOException;
+
+    /**
+     * @param timeout Milliseconds a read may block for before it fails, zero
+     * to wait forever
+     * @throws IOException
+     */
+    public void setReadTimeout(int timeout) throws IOException;
+
+    /**
+     * @return The address of the other end, or null if it has none
+     */
+    public SocketAddress getRemoteAddress();
+
+    public boolean isClosed();
+
+    /**
+     * Called by the server on a handshake thread before the connection
+     * handler sees a freshly accepted connection, for transports that have to
+     * exchange something with the other side first
+     *
+     * @return False if the transport has taken the connection over and it
+     * must not become a client, such as to resume a session that already has
+     * one
+     * @throws IOException
+     */
+    public default boolean handshake() throws IOException {
+        return true;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * Accepts connections for a network server. Listeners built on a selectable
+ * channel are waited on with a selector and never block in accept, any other
+ * listener blocks in accept and must allow several threads to do so at once.
+ *
+ * @author dansb
+ */
+public interface TransportListener extends Closeable {
+
+    /**
+     * @return The next connection, or null if the listener is selectable and
+     * nothing is waiting or the listener has been closed
+     * @throws IOException
+     */
+    public TransportConnection accept() throws IOException;
+
+    /**
+     * @return The channel to select on for accepts or null if accept blocks
+     */
+    public SelectableChannel getSelectableChannel();
+
+    public SocketAddress getLocalAddress() throws IOException;
+
+    public boolean isOpen();
+}
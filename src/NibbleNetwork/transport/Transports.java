@@ -0,0 +1,73 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import NibbleNetwork.session.SessionTransport;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Picks the transport for an address. TCP handles InetSocketAddress, Unix
+ * domain sockets handle UnixDomainSocketAddress, the in memory loopback
+ * handles LoopbackAddress, shared memory handles SharedMemoryAddress and
+ * resumable sessions over any of them handle SessionAddress, other transports
+ * register themselves for their own address types.
+ *
+ * @author dansb
+ */
+public class Transports {
+
+    private static final List<Transport> transports = new CopyOnWriteArrayList<Transport>();
+
+    static {
+        transports.add(TcpTransport.getShared());
+        transports.add(UnixDomainTransport.getShared());
+        transports.add(LoopbackTransport.getShared());
+        transports.add(SharedMemoryTransport.getShared());
+        transports.add(SessionTransport.getShared());
+    }
+
+    /**
+     * Adds a transport, transports registered later are asked first
+     *
+     * @param transport
+     */
+    public static void register(Transport transport) {
+        if (!transports.contains(transport)) {
+            transports.add(0, transport);
+        }
+    }
+
+    public static void unregister(Transport transport) {
+        transports.remove(transport);
+    }
+
+    /**
+     * @param address
+     * @return The transport for the address
+     * @throws IllegalArgumentException If no transport supports the address
+     */
+    public static Transport forAddress(SocketAddress address) {
+        for (Transport transport : transports) {
+            if (transport.supports(address)) {
+                return transport;
+            }
+        }
+        throw new IllegalArgumentException("No transport supports the address " + address);
+    }
+}
@@ -0,0 +1,225 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connection over a Unix domain socket channel. The channel is non blocking
+ * so that available can look for data by reading one byte ahead, reads and
+ * writes that have to wait do so on a selector that is only created the
+ * first time one is needed.
+ *
+ * @author dansb
+ */
+public class UnixDomainConnection implements TransportConnection {
+
+    private final SocketChannel channel;
+    // Read side, only touched by the reading thread
+    private final ByteBuffer peek;
+    private boolean peeked;
+    private byte[] read_array;
+    private ByteBuffer read_buffer;
+    // Selectors are also read by close
+    private volatile Selector read_selector;
+    private volatile int read_timeout;
+    // Write side, only touched by the writing thread
+    private byte[] write_array;
+    private ByteBuffer write_buffer;
+    private volatile Selector write_selector;
+
+    public UnixDomainConnection(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        this.channel.configureBlocking(false);
+        this.peek = ByteBuffer.allocate(1);
+        this.peeked = false;
+        this.read_timeout = 0;
+    }
+
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        int total = 0;
+        if (this.peeked) {
+            buffer[offset] = this.peek.get(0);
+            this.peeked = false;
+            total = 1;
+            if (length == 1) {
+                return total;
+            }
+            // Take whatever else is already here but do not wait for it
+            int amount = this.channel.read(wrap(buffer, offset + 1, length - 1));
+            return amount > 0 ? total + amount : total;
+        }
+
+        ByteBuffer target = wrap(buffer, offset, length);
+        while (true) {
+            int amount = this.channel.read(target);
+            if (amount != 0) {
+                return amount;
+            }
+            await(SelectionKey.OP_READ);
+        }
+    }
+
+    private ByteBuffer wrap(byte[] buffer, int offset, int length) {
+        // Rewrapping only when the array changes keeps reads free of allocations
+        if (buffer != this.read_array) {
+            this.read_array = buffer;
+            this.read_buffer = ByteBuffer.wrap(buffer);
+        }
+        this.read_buffer.limit(offset + length).position(offset);
+        return this.read_buffer;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (this.peeked) {
+            return 1;
+        }
+        this.peek.clear();
+        if (this.channel.read(this.peek) == 1) {
+            this.peeked = true;
+            return 1;
+        }
+        // Like a socket, the end of the connection shows up as nothing to read
+        return 0;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (buffer != this.write_array) {
+            this.write_array = buffer;
+            this.write_buffer = ByteBuffer.wrap(buffer);
+        }
+        this.write_buffer.limit(offset + length).position(offset);
+        while (this.write_buffer.hasRemaining()) {
+            if (this.channel.write(this.write_buffer) == 0) {
+                await(SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    @Override
+    public int tryWrite(byte[] buffer, int offset, int length) throws IOException {
+        if (buffer != this.write_array) {
+            this.write_array = buffer;
+            this.write_buffer = ByteBuffer.wrap(buffer);
+        }
+        this.write_buffer.limit(offset + length).position(offset);
+        return this.channel.write(this.write_buffer);
+    }
+
+    private void await(int operation) throws IOException {
+        Selector selector = operation == SelectionKey.OP_READ ? this.read_selector : this.write_selector;
+        if (selector == null) {
+            selector = Selector.open();
+            try {
+                this.channel.register(selector, operation);
+            } catch (IOException ex) {
+                selector.close();
+                throw ex;
+            }
+            if (operation == SelectionKey.OP_READ) {
+                this.read_selector = selector;
+            } else {
+                this.write_selector = selector;
+            }
+            if (!this.channel.isOpen()) {
+                // Closed while we were opening it, close would not have seen it
+                selector.close();
+                throw new IOException("The connection is closed");
+            }
+        }
+
+        int timeout = operation == SelectionKey.OP_READ ? this.read_timeout : 0;
+        int ready;
+        try {
+            ready = selector.select(timeout);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException ex) {
+            throw new IOException("The connection is closed", ex);
+        }
+        if (ready == 0 && timeout != 0) {
+            throw new SocketTimeoutException("Read timed out");
+        }
+        if (!this.channel.isOpen()) {
+            throw new IOException("The connection is closed");
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Writes are never buffered
+    }
+
+    @Override
+    public void setReadTimeout(int timeout) throws IOException {
+        this.read_timeout = timeout;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() {
+        try {
+            return this.channel.getRemoteAddress();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !this.channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.channel.close();
+        } finally {
+            // Wake anyone waiting, they see the channel has closed. The channel keeps its descriptor until its selectors close.
+            closeSelector(this.read_selector);
+            closeSelector(this.write_selector);
+        }
+    }
+
+    private static void closeSelector(Selector selector) throws IOException {
+        if (selector != null) {
+            selector.wakeup();
+            selector.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "unix " + getRemoteAddress();
+    }
+}
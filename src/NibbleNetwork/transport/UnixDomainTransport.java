@@ -0,0 +1,95 @@
+/*
+  NibbleNetwork - A multithreaded Java networking library
+    Copyright (C) 2016  Daniel McCarthy
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package NibbleNetwork.transport;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Unix domain sockets, used for UnixDomainSocketAddress. Skips the TCP stack
+ * entirely for processes on the same host. The socket file is removed when
+ * the listener closes, a file left behind by a listener that did not close
+ * has to be removed before the path can be listened on again.
+ *
+ * @author dansb
+ */
+public class UnixDomainTransport implements Transport {
+
+    private static final UnixDomainTransport shared = new UnixDomainTransport();
+
+    public static UnixDomainTransport getShared() {
+        return UnixDomainTransport.shared;
+    }
+
+    @Override
+    public boolean supports(SocketAddress address) {
+        return address instanceof UnixDomainSocketAddress;
+    }
+
+    @Override
+    public TransportConnection connect(SocketAddress address, int timeout) throws IOException {
+        // A Unix domain connect either succeeds or fails straight away so there is nothing to time out
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(address);
+            UnixDomainConnection connection = new UnixDomainConnection(channel);
+            connection.setReadTimeout(timeout);
+            return connection;
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public TransportListener listen(SocketAddress address, int backlog, boolean share_address) throws IOException {
+        final Path path = ((UnixDomainSocketAddress) address).getPath();
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.bind(address, backlog);
+            return new ChannelListener(channel) {
+                @Override
+                protected TransportConnection connection(SocketChannel socket_channel) throws IOException {
+                    return new UnixDomainConnection(socket_channel);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        Files.deleteIfExists(path);
+                    }
+                }
+            };
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    @Override
+    public boolean canShareAddress() {
+        return false;
+    }
+}